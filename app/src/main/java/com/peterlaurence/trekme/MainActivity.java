@@ -32,7 +32,9 @@ import android.view.View;
 import android.widget.TextView;
 
 import com.peterlaurence.trekme.core.TrekMeContext;
+import com.peterlaurence.trekme.core.download.DownloadRequest;
 import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache;
 import com.peterlaurence.trekme.core.map.gson.MarkerGson;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
 import com.peterlaurence.trekme.core.map.maploader.events.MapListUpdateEvent;
@@ -41,11 +43,13 @@ import com.peterlaurence.trekme.core.mapsource.MapSource;
 import com.peterlaurence.trekme.core.mapsource.MapSourceBundle;
 import com.peterlaurence.trekme.core.mapsource.MapSourceCredentials;
 import com.peterlaurence.trekme.model.map.MapProvider;
+import com.peterlaurence.trekme.service.DownloadService;
 import com.peterlaurence.trekme.service.event.LocationServiceStatus;
 import com.peterlaurence.trekme.service.event.MapDownloadEvent;
 import com.peterlaurence.trekme.service.event.Status;
 import com.peterlaurence.trekme.ui.MarkerProvider;
 import com.peterlaurence.trekme.ui.dialogs.MapDownloadDialog;
+import com.peterlaurence.trekme.ui.dialogs.MetricsDialog;
 import com.peterlaurence.trekme.ui.events.DrawerClosedEvent;
 import com.peterlaurence.trekme.ui.events.RequestImportMapEvent;
 import com.peterlaurence.trekme.ui.mapcalibration.MapCalibrationFragment;
@@ -67,6 +71,7 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.EventBusException;
 import org.greenrobot.eventbus.Subscribe;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -94,6 +99,7 @@ public class MainActivity extends AppCompatActivity
     private static final String TRACKS_MANAGE_FRAGMENT_TAG = "tracksManageFragment";
     private static final String MARKER_MANAGE_FRAGMENT_TAG = "markerManageFragment";
     private static final String MAP_DOWNLOAD_DIALOG_TAG = "mapDownloadDialog";
+    private static final String METRICS_DIALOG_TAG = "metricsDialog";
     private static final List<String> FRAGMENT_TAGS = Collections.unmodifiableList(
             new ArrayList<String>() {{
                 add(MAP_FRAGMENT_TAG);
@@ -129,6 +135,7 @@ public class MainActivity extends AppCompatActivity
     private String mBackFragmentTag;
     private FragmentManager fragmentManager;
     private Snackbar mSnackBarExit;
+    private boolean mResumeDownloadOffered = false;
     private NavigationView mNavigationView;
 
     static {
@@ -231,6 +238,7 @@ public class MainActivity extends AppCompatActivity
         super.onCreate(savedInstanceState);
 
         initMapLoader();
+        TileBitmapCache.init(this);
 
         fragmentManager = this.getSupportFragmentManager();
         setContentView(R.layout.activity_main);
@@ -265,6 +273,12 @@ public class MainActivity extends AppCompatActivity
             } catch (PackageManager.NameNotFoundException e) {
                 e.printStackTrace();
             }
+
+            /* A hidden debug screen */
+            versionTextView.setOnLongClickListener(v -> {
+                new MetricsDialog().show(getSupportFragmentManager(), METRICS_DIALOG_TAG);
+                return true;
+            });
         }
 
         if (drawer != null) {
@@ -403,15 +417,47 @@ public class MainActivity extends AppCompatActivity
                 warnIfBadStorageState();
                 mBackFragmentTag = null;
             }
+            offerToResumeDownload();
         }
     }
 
+    /**
+     * If a map download was interrupted (the app was killed, or the user stopped it), offer to
+     * resume it, once per activity.
+     */
+    private void offerToResumeDownload() {
+        if (mResumeDownloadOffered || DownloadService.getStarted()) return;
+        mResumeDownloadOffered = true;
+
+        List<kotlin.Pair<File, DownloadRequest>> unfinished = DownloadRequest.findUnfinished(
+                TrekMeContext.INSTANCE.getDefaultMapsDownloadDir());
+        if (unfinished.isEmpty()) return;
+        File dir = unfinished.get(0).getFirst();
+
+        DrawerLayout drawer = findViewById(R.id.drawer_layout);
+        if (drawer == null) return;
+        Snackbar snackbar = Snackbar.make(drawer, R.string.download_interrupted, Snackbar.LENGTH_INDEFINITE);
+        snackbar.setAction(R.string.download_resume, v -> {
+            if (DownloadService.getStarted()) return;
+            Intent intent = new Intent(this, DownloadService.class);
+            intent.putExtra(DownloadService.EXTRA_RESUME_MAP_DIR, dir.getAbsolutePath());
+            startService(intent);
+        });
+        snackbar.show();
+    }
+
     @Override
     protected void onStop() {
         EventBus.getDefault().unregister(this);
         super.onStop();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        TileBitmapCache.onTrimMemory(level);
+    }
+
     @Override
     public boolean onNavigationItemSelected(@NonNull MenuItem item) {
         switch (item.getItemId()) {
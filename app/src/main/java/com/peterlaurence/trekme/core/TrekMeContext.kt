@@ -11,10 +11,13 @@ import java.io.IOException
  * Here is defined :
  *
  *  * The root folder of the application on the external storage
- *  * Where maps are searched
+ *  * Where maps are searched, and the file of the catalog of maps found
  *  * The default folder in which new maps downloaded from the internet are imported
  *  * The folder where credentials are stored
  *  * The folder where recordings are saved
+ *  * The folder of the tile store, shared by downloaded maps
+ *  * The file of the sampled tile sizes, used to estimate the size of downloads
+ *  * The folder where metrics of the tile pipeline are dumped
  *
  * @author peterLaurence on 07/10/17 -- converted to Kotlin on 20/11/18
  */
@@ -29,8 +32,15 @@ object TrekMeContext {
     val defaultMapsDir = defaultAppDir
 
     val defaultMapsDownloadDir = File(defaultMapsDir, "downloaded")
+    /* The catalog of the maps found, to list them without parsing their json file */
+    val mapCatalogFile = File(defaultAppDir, ".map_catalog.json")
     val recordingsDir = File(defaultAppDir, "recordings")
     val credentialsDir = File(defaultAppDir, "credentials")
+    /* Hidden, so it isn't searched for maps */
+    val tileStoreDir = File(defaultAppDir, ".tilestore")
+    /* The sizes of the tiles sampled to estimate the size of downloads */
+    val tileSizesFile = File(tileStoreDir, "tile_sizes.properties")
+    val metricsDir = File(defaultAppDir, "metrics")
     private const val TAG = "TrekMeContext"
 
     /**
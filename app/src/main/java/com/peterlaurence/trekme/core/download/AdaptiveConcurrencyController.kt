@@ -0,0 +1,139 @@
+package com.peterlaurence.trekme.core.download
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Limits the number of in-flight tile requests, and adapts that limit to how the server responds
+ * using AIMD (additive increase, multiplicative decrease):
+ *
+ * * Each time a window of requests (as many as the current limit) succeeds, the limit grows by one.
+ * But only if the average latency stays under [LATENCY_TOLERANCE] times the best average latency
+ * observed so far. Otherwise, adding requests would only queue them on the server side.
+ * * When the server throttles (429), fails (5xx) or can't be reached, the limit is halved. The
+ * failures of the requests which were already in flight at that time are then ignored, as they
+ * are likely to fail too.
+ *
+ * The limit always stays between 1 and [maxConcurrency].
+ *
+ * Each successful [acquire] must be followed by exactly one call to [onSuccess] or [onFailure].
+ */
+class AdaptiveConcurrencyController(private val maxConcurrency: Int, initialConcurrency: Int) {
+    private val lock = ReentrantLock()
+    private val permitAvailable = lock.newCondition()
+
+    @Volatile
+    var concurrency: Int = initialConcurrency.coerceIn(1, maxConcurrency)
+        private set
+
+    /* Number of successful tiles per second, updated every second */
+    @Volatile
+    var tilesPerSecond: Double = 0.0
+        private set
+
+    /* Total number of requests refused by the server with a 429 status */
+    @Volatile
+    var throttledCount: Int = 0
+        private set
+
+    @Volatile
+    var errorCount: Int = 0
+        private set
+
+    private var inFlight = 0
+    private var successesInWindow = 0
+
+    /* After a decrease, the completion of the requests which were in flight is ignored */
+    private var completionsSinceDecrease = 0
+    private var decreaseCooldown = 0
+    private var latencyAvgMs = 0.0
+    private var bestLatencyAvgMs = Double.MAX_VALUE
+
+    private var rateCount = 0
+    private var rateStartNanos = System.nanoTime()
+
+    companion object {
+        const val LATENCY_TOLERANCE = 2.0
+        private const val LATENCY_SMOOTHING = 0.2
+        private const val HTTP_TOO_MANY_REQUESTS = 429
+    }
+
+    /**
+     * Wait for the number of in-flight requests to get under the current limit.
+     *
+     * @return `false` if no request could be started within [timeoutMs]
+     */
+    fun acquire(timeoutMs: Long): Boolean {
+        lock.withLock {
+            var remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+            while (inFlight >= concurrency) {
+                if (remainingNanos <= 0) return false
+                remainingNanos = permitAvailable.awaitNanos(remainingNanos)
+            }
+            inFlight++
+            return true
+        }
+    }
+
+    fun onSuccess(latencyMs: Long) {
+        lock.withLock {
+            release()
+            updateRate()
+
+            latencyAvgMs = if (latencyAvgMs == 0.0) {
+                latencyMs.toDouble()
+            } else {
+                LATENCY_SMOOTHING * latencyMs + (1 - LATENCY_SMOOTHING) * latencyAvgMs
+            }
+
+            successesInWindow++
+            if (successesInWindow >= concurrency) {
+                successesInWindow = 0
+                if (latencyAvgMs <= LATENCY_TOLERANCE * bestLatencyAvgMs && concurrency < maxConcurrency) {
+                    concurrency++
+                    permitAvailable.signal()
+                }
+                bestLatencyAvgMs = Math.min(bestLatencyAvgMs, latencyAvgMs)
+            }
+        }
+    }
+
+    /**
+     * @param responseCode the HTTP status code, or a negative value if the server couldn't be
+     * reached
+     */
+    fun onFailure(responseCode: Int) {
+        lock.withLock {
+            release()
+            errorCount++
+            if (responseCode == HTTP_TOO_MANY_REQUESTS) throttledCount++
+
+            /* Other client errors (e.g 404) don't tell anything about the server load */
+            val isCongestion = responseCode < 0 || responseCode == HTTP_TOO_MANY_REQUESTS || responseCode >= 500
+            if (isCongestion && completionsSinceDecrease > decreaseCooldown) {
+                concurrency = Math.max(1, concurrency / 2)
+                completionsSinceDecrease = 0
+                decreaseCooldown = inFlight
+                successesInWindow = 0
+            }
+        }
+    }
+
+    private fun release() {
+        inFlight--
+        if (completionsSinceDecrease <= decreaseCooldown) completionsSinceDecrease++
+        permitAvailable.signal()
+    }
+
+    private fun updateRate() {
+        rateCount++
+        val now = System.nanoTime()
+        val elapsedNanos = now - rateStartNanos
+        if (elapsedNanos >= TimeUnit.SECONDS.toNanos(1)) {
+            tilesPerSecond = rateCount * 1e9 / elapsedNanos
+            rateCount = 0
+            rateStartNanos = now
+        }
+    }
+}
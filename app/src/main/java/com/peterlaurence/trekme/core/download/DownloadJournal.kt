@@ -0,0 +1,154 @@
+package com.peterlaurence.trekme.core.download
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A compact on-disk record of the progress of a map download, so that an interrupted download can
+ * be resumed into the same destination folder instead of being restarted from scratch.
+ *
+ * The journal file is made of a header (the key of the job and its total number of tiles), followed
+ * by a bitset. The n-th bit is set when the n-th tile of the tile sequence has been written to disk.
+ * Bits are set in memory without locking, and only the words which changed are flushed, in batches
+ * of [FLUSH_BATCH_SIZE] tiles.
+ *
+ * This class is thread-safe.
+ */
+class DownloadJournal private constructor(val dir: File, val key: String, val tileCount: Long,
+                                          private val file: RandomAccessFile,
+                                          private val headerSize: Long, words: LongArray) {
+    private val bits = AtomicLongArray(words)
+    private val flushedWords = words.copyOf()
+    private val pending = AtomicInteger(0)
+    private var closed = false
+
+    companion object {
+        const val FILE_NAME = ".download-journal"
+        private const val FLUSH_BATCH_SIZE = 256
+
+        /**
+         * Create a new journal in [dir], for the job identified by [key].
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun create(dir: File, key: String, tileCount: Long): DownloadJournal {
+            val file = RandomAccessFile(File(dir, FILE_NAME), "rw")
+            file.setLength(0)
+            file.writeUTF(key)
+            file.writeLong(tileCount)
+            val headerSize = file.filePointer
+            val words = LongArray(wordCount(tileCount))
+            file.write(ByteArray(words.size * 8))
+            return DownloadJournal(dir, key, tileCount, file, headerSize, words)
+        }
+
+        /**
+         * @return the journal in [dir], or `null` if there is none or if it's corrupted
+         */
+        @JvmStatic
+        fun open(dir: File): DownloadJournal? {
+            val journalFile = File(dir, FILE_NAME)
+            if (!journalFile.exists()) return null
+
+            var file: RandomAccessFile? = null
+            return try {
+                file = RandomAccessFile(journalFile, "rw")
+                val key = file.readUTF()
+                val tileCount = file.readLong()
+                val headerSize = file.filePointer
+                val bytes = ByteArray(wordCount(tileCount) * 8)
+                file.readFully(bytes)
+                val words = LongArray(bytes.size / 8)
+                ByteBuffer.wrap(bytes).asLongBuffer().get(words)
+                DownloadJournal(dir, key, tileCount, file, headerSize, words)
+            } catch (e: Exception) {
+                /* A corrupted journal is just ignored */
+                file?.close()
+                null
+            }
+        }
+
+        private fun wordCount(tileCount: Long): Int = ((tileCount + 63) / 64).toInt()
+    }
+
+    fun isDone(index: Long): Boolean {
+        val word = bits.get((index ushr 6).toInt())
+        return (word and (1L shl (index and 63).toInt())) != 0L
+    }
+
+    fun markDone(index: Long) {
+        val wordIndex = (index ushr 6).toInt()
+        val mask = 1L shl (index and 63).toInt()
+        while (true) {
+            val word = bits.get(wordIndex)
+            if ((word and mask) != 0L) return
+            if (bits.compareAndSet(wordIndex, word, word or mask)) break
+        }
+
+        if (pending.incrementAndGet() >= FLUSH_BATCH_SIZE) {
+            flush()
+        }
+    }
+
+    /**
+     * Write to disk the words of the bitset which changed since the last flush.
+     */
+    @Synchronized
+    fun flush() {
+        if (closed) return
+        pending.set(0)
+
+        try {
+            var i = 0
+            while (i < flushedWords.size) {
+                if (bits.get(i) == flushedWords[i]) {
+                    i++
+                    continue
+                }
+
+                /* Write the whole run of changed words at once */
+                val start = i
+                while (i < flushedWords.size && bits.get(i) != flushedWords[i]) i++
+                val buffer = ByteBuffer.allocate((i - start) * 8)
+                for (j in start until i) {
+                    val word = bits.get(j)
+                    buffer.putLong(word)
+                    flushedWords[j] = word
+                }
+                file.seek(headerSize + start * 8L)
+                file.write(buffer.array())
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
+    }
+
+    /**
+     * Flush and release the journal. The job can be resumed later.
+     */
+    @Synchronized
+    fun close() {
+        flush()
+        if (!closed) {
+            closed = true
+            try {
+                file.close()
+            } catch (e: IOException) {
+                e.printStackTrace()
+            }
+        }
+    }
+
+    /**
+     * The job is done, so it must not be resumed anymore.
+     */
+    @Synchronized
+    fun finish() {
+        close()
+        File(dir, FILE_NAME).delete()
+    }
+}
@@ -0,0 +1,115 @@
+package com.peterlaurence.trekme.core.download
+
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import com.peterlaurence.trekme.core.map.gson.MapGson.Calibration.CalibrationPoint
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.wmts.LevelRange
+import com.peterlaurence.trekme.core.mapsource.wmts.RowSpans
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRanges
+import java.io.File
+import java.io.FileFilter
+import java.io.IOException
+import java.security.MessageDigest
+
+/**
+ * A map download, as resolved from what the user chose: the tiles of each level, how the map is
+ * calibrated and how its tiles are stored.
+ *
+ * It's saved in the destination folder next to the [DownloadJournal], so that an interrupted
+ * download can be resumed from that folder alone, without the user choosing the area again.
+ */
+class DownloadRequest(val source: MapSource, val layer: String, val tiles: TileRanges,
+                      val calibrationPoints: Pair<CalibrationPoint, CalibrationPoint>,
+                      val packTiles: Boolean, val overviewLevelCount: Int) {
+
+    /**
+     * Identifies the tiles of the download and the way they're stored. Two requests with the same
+     * key produce the same tiles in the same order, whatever the area the user drew.
+     */
+    val key: String by lazy {
+        val json = gson.toJson(KeyGson(source, layer, tiles.levels.map { it.toGson() }, packTiles,
+                overviewLevelCount))
+        val digest = MessageDigest.getInstance("SHA-1").digest(json.toByteArray())
+        digest.joinToString("") { String.format("%02x", it) }
+    }
+
+    companion object {
+        const val FILE_NAME = ".download-request.json"
+        private val gson = Gson()
+
+        /**
+         * @return the request saved in [dir], or `null` if there is none or if it's corrupted
+         */
+        @JvmStatic
+        fun read(dir: File): DownloadRequest? {
+            return try {
+                gson.fromJson(File(dir, FILE_NAME).readText(), RequestGson::class.java)?.toRequest()
+            } catch (e: IOException) {
+                null
+            } catch (e: JsonParseException) {
+                null
+            } catch (e: RuntimeException) {
+                /* A field is missing */
+                null
+            }
+        }
+
+        /**
+         * @return the folders of the direct sub-folders of [parentDir] which hold an interrupted
+         * download, along with their request
+         */
+        @JvmStatic
+        fun findUnfinished(parentDir: File): List<Pair<File, DownloadRequest>> {
+            val dirs = parentDir.listFiles(FileFilter {
+                it.isDirectory && File(it, DownloadJournal.FILE_NAME).exists()
+            }) ?: return listOf()
+            return dirs.sortedBy { it.lastModified() }.mapNotNull { dir -> read(dir)?.let { dir to it } }
+        }
+
+        @JvmStatic
+        fun delete(dir: File) {
+            File(dir, FILE_NAME).delete()
+        }
+    }
+
+    /**
+     * Save the request in the destination folder [dir]. It's written to a temporary file first,
+     * so that it's never read half written.
+     */
+    @Throws(IOException::class)
+    fun write(dir: File) {
+        val json = gson.toJson(RequestGson(source, layer, tiles.levels.map { it.toGson() },
+                listOf(calibrationPoints.first, calibrationPoints.second), packTiles,
+                overviewLevelCount))
+        val tmpFile = File(dir, "$FILE_NAME.tmp")
+        tmpFile.writeText(json)
+        if (!tmpFile.renameTo(File(dir, FILE_NAME))) {
+            tmpFile.delete()
+            throw IOException("Couldn't save the download request")
+        }
+    }
+
+    private fun LevelRange.toGson(): LevelGson {
+        return LevelGson(level, indexLevel, rowTop, rowBottom, colLeft, colRight, spans?.rows)
+    }
+
+    private class KeyGson(val source: MapSource, val layer: String, val levels: List<LevelGson>,
+                          val packTiles: Boolean, val overviewLevelCount: Int)
+
+    private class RequestGson(val source: MapSource, val layer: String, val levels: List<LevelGson>,
+                              val calibrationPoints: List<CalibrationPoint>, val packTiles: Boolean,
+                              val overviewLevelCount: Int) {
+        fun toRequest(): DownloadRequest {
+            val tiles = TileRanges(levels.map {
+                LevelRange(it.level, it.indexLevel, it.rowTop, it.rowBottom, it.colLeft, it.colRight,
+                        it.spans?.let { spans -> RowSpans(spans) })
+            })
+            return DownloadRequest(source, layer, tiles, calibrationPoints[0] to calibrationPoints[1],
+                    packTiles, overviewLevelCount)
+        }
+    }
+
+    private class LevelGson(val level: Int, val indexLevel: Int, val rowTop: Int, val rowBottom: Int,
+                            val colLeft: Int, val colRight: Int, val spans: Array<IntArray>?)
+}
@@ -0,0 +1,57 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import java.io.File
+import java.io.IOException
+
+/**
+ * The list of tiles which couldn't be downloaded, stored in the folder of the map. Along with the
+ * [MapSource] and the layer they come from, this is all that is needed to download only those
+ * tiles again later on (to "repair" the map).
+ *
+ * It's a text file: the source and the layer on the two first lines, then one tile per line.
+ */
+class FailedTilesManifest(val source: MapSource, val layer: String, val tiles: List<Tile>) {
+    companion object {
+        const val FILE_NAME = "failed-tiles.txt"
+
+        @JvmStatic
+        fun exists(dir: File): Boolean = File(dir, FILE_NAME).exists()
+
+        /**
+         * @return the manifest of the map in [dir], or `null` if there is none or if it's corrupted
+         */
+        @JvmStatic
+        fun read(dir: File): FailedTilesManifest? {
+            return try {
+                val lines = File(dir, FILE_NAME).readLines()
+                val source = MapSource.valueOf(lines[0])
+                val layer = lines[1]
+                val tiles = lines.drop(2).filter { it.isNotBlank() }.map {
+                    val values = it.split(' ').map { v -> v.toInt() }
+                    Tile(values[0], values[1], values[2], values[3], values[4], values[5])
+                }
+                FailedTilesManifest(source, layer, tiles)
+            } catch (e: Exception) {
+                null
+            }
+        }
+
+        @JvmStatic
+        fun delete(dir: File) {
+            File(dir, FILE_NAME).delete()
+        }
+    }
+
+    @Throws(IOException::class)
+    fun write(dir: File) {
+        File(dir, FILE_NAME).printWriter().use { writer ->
+            writer.println(source.name)
+            writer.println(layer)
+            tiles.forEach {
+                writer.println("${it.level} ${it.row} ${it.col} ${it.indexLevel} ${it.indexRow} ${it.indexCol}")
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.peterlaurence.trekme.core.download
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Rect
+import com.peterlaurence.trekme.core.mapsource.wmts.LevelRange
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Builds the lowest levels of a map from the level above them, instead of downloading them. Each
+ * tile is made of its 4 child tiles, each one being downsampled by 2.
+ *
+ * This relies on the levels being nested: the tiles of a level cover exactly the area of the
+ * tiles of the level below. So the children of the tile at (indexRow, indexCol) are at
+ * (2 * indexRow + 0..1, 2 * indexCol + 0..1) in the next level.
+ *
+ * Levels are built from the highest to the lowest, and the tiles of a level are built in parallel
+ * by at most [threadCount] threads.
+ *
+ * @param readTile reads a tile already on disk, or returns `null` if there is none
+ * @param writeTile writes a tile which was built
+ */
+class OverviewLevelBuilder(private val readTile: (Tile) -> ByteArray?,
+                           private val writeTile: (Tile, ByteArray) -> Boolean,
+                           private val format: Bitmap.CompressFormat,
+                           private val threadCount: Int = Math.min(4, Runtime.getRuntime().availableProcessors())) {
+    private val quality = 90
+
+    /**
+     * @param levels all levels of the map, in ascending order
+     * @param overviewLevelCount the number of levels to build, starting from the lowest one
+     * @return the number of tiles which couldn't be built
+     */
+    fun build(levels: List<LevelRange>, overviewLevelCount: Int): Int {
+        val failedCount = AtomicInteger(0)
+        val executor = Executors.newFixedThreadPool(threadCount)
+        try {
+            for (i in (overviewLevelCount - 1) downTo 0) {
+                val parent = levels[i]
+                val child = levels[i + 1]
+
+                /* One task per row, and the next level waits for this one to be complete */
+                val tasks = (0..(parent.rowBottom - parent.rowTop)).map { indexRow ->
+                    Callable {
+                        for (indexCol in 0..(parent.colRight - parent.colLeft)) {
+                            /* Outside of a corridor, there is nothing to build */
+                            if (!parent.contains(parent.rowTop + indexRow, parent.colLeft + indexCol)) continue
+                            if (!buildTile(parent, child, indexRow, indexCol)) {
+                                failedCount.incrementAndGet()
+                            }
+                        }
+                    }
+                }
+                executor.invokeAll(tasks)
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+        } finally {
+            executor.shutdown()
+        }
+        return failedCount.get()
+    }
+
+    private fun buildTile(parent: LevelRange, child: LevelRange, indexRow: Int, indexCol: Int): Boolean {
+        /* Options are written by the decoder, so they can't be shared between threads */
+        val decodeOptions = BitmapFactory.Options().apply {
+            inSampleSize = 2
+        }
+        var bitmap: Bitmap? = null
+        return try {
+            for (dy in 0..1) {
+                for (dx in 0..1) {
+                    val childIndexRow = 2 * indexRow + dy
+                    val childIndexCol = 2 * indexCol + dx
+                    val childTile = Tile(child.level, child.rowTop + childIndexRow,
+                            child.colLeft + childIndexCol, child.indexLevel, childIndexRow,
+                            childIndexCol)
+
+                    /* A missing child leaves a blank quarter */
+                    val bytes = readTile(childTile) ?: continue
+                    val childBitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.size, decodeOptions)
+                            ?: continue
+                    val half = childBitmap.width
+                    val target = bitmap ?: Bitmap.createBitmap(2 * half, 2 * half, Bitmap.Config.ARGB_8888).also {
+                        if (format == Bitmap.CompressFormat.JPEG) it.eraseColor(Color.WHITE)
+                        bitmap = it
+                    }
+                    Canvas(target).drawBitmap(childBitmap, null,
+                            Rect(dx * half, dy * half, (dx + 1) * half, (dy + 1) * half), null)
+                    childBitmap.recycle()
+                }
+            }
+
+            val built = bitmap ?: return false
+            val output = ByteArrayOutputStream()
+            built.compress(format, quality, output)
+            val tile = Tile(parent.level, parent.rowTop + indexRow, parent.colLeft + indexCol,
+                    parent.indexLevel, indexRow, indexCol)
+            writeTile(tile, output.toByteArray())
+        } catch (e: OutOfMemoryError) {
+            false
+        } finally {
+            bitmap?.recycle()
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.peterlaurence.trekme.core.download
+
+import java.util.concurrent.DelayQueue
+import java.util.concurrent.Delayed
+import java.util.concurrent.TimeUnit
+
+/**
+ * Holds items which failed to be processed, until they can be retried. The delay before an item
+ * is available again doubles with each failed attempt: [baseDelayMs], then twice that, and so on.
+ * After [maxAttempts] failed attempts, an item is rejected.
+ *
+ * This class is thread-safe.
+ */
+class RetryQueue<T>(private val maxAttempts: Int, private val baseDelayMs: Long) {
+    private val queue = DelayQueue<Entry<T>>()
+
+    val size: Int
+        get() = queue.size
+
+    /**
+     * @param failedAttempts the number of times the [item] failed to be processed so far
+     * @return `false` if the [item] won't be retried
+     */
+    fun offer(item: T, failedAttempts: Int): Boolean {
+        if (failedAttempts >= maxAttempts) return false
+
+        val delayMs = baseDelayMs shl (failedAttempts - 1).coerceAtLeast(0)
+        return queue.offer(Entry(item, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs)))
+    }
+
+    /**
+     * @return an item whose delay has elapsed, or `null` if there is none
+     */
+    fun poll(): T? = queue.poll()?.item
+
+    /**
+     * Same as [poll], but waits at most [timeoutMs] for an item to be available.
+     */
+    fun poll(timeoutMs: Long): T? = queue.poll(timeoutMs, TimeUnit.MILLISECONDS)?.item
+
+    private class Entry<T>(val item: T, private val readyAtNanos: Long) : Delayed {
+        override fun getDelay(unit: TimeUnit): Long {
+            return unit.convert(readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS)
+        }
+
+        override fun compareTo(other: Delayed): Int {
+            return getDelay(TimeUnit.NANOSECONDS).compareTo(other.getDelay(TimeUnit.NANOSECONDS))
+        }
+    }
+}
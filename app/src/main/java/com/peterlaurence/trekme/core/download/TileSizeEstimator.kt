@@ -0,0 +1,142 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.wmts.LevelRange
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRanges
+import java.util.*
+
+/**
+ * Estimates the size of a download from the size of some of its tiles, instead of an average size
+ * which is the same for all sources.
+ *
+ * Tiles are sampled per level (the size of a tile depends a lot on the level), and within a level
+ * one tile is taken from each of [samplesPerLevel] equal parts of the level, so that the sample is
+ * spread over the area. Sizes are kept in the [TileSizeSamples], so only the levels for which not
+ * enough sizes are known require to fetch tiles.
+ *
+ * An estimator is meant to be kept while the user defines the download, as it fetches the tiles of
+ * a level once at most. When a tile can't be fetched (e.g offline, or over the quota of the source),
+ * the other tiles of the level aren't either. The levels without any known size are assumed to be
+ * like the nearest level which has, or else to have tiles of the [defaultTileSize].
+ *
+ * The total is extrapolated level by level, and given with a 95% confidence interval.
+ *
+ * @param fetchTileSize gets the size in bytes of a tile, or `null` if it can't be fetched
+ */
+class TileSizeEstimator(private val samples: TileSizeSamples,
+                        private val samplesKey: String,
+                        private val fetchTileSize: (Tile) -> Long?,
+                        private val samplesPerLevel: Int = 6,
+                        private val random: Random = Random(),
+                        private val defaultTileSize: Long = AVERAGE_JPEG_TILE_SIZE) {
+    /* Only used by the thread which makes estimates */
+    private val fetchedLevels = HashSet<Int>()
+
+    companion object {
+        /* The z-value of a 95% confidence interval */
+        private const val Z_95 = 1.96
+
+        /* When the size of the tiles of a level is unknown */
+        const val AVERAGE_JPEG_TILE_SIZE = 16900L
+        const val AVERAGE_PNG_TILE_SIZE = 25000L
+        private const val DEFAULT_RELATIVE_DEVIATION = 0.5
+
+        /**
+         * @return the average size of a tile of the [source], depending on its image format
+         */
+        @JvmStatic
+        fun averageTileSize(source: MapSource): Long {
+            return when (source) {
+                MapSource.OPEN_STREET_MAP -> AVERAGE_PNG_TILE_SIZE
+                else -> AVERAGE_JPEG_TILE_SIZE
+            }
+        }
+    }
+
+    /**
+     * This makes network requests, so it must not be called from the UI thread.
+     */
+    fun estimate(tiles: TileRanges): SizeEstimate {
+        val stats = tiles.levels.map { range ->
+            val sizes = getSizes(range)
+            if (sizes.isEmpty()) null else LevelStats.of(sizes)
+        }
+
+        var total = 0.0
+        var variance = 0.0
+        var sampleCount = 0
+        tiles.levels.forEachIndexed { i, range ->
+            /* A level without any known size is assumed to be like the nearest level which has */
+            val levelStats = stats[i] ?: findNearest(stats, i)
+                    ?: LevelStats(defaultTileSize.toDouble(), Math.pow(defaultTileSize * DEFAULT_RELATIVE_DEVIATION, 2.0), 1)
+            val n = range.tileCount.toDouble()
+            total += n * levelStats.mean
+            variance += n * n * levelStats.variance / levelStats.count * finitePopulationCorrection(levelStats.count, n)
+            sampleCount += stats[i]?.count ?: 0
+        }
+
+        val margin = Z_95 * Math.sqrt(variance)
+        return SizeEstimate(total.toLong(), Math.max(0.0, total - margin).toLong(),
+                (total + margin).toLong(), sampleCount)
+    }
+
+    /**
+     * The known sizes of the tiles of a level, completed with sizes of tiles of the [range] if
+     * there aren't enough of them, and if the tiles of that level weren't fetched already.
+     */
+    private fun getSizes(range: LevelRange): List<Long> {
+        val known = samples.get(samplesKey, range.level)
+        val missing = Math.min(samplesPerLevel - known.size.toLong(), range.tileCount).toInt()
+        if (missing <= 0 || !fetchedLevels.add(range.level)) return known
+
+        val fetched = mutableListOf<Long>()
+        for (i in 0 until missing) {
+            /* A random tile in each part of the level */
+            val start = range.tileCount * i / missing
+            val end = range.tileCount * (i + 1) / missing
+            val position = start + (random.nextDouble() * (end - start)).toLong()
+            val size = fetchTileSize(range.tileAt(position)) ?: break
+            samples.add(samplesKey, range.level, size)
+            fetched.add(size)
+        }
+        return known + fetched
+    }
+
+    private fun findNearest(stats: List<LevelStats?>, index: Int): LevelStats? {
+        for (distance in 1 until stats.size) {
+            stats.getOrNull(index - distance)?.also { return it }
+            stats.getOrNull(index + distance)?.also { return it }
+        }
+        return null
+    }
+
+    /**
+     * The variance of the estimate decreases as the sample covers a larger part of the level.
+     */
+    private fun finitePopulationCorrection(sampleCount: Int, n: Double): Double {
+        return if (n > 1) Math.max(0.0, (n - sampleCount) / (n - 1)) else 0.0
+    }
+
+    private class LevelStats(val mean: Double, val variance: Double, val count: Int) {
+        companion object {
+            fun of(sizes: List<Long>): LevelStats {
+                val mean = sizes.sum().toDouble() / sizes.size
+
+                /* With a single size, the deviation can't be computed */
+                val variance = if (sizes.size > 1) {
+                    sizes.sumByDouble { (it - mean) * (it - mean) } / (sizes.size - 1)
+                } else {
+                    Math.pow(mean * DEFAULT_RELATIVE_DEVIATION, 2.0)
+                }
+                return LevelStats(mean, variance, sizes.size)
+            }
+        }
+    }
+}
+
+/**
+ * The estimated size of a download, in bytes, and the bounds of its 95% confidence interval.
+ * The [sampleCount] is the number of tile sizes the estimate is based on.
+ */
+data class SizeEstimate(val bytes: Long, val lowBytes: Long, val highBytes: Long, val sampleCount: Int)
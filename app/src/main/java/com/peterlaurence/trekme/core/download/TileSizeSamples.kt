@@ -0,0 +1,62 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import java.io.File
+import java.io.IOException
+import java.util.*
+
+/**
+ * The sizes of tiles previously fetched, per source, layer and level. They are kept in a file, so
+ * that estimating the size of a download doesn't require to fetch tiles each time.
+ *
+ * Only the last [maxSizesPerLevel] sizes of each level are kept. This class is thread-safe.
+ */
+class TileSizeSamples(private val file: File, private val maxSizesPerLevel: Int = 32) {
+    private val properties: Properties by lazy { load() }
+    private var changed = false
+
+    companion object {
+        @JvmStatic
+        fun makeKey(source: MapSource, layer: String): String = "$source|$layer"
+    }
+
+    @Synchronized
+    fun get(key: String, level: Int): List<Long> {
+        val value = properties.getProperty("$key|$level") ?: return listOf()
+        return value.split(',').mapNotNull { it.toLongOrNull() }
+    }
+
+    @Synchronized
+    fun add(key: String, level: Int, size: Long) {
+        val sizes = (get(key, level) + size).takeLast(maxSizesPerLevel)
+        properties.setProperty("$key|$level", sizes.joinToString(","))
+        changed = true
+    }
+
+    /**
+     * Write the sizes added since the last save, if any.
+     */
+    @Synchronized
+    fun save() {
+        if (!changed) return
+        try {
+            file.parentFile?.mkdirs()
+            file.outputStream().use { properties.store(it, null) }
+            changed = false
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
+    }
+
+    private fun load(): Properties {
+        val properties = Properties()
+        if (file.exists()) {
+            try {
+                file.inputStream().use { properties.load(it) }
+            } catch (e: IOException) {
+                e.printStackTrace()
+            }
+        }
+        return properties
+    }
+}
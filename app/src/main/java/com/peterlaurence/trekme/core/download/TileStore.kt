@@ -0,0 +1,231 @@
+package com.peterlaurence.trekme.core.download
+
+import android.system.ErrnoException
+import android.system.Os
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * A store of the tiles downloaded from a given [MapSource] and layer, shared by all maps. Tiles are
+ * identified by their real level, row and col. So when several overlapping areas are downloaded,
+ * the tiles they have in common are only fetched once.
+ *
+ * Tiles are added to, and taken from the store with a hard link when possible, so a tile present
+ * in both a map and the store only takes space once. Otherwise, the tile is copied.
+ *
+ * The space held by the stores of all sources under [rootDir] alone is limited to [maxBytes].
+ * Beyond that, the least recently used tiles which aren't linked to a map are removed, in the
+ * background. A tile linked to a map takes no more space in the store, so it's neither counted nor
+ * removed. The modification time of a tile is its last use. It's only updated while the tile isn't
+ * linked, as a linked tile shares it with the tile of the map.
+ *
+ * This class is thread-safe: a tile file is only created by a rename, once entirely written.
+ */
+class TileStore(private val rootDir: File, source: MapSource, layer: String,
+                private val maxBytes: Long = MAX_BYTES,
+                private val linkCount: (File) -> Int = ::osLinkCount,
+                private val hardLink: (File, File) -> Boolean = ::osLink) {
+    val dir = File(rootDir, source.name + File.separator + sanitize(layer))
+
+    companion object {
+        const val MAX_BYTES = 256_000_000L
+
+        /* Once over the limit, tiles are removed until the stores are down to this part of it */
+        private const val TRIM_RATIO = 0.8
+
+        /* The size of the stores under each root, computed on the first tile added. Between two
+         * trims, the tiles added count even if they're linked to a map, so it's an upper bound */
+        private val sizes = HashMap<File, Long>()
+
+        /* The roots whose stores are being trimmed */
+        private val trimmedRoots = HashSet<File>()
+        private val trimExecutor = Executors.newSingleThreadExecutor()
+
+        private fun sanitize(name: String): String = name.replace(Regex("[^A-Za-z0-9._-]"), "_")
+
+        /**
+         * @return the space held by the stores under [rootDir] alone. The files of the stores are
+         * listed, so this shouldn't be called on the UI thread.
+         */
+        @JvmStatic
+        fun getSize(rootDir: File): Long {
+            synchronized(sizes) {
+                sizes[rootDir]?.also { return it }
+            }
+            val size = listOwnedTiles(rootDir, ::osLinkCount).fold(0L) { acc, tile -> acc + tile.length }
+            return synchronized(sizes) {
+                sizes.getOrPut(rootDir) { size }
+            }
+        }
+
+        /**
+         * Wait for the trims scheduled so far to be done.
+         */
+        internal fun awaitTrims() {
+            trimExecutor.submit(Callable { }).get()
+        }
+
+        /* The tile files are at <source>/<layer>/<level>/<row>/<col> */
+        private fun listTiles(rootDir: File): Sequence<File> {
+            return rootDir.walkTopDown().maxDepth(5).filter {
+                it.isFile && !it.name.endsWith(".tmp") && it.parentFile != rootDir
+            }
+        }
+
+        /* The tiles which aren't linked to a map, so which take space only in the store */
+        private fun listOwnedTiles(rootDir: File, linkCount: (File) -> Int): Sequence<OwnedTile> {
+            return listTiles(rootDir).filter { linkCount(it) == 1 }.map {
+                OwnedTile(it, it.lastModified(), it.length())
+            }
+        }
+
+        private fun osLinkCount(file: File): Int {
+            return try {
+                Os.stat(file.path).st_nlink.toInt()
+            } catch (e: ErrnoException) {
+                0
+            }
+        }
+
+        private fun osLink(src: File, dst: File): Boolean {
+            return try {
+                Os.link(src.path, dst.path)
+                true
+            } catch (e: ErrnoException) {
+                false
+            }
+        }
+    }
+
+    /**
+     * @return the file of the tile in the store, or `null` if the store doesn't have it
+     */
+    fun find(tile: Tile): File? {
+        val file = getFile(tile)
+        if (file.length() <= 0) return null
+
+        /* It's used, so it's the last to be removed. A linked tile isn't removed anyway */
+        if (linkCount(file) == 1) file.setLastModified(System.currentTimeMillis())
+        return file
+    }
+
+    /**
+     * Add a tile, from a tile file of a map.
+     */
+    fun add(tile: Tile, tileFile: File) {
+        val file = getFile(tile)
+        if (file.length() > 0) return
+        file.parentFile.mkdirs()
+        val tmpFile = makeTmpFile(file)
+        try {
+            if (!hardLink(tileFile, tmpFile)) {
+                tileFile.copyTo(tmpFile, overwrite = true)
+            }
+            if (commit(tmpFile, file)) onAdded(file.length())
+        } catch (e: IOException) {
+            tmpFile.delete()
+        }
+    }
+
+    /**
+     * Add a tile, from its bytes.
+     */
+    fun add(tile: Tile, bytes: ByteArray) {
+        val file = getFile(tile)
+        if (file.length() > 0) return
+        file.parentFile.mkdirs()
+        val tmpFile = makeTmpFile(file)
+        try {
+            tmpFile.writeBytes(bytes)
+            if (commit(tmpFile, file)) onAdded(bytes.size.toLong())
+        } catch (e: IOException) {
+            tmpFile.delete()
+        }
+    }
+
+    /**
+     * Create the tile file of a map from the store.
+     *
+     * @return `false` if the store doesn't have the tile, or if it couldn't be copied
+     */
+    fun copyTo(tile: Tile, tileFile: File): Boolean {
+        val file = find(tile) ?: return false
+        tileFile.parentFile.mkdirs()
+        val tmpFile = makeTmpFile(tileFile)
+        return try {
+            if (!hardLink(file, tmpFile)) {
+                file.copyTo(tmpFile, overwrite = true)
+            }
+            commit(tmpFile, tileFile)
+        } catch (e: IOException) {
+            tmpFile.delete()
+            false
+        }
+    }
+
+    /**
+     * When the size of the stores isn't known yet or is over the limit, a trim is scheduled. It
+     * computes the size, and removes tiles if needed.
+     */
+    private fun onAdded(length: Long) {
+        synchronized(sizes) {
+            val size = sizes[rootDir]?.plus(length)
+            if (size != null) sizes[rootDir] = size
+            if ((size == null || size > maxBytes) && trimmedRoots.add(rootDir)) {
+                trimExecutor.execute { trim() }
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently used tiles which aren't linked to a map, until the space held by
+     * the stores alone is under the limit again. The tiles added meanwhile are counted on top.
+     */
+    private fun trim() {
+        val sizeBefore = synchronized(sizes) { sizes[rootDir] ?: 0L }
+        val tiles = listOwnedTiles(rootDir, linkCount).sortedBy { it.lastModified }.toList()
+        var size = tiles.fold(0L) { acc, tile -> acc + tile.length }
+        if (size > maxBytes) {
+            val target = (maxBytes * TRIM_RATIO).toLong()
+            for (tile in tiles) {
+                if (size <= target) break
+                if (tile.file.delete()) {
+                    size -= tile.length
+                    /* Remove the folder of the row once empty */
+                    tile.file.parentFile.delete()
+                }
+            }
+        }
+        synchronized(sizes) {
+            val added = (sizes[rootDir] ?: 0L) - sizeBefore
+            sizes[rootDir] = size + Math.max(0L, added)
+            trimmedRoots.remove(rootDir)
+        }
+    }
+
+    private fun getFile(tile: Tile): File {
+        return File(dir, "${tile.level}${File.separator}${tile.row}${File.separator}${tile.col}")
+    }
+
+    /* Each thread has its own temporary file, as the same tile may be handled by several threads */
+    private fun makeTmpFile(file: File): File {
+        val tmpFile = File(file.parentFile, "${file.name}.${Thread.currentThread().id}.tmp")
+        tmpFile.delete()
+        return tmpFile
+    }
+
+    private fun commit(tmpFile: File, file: File): Boolean {
+        return if (tmpFile.renameTo(file)) {
+            true
+        } else {
+            tmpFile.delete()
+            false
+        }
+    }
+}
+
+private class OwnedTile(val file: File, val lastModified: Long, val length: Long)
@@ -10,6 +10,7 @@ import android.os.ParcelFileDescriptor;
 import androidx.annotation.Nullable;
 import android.util.Log;
 
+import com.peterlaurence.trekme.core.map.cache.ThumbnailCache;
 import com.peterlaurence.trekme.core.map.gson.MapGson;
 import com.peterlaurence.trekme.core.map.gson.MarkerGson;
 import com.peterlaurence.trekme.core.map.gson.RouteGson;
@@ -50,9 +51,13 @@ public class Map {
     private static final String TAG = "Map";
     private static final String UNDEFINED = "undefined";
     private static final int THUMBNAIL_SIZE = 256;
+    private static final String DOWN_SAMPLE_NAME = "down_sample.jpg";
     /* The configuration file of the map, named map.json */
     private final File mConfigFile;
-    private Bitmap mImage;
+    /* The thumbnail is only decoded when it's shown, see ThumbnailCache */
+    private File mImageFile;
+    /* The overview of the map, decoded when the map is opened, see releaseDownSample */
+    private volatile Bitmap mDownSample;
     private BitmapProvider mBitmapProvider;
     private MapBounds mMapBounds;
     /* The Java Object corresponding to the json configuration file */
@@ -77,33 +82,41 @@ public class Map {
         mMarkerGson = new MarkerGson();
         mRouteGson = new RouteGson();
         mConfigFile = jsonFile;
-        mImage = getBitmapFromFile(thumbnail);
+        mImageFile = thumbnail;
     }
 
     protected Map(Parcel in) {
         mConfigFile = new File(in.readString());
-        mImage = in.readParcelable(Bitmap.class.getClassLoader());
+        String imagePath = in.readString();
+        mImageFile = imagePath != null ? new File(imagePath) : null;
     }
 
-    private static
+    /**
+     * Get the overview of the map (see {@link MapOverview}). It's decoded on the first call, then
+     * kept in memory until {@link #releaseDownSample()}.
+     *
+     * @return the overview, or {@code null} if the map has none
+     */
     @Nullable
-    Bitmap getBitmapFromFile(File file) {
-        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-        if (file != null) {
-            return BitmapFactory.decodeFile(file.getAbsolutePath(), bmOptions);
+    public Bitmap getDownSample() {
+        Bitmap downSample = mDownSample;
+        if (downSample == null) {
+            downSample = MapOverview.decode(getDownSampleFile());
+            mDownSample = downSample;
         }
-        return null;
+        return downSample;
     }
 
-    public Bitmap getDownSample() {
-        // TODO : parametrize that
-        File imageFile = new File(mConfigFile.getParentFile(), "down_sample.jpg");
-        try {
-            return BitmapFactory.decodeFile(imageFile.getPath());
-        } catch (OutOfMemoryError | Exception e) {
-            // maybe log here
-        }
-        return null;
+    /**
+     * Forget the overview once the map isn't displayed anymore, so that the overviews of all the
+     * maps opened aren't kept in memory. It's decoded again if the map is opened later.
+     */
+    public void releaseDownSample() {
+        mDownSample = null;
+    }
+
+    public File getDownSampleFile() {
+        return new File(mConfigFile.getParentFile(), DOWN_SAMPLE_NAME);
     }
 
     public
@@ -266,8 +279,12 @@ public class Map {
         mMarkerGson.markers.add(marker);
     }
 
-    public Bitmap getImage() {
-        return mImage;
+    /**
+     * @return the {@link File} of the thumbnail, or {@code null} if the map has none
+     */
+    @Nullable
+    public File getImageFile() {
+        return mImageFile;
     }
 
     public void setImage(Uri imageUri, ContentResolver resolver) {
@@ -283,10 +300,12 @@ public class Map {
                     THUMBNAIL_SIZE, THUMBNAIL_SIZE);
 
             File targetFile = new File(getDirectory(), "image.jpg");
-            OutputStream outStream = new FileOutputStream(targetFile);
-            thumbnail.compress(Bitmap.CompressFormat.JPEG, 80, outStream);
+            try (OutputStream outStream = new FileOutputStream(targetFile)) {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, 80, outStream);
+            }
 
-            mImage = thumbnail;
+            ThumbnailCache.invalidate(targetFile);
+            mImageFile = targetFile;
             mMapGson.thumbnail = targetFile.getName();
         } catch (Exception e) {
             //TODO: alert the user that the new image could not be set
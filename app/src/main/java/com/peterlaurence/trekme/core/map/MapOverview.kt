@@ -0,0 +1,151 @@
+package com.peterlaurence.trekme.core.map
+
+import android.graphics.*
+import android.util.Log
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache
+import com.peterlaurence.trekme.core.map.gson.MapGson
+import com.peterlaurence.trekme.model.providers.bitmap.PrefetchableBitmapProvider
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * The overview of a map is a small image of the whole map, stored next to its json file (see
+ * [Map.getDownSampleFile]). It's shown under the tiles when the map is opened, so that the map is
+ * visible on the first frame, while the tiles are decoded.
+ *
+ * It's made from the tiles of the deepest level which fits in [MAX_SIZE], or of the first level if
+ * none fits.
+ */
+object MapOverview {
+    private const val TAG = "MapOverview"
+
+    /* The maximum width and height of an overview, in pixels */
+    const val MAX_SIZE = 1024
+    private const val QUALITY = 80
+
+    /**
+     * Make the overview of a map, unless it already has one. The tiles are read through the
+     * [PrefetchableBitmapProvider] of the map, so this must be called from a background thread.
+     *
+     * @return `true` if the map has an overview
+     */
+    @JvmStatic
+    fun makeIfMissing(map: Map): Boolean {
+        val file = map.downSampleFile
+        if (file.exists()) return true
+        val provider = map.bitmapProvider as? PrefetchableBitmapProvider ?: return false
+        val levels = map.levelList ?: return false
+        val index = chooseLevel(levels.size, map.widthPx, map.heightPx)
+        if (index < 0) return false
+
+        return try {
+            val overview = compose(map, provider, levels[index], levels.size - 1 - index)
+                    ?: return false
+            try {
+                write(overview, file)
+            } finally {
+                overview.recycle()
+            }
+            true
+        } catch (e: OutOfMemoryError) {
+            false
+        } catch (e: IOException) {
+            Log.e(TAG, "Couldn't write the overview of ${map.name}", e)
+            false
+        }
+    }
+
+    /**
+     * Decode an overview, downsampled if it's bigger than [MAX_SIZE].
+     */
+    @JvmStatic
+    fun decode(file: File): Bitmap? {
+        if (!file.exists()) return null
+        val options = BitmapFactory.Options()
+        options.inJustDecodeBounds = true
+        BitmapFactory.decodeFile(file.path, options)
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null
+
+        options.inJustDecodeBounds = false
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight)
+        options.inPreferredConfig = Bitmap.Config.RGB_565
+        return try {
+            BitmapFactory.decodeFile(file.path, options)
+        } catch (e: OutOfMemoryError) {
+            null
+        }
+    }
+
+    /**
+     * @return the index of the level to make the overview from, or -1 if there's no level. Levels
+     * are sorted from the shallowest to the deepest, and each one is twice the size of the previous.
+     */
+    internal fun chooseLevel(levelCount: Int, widthPx: Int, heightPx: Int): Int {
+        if (levelCount <= 0) return -1
+        var size = Math.max(widthPx, heightPx)
+        for (index in levelCount - 1 downTo 1) {
+            if (size <= MAX_SIZE) return index
+            size /= 2
+        }
+        return 0
+    }
+
+    internal fun computeSampleSize(width: Int, height: Int): Int {
+        var sampleSize = 1
+        while (Math.max(width, height) / sampleSize > MAX_SIZE) sampleSize *= 2
+        return sampleSize
+    }
+
+    /**
+     * Draw all the tiles of a level, [depth] levels above the deepest, into one bitmap.
+     */
+    private fun compose(map: Map, provider: PrefetchableBitmapProvider, level: MapGson.Level,
+                        depth: Int): Bitmap? {
+        val levelWidth = map.widthPx shr depth
+        val levelHeight = map.heightPx shr depth
+        val tileWidth = level.tile_size.x
+        val tileHeight = level.tile_size.y
+        if (levelWidth <= 0 || levelHeight <= 0 || tileWidth <= 0 || tileHeight <= 0) return null
+
+        /* The first level can be bigger than the overview */
+        val ratio = Math.min(1f, MAX_SIZE.toFloat() / Math.max(levelWidth, levelHeight))
+        val overview = Bitmap.createBitmap(Math.max(1, (levelWidth * ratio).toInt()),
+                Math.max(1, (levelHeight * ratio).toInt()), Bitmap.Config.RGB_565)
+        val canvas = Canvas(overview)
+        val paint = Paint(Paint.FILTER_BITMAP_FLAG)
+        val rowCount = (levelHeight + tileHeight - 1) / tileHeight
+        val colCount = (levelWidth + tileWidth - 1) / tileWidth
+
+        for (row in 0 until rowCount) {
+            for (col in 0 until colCount) {
+                provider.prefetch(level.level, row, col)
+                val tile = TileBitmapCache.get(map.id, level.level, row, col) ?: continue
+                try {
+                    val left = col * tileWidth * ratio
+                    val top = row * tileHeight * ratio
+                    canvas.drawBitmap(tile, null, RectF(left, top, left + tile.width * ratio,
+                            top + tile.height * ratio), paint)
+                } finally {
+                    TileBitmapCache.bitmapRecycler.recycleBitmap(tile)
+                }
+            }
+        }
+        return overview
+    }
+
+    /* The overview is written to a temporary file first, so that it's never read half written */
+    @Throws(IOException::class)
+    private fun write(overview: Bitmap, file: File) {
+        val tmpFile = File(file.parentFile, file.name + ".tmp")
+        FileOutputStream(tmpFile).use {
+            if (!overview.compress(Bitmap.CompressFormat.JPEG, QUALITY, it)) {
+                throw IOException("Couldn't compress $file")
+            }
+        }
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete()
+            throw IOException("Couldn't rename $tmpFile")
+        }
+    }
+}
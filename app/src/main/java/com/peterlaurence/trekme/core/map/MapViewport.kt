@@ -0,0 +1,47 @@
+package com.peterlaurence.trekme.core.map
+
+import android.content.Context
+import android.content.SharedPreferences
+import java.util.*
+
+/**
+ * The part of a map which was last seen: its [scale], and its center relative to the size of the
+ * map (from 0 to 1), so that it doesn't depend on the size of the screen.
+ */
+data class MapViewport(val scale: Float, val centerX: Float, val centerY: Float) {
+    internal fun serialize(): String {
+        return String.format(Locale.US, "%f;%f;%f", scale, centerX, centerY)
+    }
+
+    companion object {
+        internal fun parse(value: String): MapViewport? {
+            val parts = value.split(';')
+            if (parts.size != 3) return null
+            return try {
+                MapViewport(parts[0].toFloat(), parts[1].toFloat(), parts[2].toFloat())
+            } catch (e: NumberFormatException) {
+                null
+            }
+        }
+    }
+}
+
+/**
+ * Keeps the last [MapViewport] of each map, so that a map is reopened where it was left.
+ */
+class MapViewportStore(context: Context) {
+    private val preferences: SharedPreferences =
+            context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+
+    companion object {
+        private const val PREFERENCES_NAME = "map_viewports"
+    }
+
+    fun get(mapId: Int): MapViewport? {
+        return preferences.getString(mapId.toString(), null)?.let { MapViewport.parse(it) }
+    }
+
+    fun put(mapId: Int, viewport: MapViewport) {
+        preferences.edit().putString(mapId.toString(), viewport.serialize()).apply()
+    }
+}
@@ -0,0 +1,95 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import android.graphics.Bitmap
+
+/**
+ * Bitmaps which are no longer used, kept to decode other tiles into them (see
+ * [android.graphics.BitmapFactory.Options.inBitmap]) rather than allocating new ones.
+ *
+ * A bitmap can be reused to decode an image if it's mutable, has the same config, and is at least
+ * as big as the image. The total size of the pooled bitmaps is bounded by [maxSize], in bytes.
+ *
+ * The numbers of decoded tiles which reused a bitmap or allocated a new one are counted, so the
+ * allocation rate can be compared with and without the pool. This class is thread-safe.
+ */
+class BitmapPool(maxSize: Long) {
+    private val bitmaps = ArrayList<Bitmap>()
+
+    var maxSize: Long = maxSize
+        @Synchronized get
+        private set
+
+    var size = 0L
+        @Synchronized get
+        private set
+
+    var reuseCount = 0L
+        @Synchronized get
+        private set
+
+    var allocationCount = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Take a bitmap into which an image of the given dimensions can be decoded.
+     *
+     * @return `null` if there is none
+     */
+    @Synchronized
+    fun get(width: Int, height: Int, config: Bitmap.Config): Bitmap? {
+        val needed = width.toLong() * height * bytesPerPixel(config)
+        for (i in bitmaps.indices.reversed()) {
+            val bitmap = bitmaps[i]
+            if (bitmap.config == config && bitmap.allocationByteCount >= needed) {
+                bitmaps.removeAt(i)
+                size -= bitmap.allocationByteCount
+                return bitmap
+            }
+        }
+        return null
+    }
+
+    /**
+     * Give back a bitmap which isn't used anymore. If the pool is full, it's left to the garbage
+     * collector.
+     */
+    @Synchronized
+    fun put(bitmap: Bitmap) {
+        if (bitmap.isRecycled || !bitmap.isMutable) return
+        val bitmapSize = bitmap.allocationByteCount
+        if (size + bitmapSize > maxSize) return
+        bitmaps.add(bitmap)
+        size += bitmapSize
+    }
+
+    /**
+     * Record whether a decoded tile was decoded into a pooled bitmap, or allocated a new one.
+     */
+    @Synchronized
+    fun onDecoded(reused: Boolean) {
+        if (reused) reuseCount++ else allocationCount++
+    }
+
+    @Synchronized
+    fun clear() {
+        bitmaps.clear()
+        size = 0
+    }
+
+    @Synchronized
+    fun resize(newMaxSize: Long) {
+        maxSize = newMaxSize
+        while (size > maxSize && bitmaps.isNotEmpty()) {
+            size -= bitmaps.removeAt(0).allocationByteCount
+        }
+    }
+
+    private fun bytesPerPixel(config: Bitmap.Config): Int {
+        return when (config) {
+            Bitmap.Config.ARGB_8888 -> 4
+            Bitmap.Config.ALPHA_8 -> 1
+            else -> 2
+        }
+    }
+}
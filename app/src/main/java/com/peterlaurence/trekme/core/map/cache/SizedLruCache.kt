@@ -0,0 +1,114 @@
+package com.peterlaurence.trekme.core.map.cache
+
+/**
+ * A least-recently-used cache bounded by the total size of its values, rather than by their
+ * number. The size of each value is given by [sizeOf], in any unit consistent with [maxSize].
+ *
+ * It counts hits, misses and evictions, so that its size can be tuned. This class is thread-safe.
+ *
+ * @param onRemoved called (while the cache is locked) when a value leaves the cache: when it's
+ * evicted, replaced or removed
+ */
+class SizedLruCache<K, V>(maxSize: Long, private val sizeOf: (V) -> Long,
+                          private val onRemoved: ((K, V) -> Unit)? = null) {
+    /* In access order, so the first entry is the least recently used */
+    private val map = LinkedHashMap<K, V>(16, 0.75f, true)
+
+    var maxSize: Long = maxSize
+        @Synchronized get
+        private set
+
+    var size = 0L
+        @Synchronized get
+        private set
+
+    var hitCount = 0L
+        @Synchronized get
+        private set
+
+    var missCount = 0L
+        @Synchronized get
+        private set
+
+    var evictionCount = 0L
+        @Synchronized get
+        private set
+
+    @Synchronized
+    fun get(key: K): V? {
+        val value = map[key]
+        if (value != null) hitCount++ else missCount++
+        return value
+    }
+
+    /**
+     * Unlike [get], this doesn't count as a use of the value.
+     */
+    @Synchronized
+    fun containsKey(key: K): Boolean = map.containsKey(key)
+
+    /**
+     * A value bigger than the maximum size isn't kept.
+     */
+    @Synchronized
+    fun put(key: K, value: V) {
+        val valueSize = sizeOf(value)
+        if (valueSize > maxSize) return
+
+        map.put(key, value)?.also {
+            size -= sizeOf(it)
+            if (it !== value) onRemoved?.invoke(key, it)
+        }
+        size += valueSize
+        trimToSize(maxSize)
+    }
+
+    @Synchronized
+    fun remove(key: K): V? {
+        return map.remove(key)?.also {
+            size -= sizeOf(it)
+            onRemoved?.invoke(key, it)
+        }
+    }
+
+    /**
+     * Remove the values whose key matches [predicate].
+     */
+    @Synchronized
+    fun removeAll(predicate: (K) -> Boolean) {
+        val iterator = map.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (!predicate(entry.key)) continue
+            iterator.remove()
+            size -= sizeOf(entry.value)
+            onRemoved?.invoke(entry.key, entry.value)
+        }
+    }
+
+    /**
+     * Evict the least recently used values until the total size is at most [targetSize].
+     */
+    @Synchronized
+    fun trimToSize(targetSize: Long) {
+        val iterator = map.entries.iterator()
+        while (size > targetSize && iterator.hasNext()) {
+            val entry = iterator.next()
+            iterator.remove()
+            size -= sizeOf(entry.value)
+            evictionCount++
+            onRemoved?.invoke(entry.key, entry.value)
+        }
+    }
+
+    fun evictAll() = trimToSize(0)
+
+    /**
+     * Change the maximum size, evicting values if the cache is now too big.
+     */
+    @Synchronized
+    fun resize(newMaxSize: Long) {
+        maxSize = newMaxSize
+        trimToSize(newMaxSize)
+    }
+}
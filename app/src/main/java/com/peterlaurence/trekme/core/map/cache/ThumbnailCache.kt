@@ -0,0 +1,107 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.os.Handler
+import android.os.Looper
+import java.io.File
+import java.util.concurrent.Executors
+
+/**
+ * A memory cache of the thumbnails of maps. Thumbnails are decoded in background when they are
+ * first shown, downsampled to the size of the view which shows them.
+ *
+ * Only a few thumbnails are kept, the most recently shown ones, so that the thumbnails of all maps
+ * don't stay in memory.
+ */
+object ThumbnailCache {
+    private const val MAX_SIZE = 4L * 1024 * 1024
+    private const val THREAD_COUNT = 2
+
+    private val cache = SizedLruCache<ThumbnailKey, Bitmap>(MAX_SIZE, { it.allocationByteCount.toLong() })
+    private val executor = Executors.newFixedThreadPool(THREAD_COUNT) { runnable ->
+        Thread(runnable, "Thumbnail decode thread").apply { isDaemon = true }
+    }
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
+    /* The listeners of the thumbnails being decoded. Guarded by its own lock */
+    private val pending = HashMap<ThumbnailKey, MutableList<ThumbnailListener>>()
+
+    /**
+     * @param size the size of the view, in pixels
+     * @return the thumbnail if it's in memory
+     */
+    @JvmStatic
+    fun get(file: File, size: Int): Bitmap? {
+        return cache.get(ThumbnailKey(file.path, size))
+    }
+
+    /**
+     * Decode a thumbnail in background, unless it's in memory. The [listener] is called on the main
+     * thread, with `null` if the thumbnail can't be decoded.
+     *
+     * @param size the size of the view, in pixels
+     */
+    @JvmStatic
+    fun load(file: File, size: Int, listener: ThumbnailListener) {
+        val key = ThumbnailKey(file.path, size)
+        cache.get(key)?.also {
+            listener.onThumbnailLoaded(it)
+            return
+        }
+
+        synchronized(pending) {
+            pending[key]?.also {
+                it.add(listener)
+                return
+            }
+            pending[key] = mutableListOf(listener)
+        }
+
+        executor.execute {
+            val bitmap = decode(file, size)
+            if (bitmap != null) cache.put(key, bitmap)
+            val listeners = synchronized(pending) { pending.remove(key) } ?: return@execute
+            mainHandler.post { listeners.forEach { it.onThumbnailLoaded(bitmap) } }
+        }
+    }
+
+    /**
+     * Forget a thumbnail, when its file changed.
+     */
+    @JvmStatic
+    fun invalidate(file: File) {
+        cache.removeAll { it.path == file.path }
+    }
+
+    /**
+     * @return the greatest power of 2 by which a thumbnail can be downsampled, while staying at
+     * least as big as the view
+     */
+    internal fun computeSampleSize(width: Int, height: Int, size: Int): Int {
+        var sampleSize = 1
+        while (size > 0 && Math.max(width, height) / (sampleSize * 2) >= size) sampleSize *= 2
+        return sampleSize
+    }
+
+    private fun decode(file: File, size: Int): Bitmap? {
+        val options = BitmapFactory.Options()
+        options.inJustDecodeBounds = true
+        BitmapFactory.decodeFile(file.path, options)
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null
+
+        options.inJustDecodeBounds = false
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, size)
+        return try {
+            BitmapFactory.decodeFile(file.path, options)
+        } catch (e: OutOfMemoryError) {
+            null
+        }
+    }
+
+    private data class ThumbnailKey(val path: String, val size: Int)
+
+    interface ThumbnailListener {
+        fun onThumbnailLoaded(bitmap: Bitmap?)
+    }
+}
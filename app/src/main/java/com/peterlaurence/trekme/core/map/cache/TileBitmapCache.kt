@@ -0,0 +1,200 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import android.app.ActivityManager
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.Log
+import com.qozix.tileview.graphics.BitmapRecycler
+import java.util.*
+
+/**
+ * A memory cache of decoded tiles, shared by all maps. When the user pans back to an area or zooms
+ * out and in, tiles are taken from memory instead of being read and decoded again.
+ *
+ * Its size is a fraction of the heap the device gives to the application (the memory class). It
+ * is reduced or emptied when the system is low on memory, see [onTrimMemory].
+ *
+ * A bitmap can be displayed by a TileView and be in the cache at the same time. So a bitmap only
+ * goes to the [BitmapPool] once it's both released by the TileViews which display it and out of
+ * the cache. TileViews which use this cache must release bitmaps through [bitmapRecycler], rather
+ * than recycling them.
+ */
+object TileBitmapCache {
+    private const val TAG = "TileBitmapCache"
+
+    /* The part of the memory class used by the cache, and by the pool */
+    private const val HEAP_FRACTION = 8
+    private const val POOL_FRACTION = 32
+
+    /* The state of the bitmaps given to TileViews. Guarded by the lock of the cache. Entries of
+     * bitmaps a TileView dropped without releasing them are garbage collected */
+    private val states = WeakHashMap<Bitmap, BitmapState>()
+
+    /* Incremented each time a bitmap is given out. Guarded by the lock of the cache */
+    private var generation = 0L
+
+    internal val pool = BitmapPool(Runtime.getRuntime().maxMemory() / POOL_FRACTION)
+
+    private val cache = SizedLruCache<TileKey, Bitmap>(Runtime.getRuntime().maxMemory() / HEAP_FRACTION,
+            { it.allocationByteCount.toLong() }, { _, bitmap -> onRemoved(bitmap) })
+
+    val bitmapRecycler = BitmapRecycler { release(it) }
+
+    val stats: TileCacheStats
+        get() = synchronized(cache) {
+            TileCacheStats(cache.hitCount, cache.missCount, cache.evictionCount, cache.size,
+                    cache.maxSize, pool.reuseCount, pool.allocationCount, pool.size)
+        }
+
+    /**
+     * Size the cache according to the memory class of the device. Until then, the cache is sized
+     * according to the maximum heap size.
+     */
+    @JvmStatic
+    fun init(context: Context) {
+        val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as? ActivityManager
+                ?: return
+        val memoryClass = activityManager.memoryClass * 1024L * 1024L
+        cache.resize(memoryClass / HEAP_FRACTION)
+        pool.resize(memoryClass / POOL_FRACTION)
+    }
+
+    /**
+     * Get a decoded tile. It's then considered displayed until it's released through the
+     * [bitmapRecycler].
+     */
+    @JvmStatic
+    fun get(mapId: Int, level: Int, row: Int, col: Int): Bitmap? {
+        synchronized(cache) {
+            val bitmap = cache.get(TileKey(mapId, level, row, col)) ?: return null
+            states[bitmap]?.let { it.displayCount++ }
+            return bitmap
+        }
+    }
+
+    @JvmStatic
+    fun contains(mapId: Int, level: Int, row: Int, col: Int): Boolean {
+        return cache.containsKey(TileKey(mapId, level, row, col))
+    }
+
+    /**
+     * Add a tile which was just decoded. Unless it's prefetched, it's about to be displayed.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun put(mapId: Int, level: Int, row: Int, col: Int, bitmap: Bitmap, displayed: Boolean = true) {
+        synchronized(cache) {
+            states[bitmap] = BitmapState(displayCount = if (displayed) 1 else 0, cached = true,
+                    generation = ++generation)
+            cache.put(TileKey(mapId, level, row, col), bitmap)
+        }
+    }
+
+    /**
+     * Track a bitmap which is displayed but isn't cached, such as a placeholder. It goes to the
+     * pool once released through the [bitmapRecycler].
+     *
+     * @return the generation of the bitmap. Once the bitmap is released, it can be taken from the
+     * pool and given out again, with another generation.
+     */
+    @JvmStatic
+    fun putDisplayed(bitmap: Bitmap): Long {
+        synchronized(cache) {
+            val state = BitmapState(displayCount = 1, cached = false, generation = ++generation)
+            states[bitmap] = state
+            return state.generation
+        }
+    }
+
+    @JvmStatic
+    fun isDisplayed(bitmap: Bitmap): Boolean {
+        synchronized(cache) {
+            return (states[bitmap]?.displayCount ?: 0) > 0
+        }
+    }
+
+    /**
+     * @return whether [bitmap] is displayed, and still as the bitmap of the given [generation]
+     * (see [putDisplayed])
+     */
+    @JvmStatic
+    fun isDisplayed(bitmap: Bitmap, generation: Long): Boolean {
+        synchronized(cache) {
+            val state = states[bitmap] ?: return false
+            return state.generation == generation && state.displayCount > 0
+        }
+    }
+
+    /**
+     * Run [action] if [bitmap] is displayed as the bitmap of the given [generation]. Until
+     * [action] returns, the bitmap can't be released, so it can't be reused to decode another
+     * tile.
+     */
+    @JvmStatic
+    fun ifDisplayed(bitmap: Bitmap, generation: Long, action: () -> Unit): Boolean {
+        synchronized(cache) {
+            if (!isDisplayed(bitmap, generation)) return false
+            action()
+            return true
+        }
+    }
+
+    /**
+     * When the application is in background, the cache is emptied. When it's in foreground but the
+     * system is low on memory, only the most recently used half is kept. The pool is emptied in
+     * both cases.
+     */
+    @JvmStatic
+    fun onTrimMemory(level: Int) {
+        when {
+            level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND -> evictAll()
+            level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW -> cache.trimToSize(cache.maxSize / 2)
+            else -> return
+        }
+        pool.clear()
+        Log.i(TAG, stats.toString())
+    }
+
+    /**
+     * Empty the cache. The bitmaps which aren't displayed go to the pool.
+     */
+    internal fun evictAll() {
+        cache.evictAll()
+    }
+
+    private fun release(bitmap: Bitmap) {
+        synchronized(cache) {
+            val state = states[bitmap] ?: return
+            /* A bitmap released twice would be taken for not displayed while a TileView shows it */
+            if (state.displayCount <= 0) return
+            state.displayCount--
+            if (state.displayCount <= 0 && !state.cached) {
+                states.remove(bitmap)
+                pool.put(bitmap)
+            }
+        }
+    }
+
+    /* Called with the lock of the cache held */
+    private fun onRemoved(bitmap: Bitmap) {
+        val state = states[bitmap]
+        if (state == null || state.displayCount <= 0) {
+            states.remove(bitmap)
+            pool.put(bitmap)
+        } else {
+            state.cached = false
+        }
+    }
+
+    private data class TileKey(val mapId: Int, val level: Int, val row: Int, val col: Int)
+
+    private class BitmapState(var displayCount: Int, var cached: Boolean, val generation: Long)
+}
+
+/**
+ * The counters of the [TileBitmapCache] and of its [BitmapPool]. Sizes are in bytes.
+ */
+data class TileCacheStats(val hitCount: Long, val missCount: Long, val evictionCount: Long,
+                          val size: Long, val maxSize: Long, val reuseCount: Long,
+                          val allocationCount: Long, val poolSize: Long)
@@ -0,0 +1,139 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import com.peterlaurence.trekme.core.map.cache.TilePrefetcher.TileRange
+import com.peterlaurence.trekme.core.metrics.Metrics
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Decodes tiles in background, the most useful ones first.
+ *
+ * The tiles which are useful are given as targets (see [setTargets]): the tiles of the viewport,
+ * then those which are about to be seen. Requests for the tiles of the first target go first,
+ * then those of the second target, and so on. Within a target, the tiles closest to its center go
+ * first. When the targets change, the pending requests for tiles which are no longer targeted are
+ * dropped, and the others are sorted again.
+ *
+ * There is one thread per core, except one for the UI thread, within [MAX_THREADS]. The queue
+ * depth, the time requests wait and the requests dropped are recorded in [Metrics].
+ */
+class TileDecodeScheduler @JvmOverloads constructor(threadCount: Int = defaultThreadCount()) {
+    private val queue = PriorityBlockingQueue<Runnable>()
+    private val executor = ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+            queue) { runnable ->
+        Thread(runnable, "Tile decode thread").apply { isDaemon = true }
+    }
+
+    /* Guarded by the lock of this scheduler */
+    private var targets: List<TileRange>? = null
+    private val pending = HashSet<RequestKey>()
+    private var sequence = 0L
+
+    internal val queueDepth: Int
+        get() = queue.size
+
+    companion object {
+        private const val MAX_THREADS = 4
+
+        fun defaultThreadCount(): Int {
+            return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_THREADS))
+        }
+    }
+
+    /**
+     * Request a tile to be decoded by [task]. A request with the same [tag] for the same tile is
+     * only queued once.
+     *
+     * @return `false` if the tile isn't targeted, or if the scheduler is shut down
+     */
+    fun submit(level: Int, row: Int, col: Int, tag: Any, task: () -> Unit): Boolean {
+        val request = synchronized(this) {
+            val key = RequestKey(level, row, col, tag)
+            if (key in pending) return true
+            val priority = priorityOf(level, row, col) ?: return false
+            pending.add(key)
+            DecodeRequest(key, priority, sequence++, Metrics.now(), task)
+        }
+        return try {
+            executor.execute(request)
+            Metrics.decodeQueueDepth.record(queue.size.toLong())
+            true
+        } catch (e: RejectedExecutionException) {
+            synchronized(this) { pending.remove(request.key) }
+            false
+        }
+    }
+
+    /**
+     * Set the tiles which are useful, by decreasing priority. Until then, all tiles are.
+     */
+    @Synchronized
+    internal fun setTargets(targets: List<TileRange>) {
+        this.targets = targets
+
+        /* Priorities are only changed out of the queue, whose order depends on them */
+        val requests = mutableListOf<Runnable>()
+        queue.drainTo(requests)
+        for (runnable in requests) {
+            val request = runnable as DecodeRequest
+            val priority = priorityOf(request.key.level, request.key.row, request.key.col)
+            if (priority != null) {
+                request.priority = priority
+                queue.add(request)
+            } else {
+                pending.remove(request.key)
+                Metrics.decodeDropped.increment()
+            }
+        }
+    }
+
+    fun shutdown() {
+        executor.shutdownNow()
+    }
+
+    /* Called with the lock held. Lower is higher priority */
+    private fun priorityOf(level: Int, row: Int, col: Int): Priority? {
+        val targets = targets ?: return Priority(0, 0f)
+        for (i in targets.indices) {
+            val range = targets[i]
+            if (range.level != level || row !in range.rowMin..range.rowMax ||
+                    col !in range.colMin..range.colMax) continue
+
+            val dRow = row - (range.rowMin + range.rowMax) / 2f
+            val dCol = col - (range.colMin + range.colMax) / 2f
+            return Priority(i, dRow * dRow + dCol * dCol)
+        }
+        return null
+    }
+
+    @Synchronized
+    private fun onStarted(request: DecodeRequest) {
+        pending.remove(request.key)
+    }
+
+    private data class RequestKey(val level: Int, val row: Int, val col: Int, val tag: Any)
+
+    private data class Priority(val rank: Int, val distance: Float) : Comparable<Priority> {
+        override fun compareTo(other: Priority): Int {
+            return if (rank != other.rank) rank.compareTo(other.rank) else distance.compareTo(other.distance)
+        }
+    }
+
+    private inner class DecodeRequest(val key: RequestKey, var priority: Priority,
+                                      private val sequence: Long, val submitNs: Long,
+                                      private val task: () -> Unit) : Runnable, Comparable<DecodeRequest> {
+        override fun run() {
+            Metrics.decodeWait.recordSince(submitNs)
+            onStarted(this)
+            task()
+        }
+
+        /* Requests of the same priority are run in the order they were submitted */
+        override fun compareTo(other: DecodeRequest): Int {
+            val result = priority.compareTo(other.priority)
+            return if (result != 0) result else sequence.compareTo(other.sequence)
+        }
+    }
+}
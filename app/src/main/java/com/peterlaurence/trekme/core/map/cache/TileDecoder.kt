@@ -0,0 +1,73 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import com.peterlaurence.trekme.core.metrics.Metrics
+import java.io.File
+import java.io.IOException
+
+/**
+ * Decodes tiles of offline maps into bitmaps taken from the [BitmapPool] of the
+ * [TileBitmapCache] when possible. The width and height given are those of the tiles of the level
+ * (see [com.peterlaurence.trekme.core.map.gson.MapGson.Level.TileSize]), so a pooled bitmap is
+ * only used if it's big enough.
+ *
+ * Each thread which decodes tiles has its own [BitmapFactory.Options], since they are modified on
+ * each decode. The duration of each decode is recorded in [Metrics.tileDecode]. A tile file is
+ * read before it's decoded, so that the read is recorded apart, in [Metrics.tileRead].
+ */
+object TileDecoder {
+    private val config = Bitmap.Config.RGB_565
+
+    private val options = object : ThreadLocal<BitmapFactory.Options>() {
+        override fun initialValue(): BitmapFactory.Options {
+            return BitmapFactory.Options().apply {
+                inPreferredConfig = config
+                inMutable = true
+            }
+        }
+    }
+
+    @JvmStatic
+    fun decodeFile(path: String, width: Int, height: Int): Bitmap? {
+        val start = Metrics.now()
+        val bytes = try {
+            File(path).readBytes()
+        } catch (e: IOException) {
+            return null
+        }
+        Metrics.tileRead.recordSince(start)
+        Metrics.bytesRead.add(bytes.size.toLong())
+        return decodeByteArray(bytes, width, height)
+    }
+
+    @JvmStatic
+    fun decodeByteArray(bytes: ByteArray, width: Int, height: Int): Bitmap? {
+        return decode(width, height) { BitmapFactory.decodeByteArray(bytes, 0, bytes.size, it) }
+    }
+
+    internal fun decode(width: Int, height: Int, decoder: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+        val pool = TileBitmapCache.pool
+        val options = options.get()
+        val reusable = if (width > 0 && height > 0) pool.get(width, height, config) else null
+        options.inBitmap = reusable
+        val start = Metrics.now()
+        return try {
+            val bitmap = decoder(options)
+            if (bitmap == null) {
+                reusable?.also { pool.put(it) }
+            } else {
+                pool.onDecoded(reusable != null && bitmap === reusable)
+            }
+            bitmap
+        } catch (e: IllegalArgumentException) {
+            /* The image can't be decoded into the pooled bitmap (e.g it's bigger than expected) */
+            options.inBitmap = null
+            reusable?.also { pool.put(it) }
+            decoder(options)?.also { pool.onDecoded(false) }
+        } finally {
+            options.inBitmap = null
+            Metrics.tileDecode.recordSince(start)
+        }
+    }
+}
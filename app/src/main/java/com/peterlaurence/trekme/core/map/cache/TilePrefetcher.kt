@@ -0,0 +1,152 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import com.peterlaurence.trekme.model.providers.bitmap.PrefetchableBitmapProvider
+
+/**
+ * Decodes the tiles of an area the TileView is about to show, before it asks for them. The area
+ * is predicted from the scroll, fling and scale gestures (see
+ * [com.peterlaurence.trekme.ui.mapview.TileViewExtended]).
+ *
+ * Tiles are decoded by the [scheduler], after the tiles of the viewport: the tiles of the current
+ * detail level first, then those of the next detail level in the direction of the last zoom. The
+ * viewport and the predicted area are the targets of the scheduler, so each new prediction or
+ * move of the viewport cancels the pending decodes of tiles which are no longer useful.
+ *
+ * Detail levels follow the same convention as the TileView: the deepest level has a scale of 1,
+ * and [baseWidth] and [baseHeight] are the size of the map at that scale.
+ */
+class TilePrefetcher(private val provider: PrefetchableBitmapProvider,
+                     private val scheduler: TileDecodeScheduler, private val baseWidth: Int,
+                     private val baseHeight: Int) {
+    private val levels = mutableListOf<PrefetchLevel>()
+    private var lastRanges: List<TileRange>? = null
+    private var visibleRange: TileRange? = null
+
+    fun addDetailLevel(scale: Float, level: Int, tileWidth: Int, tileHeight: Int) {
+        levels.add(PrefetchLevel(scale, level, tileWidth, tileHeight))
+        levels.sortBy { it.scale }
+    }
+
+    /**
+     * Prefetch the tiles of the viewport which is predicted. Its coordinates are in pixels, at the
+     * current [scale] of the TileView. This is meant to be called from the UI thread.
+     *
+     * @param zoomingIn whether the next detail level is the deeper one or the coarser one
+     */
+    fun prefetch(left: Int, top: Int, right: Int, bottom: Int, scale: Float, zoomingIn: Boolean) {
+        val ranges = computeRanges(left, top, right, bottom, scale, zoomingIn)
+        if (ranges == lastRanges) return
+        lastRanges = ranges
+        updateTargets()
+
+        var count = 0
+        for (range in ranges) {
+            for (row in range.rowMin..range.rowMax) {
+                for (col in range.colMin..range.colMax) {
+                    if (count++ >= MAX_TILES) return
+                    scheduler.submit(range.level, row, col, this) { provider.prefetch(range.level, row, col) }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the viewport moves or is scaled. Its coordinates are in pixels, at the current
+     * [scale] of the TileView.
+     */
+    fun onViewportChanged(left: Int, top: Int, right: Int, bottom: Int, scale: Float) {
+        val range = computeVisibleRange(left, top, right, bottom, scale)
+        if (range == visibleRange) return
+        visibleRange = range
+        updateTargets()
+    }
+
+    /**
+     * Cancel the pending prefetches.
+     */
+    fun cancel() {
+        lastRanges = null
+        updateTargets()
+    }
+
+    /**
+     * Shut down the prefetcher, and its scheduler.
+     */
+    fun shutdown() {
+        scheduler.shutdown()
+    }
+
+    /**
+     * The tiles of the current level which intersect the viewport, plus a margin of one tile for
+     * those the TileView renders around it.
+     */
+    internal fun computeVisibleRange(left: Int, top: Int, right: Int, bottom: Int, scale: Float): TileRange? {
+        val level = currentLevel(scale) ?: return null
+        val marginX = level.tileWidth / level.scale
+        val marginY = level.tileHeight / level.scale
+        return rangeOf(level, left / scale - marginX, top / scale - marginY, right / scale + marginX,
+                bottom / scale + marginY)
+    }
+
+    internal fun computeRanges(left: Int, top: Int, right: Int, bottom: Int, scale: Float,
+                               zoomingIn: Boolean): List<TileRange> {
+        val current = currentLevel(scale) ?: return listOf()
+        val index = levels.indexOf(current)
+        val ranges = mutableListOf<TileRange>()
+        rangeOf(levels[index], left / scale, top / scale, right / scale, bottom / scale)?.also {
+            ranges.add(it)
+        }
+
+        /* The viewport, once the scale of the next level is reached. The center doesn't move */
+        val next = levels.getOrNull(if (zoomingIn) index + 1 else index - 1) ?: return ranges
+        val centerX = (left + right) / 2f / scale
+        val centerY = (top + bottom) / 2f / scale
+        val halfWidth = (right - left) / 2f / next.scale
+        val halfHeight = (bottom - top) / 2f / next.scale
+        rangeOf(next, centerX - halfWidth, centerY - halfHeight, centerX + halfWidth,
+                centerY + halfHeight)?.also {
+            ranges.add(it)
+        }
+        return ranges
+    }
+
+    /**
+     * Like the TileView, the current level is the first one whose scale isn't below the current
+     * scale.
+     */
+    private fun currentLevel(scale: Float): PrefetchLevel? {
+        if (levels.isEmpty() || scale <= 0) return null
+        return levels.firstOrNull { it.scale >= scale } ?: levels.last()
+    }
+
+    private fun updateTargets() {
+        scheduler.setTargets(listOfNotNull(visibleRange) + (lastRanges ?: listOf()))
+    }
+
+    /**
+     * The tiles of a level which intersect an area, given in pixels at scale 1.
+     */
+    private fun rangeOf(level: PrefetchLevel, left: Float, top: Float, right: Float, bottom: Float): TileRange? {
+        if (level.tileWidth <= 0 || level.tileHeight <= 0) return null
+        val colCount = Math.ceil(baseWidth * level.scale / level.tileWidth.toDouble()).toInt()
+        val rowCount = Math.ceil(baseHeight * level.scale / level.tileHeight.toDouble()).toInt()
+
+        val colMin = Math.max(0, Math.floor(left * level.scale / level.tileWidth.toDouble()).toInt())
+        val rowMin = Math.max(0, Math.floor(top * level.scale / level.tileHeight.toDouble()).toInt())
+        val colMax = Math.min(colCount - 1, Math.ceil(right * level.scale / level.tileWidth.toDouble()).toInt() - 1)
+        val rowMax = Math.min(rowCount - 1, Math.ceil(bottom * level.scale / level.tileHeight.toDouble()).toInt() - 1)
+        if (colMin > colMax || rowMin > rowMax) return null
+        return TileRange(level.level, rowMin, rowMax, colMin, colMax)
+    }
+
+    private data class PrefetchLevel(val scale: Float, val level: Int, val tileWidth: Int,
+                                     val tileHeight: Int)
+
+    internal data class TileRange(val level: Int, val rowMin: Int, val rowMax: Int, val colMin: Int,
+                                  val colMax: Int)
+
+    companion object {
+        /* A fling can end far away. Beyond that number, tiles are left to the TileView */
+        private const val MAX_TILES = 96
+    }
+}
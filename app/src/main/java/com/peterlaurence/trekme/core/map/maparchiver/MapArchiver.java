@@ -1,20 +1,38 @@
 package com.peterlaurence.trekme.core.map.maparchiver;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
 import com.peterlaurence.trekme.core.map.MapArchive;
 import com.peterlaurence.trekme.util.UnzipTask;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Scanner;
+
+import androidx.annotation.Nullable;
 
 /**
- * Helper class to handle unzipping of a {@link MapArchive}.
+ * Helper class to handle unzipping of a {@link MapArchive}, or mounting it (see
+ * {@link #mount(MapArchive, MountListener)}).
  *
  * @author peterLaurence on 14/10/17.
  */
 public class MapArchiver {
+    /**
+     * In the folder of a mounted archive, the file which contains the path of the archive.
+     */
+    public static final String MOUNT_FILE_NAME = "archive.mount";
+    private static final String MOUNT_FOLDER_SUFFIX = "-mounted";
+    private static final String TAG = "MapArchiver";
+
     /**
      * For instance, just unzips in a subfolder of the same parent folder of the archive
      * {@link File} passed as parameter. The subfolder is named from a formatting of the current
@@ -32,4 +50,87 @@ public class MapArchiver {
         UnzipTask unzipTask = new UnzipTask(zipFile, outputDirectory, listener);
         unzipTask.start();
     }
+
+    /**
+     * Make the map of an archive usable without extracting it. The tiles stay in the archive, and
+     * are read from there by a {@link com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderArchive}.
+     * Only the other files at the root of the map (e.g map.json, markers.json, the thumbnail) are
+     * copied, in a subfolder of the same parent folder of the archive. That subfolder is a map
+     * folder like the others, except for its {@link #MOUNT_FILE_NAME} file.
+     * <p>
+     * An archive which doesn't have a map.json file or tiles can't be mounted, and must be
+     * extracted instead. The listener is called on the UI thread.
+     * </p>
+     */
+    public static void mount(final MapArchive mapArchive, final MountListener listener) {
+        Handler handler = new Handler(Looper.getMainLooper());
+        Thread mountThread = new Thread(() -> {
+            File zipFile = mapArchive.getArchiveFile();
+            File outputDirectory = new File(zipFile.getParentFile(),
+                    mapArchive.getName() + MOUNT_FOLDER_SUFFIX);
+            try {
+                if (!zipFile.equals(getMountedArchive(outputDirectory))) {
+                    createMountFolder(zipFile, outputDirectory);
+                }
+                handler.post(() -> listener.onMounted(outputDirectory));
+            } catch (IOException e) {
+                Log.e(TAG, "Can't mount " + zipFile + ": " + e.getMessage());
+                handler.post(listener::onMountError);
+            }
+        });
+        mountThread.start();
+    }
+
+    /**
+     * @return the archive whose map is in the given folder, or {@code null} if the folder isn't
+     * one of a mounted archive.
+     */
+    @Nullable
+    public static File getMountedArchive(File mapDirectory) {
+        File mountFile = new File(mapDirectory, MOUNT_FILE_NAME);
+        if (!mountFile.exists()) return null;
+
+        try (Scanner scanner = new Scanner(mountFile, "UTF-8")) {
+            return scanner.hasNextLine() ? new File(scanner.nextLine()) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void createMountFolder(File zipFile, File outputDirectory) throws IOException {
+        try (MountedArchive archive = MountedArchive.open(zipFile)) {
+            if (archive.getTileCount() == 0) {
+                throw new IOException("No tiles in the archive");
+            }
+
+            if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+                throw new IOException("Can't create " + outputDirectory);
+            }
+            for (String name : archive.getEntryNames()) {
+                if (name.contains("/")) continue;
+                byte[] bytes = archive.readEntry(name);
+                if (bytes == null) continue;
+                try (FileOutputStream outputStream = new FileOutputStream(new File(outputDirectory, name))) {
+                    outputStream.write(bytes);
+                }
+            }
+
+            /* Written last, so a partially created folder isn't taken for a mounted archive */
+            try (PrintWriter writer = new PrintWriter(new File(outputDirectory, MOUNT_FILE_NAME), "UTF-8")) {
+                writer.println(zipFile.getAbsolutePath());
+            }
+        }
+    }
+
+    public interface MountListener {
+        /**
+         * @param mapDirectory the folder of the mounted map
+         */
+        void onMounted(File mapDirectory);
+
+        /**
+         * Called when the archive can't be mounted.
+         */
+        void onMountError();
+    }
 }
@@ -0,0 +1,279 @@
+package com.peterlaurence.trekme.core.map.maparchiver
+
+import com.peterlaurence.trekme.core.map.maploader.MapLoader
+import com.peterlaurence.trekme.core.map.tilepack.TilePack
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.zip.DataFormatException
+import java.util.zip.Inflater
+
+/**
+ * A map archive whose tiles are read in place, without extracting it.
+ *
+ * Opening it only reads the central directory of the zip file, which gives the position of each
+ * entry. Tiles (`level/row/col.ext` entries, relative to the folder of the map.json entry) are
+ * indexed by (level, row, col), other entries by name. Entries are then read with positional
+ * reads, and inflated if they are compressed. There is no shared position, so this class is
+ * thread-safe.
+ *
+ * Zip64 archives are supported, so an archive can have more than 65535 entries and be bigger than
+ * 4 GB.
+ */
+class MountedArchive private constructor(private val file: RandomAccessFile,
+                                         private val tileKeys: LongArray,
+                                         private val tileEntries: IntArray,
+                                         private val entries: List<Entry>,
+                                         private val entriesByName: Map<String, Int>) : Closeable {
+    private val channel: FileChannel = file.channel
+
+    val tileCount: Int
+        get() = tileKeys.size
+
+    /**
+     * The names of the entries which aren't tiles, relative to the folder of the map.json entry.
+     */
+    val entryNames: Set<String>
+        get() = entriesByName.keys
+
+    companion object {
+        private const val EOCD_SIGNATURE = 0x06054b50
+        private const val EOCD_SIZE = 22
+        private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+        private const val ZIP64_LOCATOR_SIZE = 20
+        private const val ZIP64_EOCD_SIGNATURE = 0x06064b50
+        private const val CENTRAL_HEADER_SIGNATURE = 0x02014b50
+        private const val CENTRAL_HEADER_SIZE = 46
+        private const val LOCAL_HEADER_SIGNATURE = 0x04034b50
+        private const val LOCAL_HEADER_SIZE = 30
+        private const val ZIP64_EXTRA_ID = 0x0001
+        private const val MAX_COMMENT_SIZE = 0xFFFF
+        private const val ZIP64_MAGIC = 0xFFFFFFFFL
+
+        private const val METHOD_STORED = 0
+        private const val METHOD_DEFLATED = 8
+
+        /**
+         * Read the central directory of [archiveFile].
+         *
+         * @throws IOException if it isn't a zip file, or if it doesn't contain a map.json entry
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun open(archiveFile: File): MountedArchive {
+            val file = RandomAccessFile(archiveFile, "r")
+            try {
+                return readCentralDirectory(file)
+            } catch (e: Exception) {
+                file.close()
+                throw e as? IOException ?: IOException("Unreadable archive $archiveFile", e)
+            }
+        }
+
+        private fun readCentralDirectory(file: RandomAccessFile): MountedArchive {
+            val channel = file.channel
+            val length = file.length()
+
+            /* The end of central directory record is followed by a comment of variable size */
+            val tailSize = Math.min(length, (EOCD_SIZE + MAX_COMMENT_SIZE).toLong()).toInt()
+            val tail = readFully(channel, length - tailSize, tailSize)
+            var eocd = -1
+            for (i in tailSize - EOCD_SIZE downTo 0) {
+                if (tail.getInt(i) == EOCD_SIGNATURE) {
+                    eocd = i
+                    break
+                }
+            }
+            if (eocd < 0) throw IOException("Not a zip file")
+
+            var entryCount = tail.getShort(eocd + 10).toLong() and 0xFFFF
+            var cdSize = tail.getInt(eocd + 12).toLong() and ZIP64_MAGIC
+            var cdOffset = tail.getInt(eocd + 16).toLong() and ZIP64_MAGIC
+
+            /* In a zip64 archive, the actual values are in the zip64 end of central directory */
+            val locator = eocd - ZIP64_LOCATOR_SIZE
+            if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+                val zip64Eocd = readFully(channel, tail.getLong(locator + 8), 56)
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) throw IOException("Corrupted zip64 archive")
+                entryCount = zip64Eocd.getLong(32)
+                cdSize = zip64Eocd.getLong(40)
+                cdOffset = zip64Eocd.getLong(48)
+            }
+
+            val cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+            val entries = ArrayList<Entry>(Math.min(entryCount, Int.MAX_VALUE.toLong()).toInt())
+            val names = ArrayList<String>(entries.size)
+            var position = 0
+            for (i in 0 until entryCount) {
+                if (cd.getInt(position) != CENTRAL_HEADER_SIGNATURE) throw IOException("Corrupted central directory")
+                val method = cd.getShort(position + 10).toInt() and 0xFFFF
+                var compressedSize = cd.getInt(position + 20).toLong() and ZIP64_MAGIC
+                var size = cd.getInt(position + 24).toLong() and ZIP64_MAGIC
+                val nameLength = cd.getShort(position + 28).toInt() and 0xFFFF
+                val extraLength = cd.getShort(position + 30).toInt() and 0xFFFF
+                val commentLength = cd.getShort(position + 32).toInt() and 0xFFFF
+                var localHeaderOffset = cd.getInt(position + 42).toLong() and ZIP64_MAGIC
+
+                val nameBytes = ByteArray(nameLength)
+                cd.position(position + CENTRAL_HEADER_SIZE)
+                cd.get(nameBytes)
+                val name = String(nameBytes, Charsets.UTF_8)
+
+                /* Sizes and offset which don't fit in 32 bits are in the zip64 extra field */
+                var extra = position + CENTRAL_HEADER_SIZE + nameLength
+                val extraEnd = extra + extraLength
+                while (extra + 4 <= extraEnd) {
+                    val id = cd.getShort(extra).toInt() and 0xFFFF
+                    val dataSize = cd.getShort(extra + 2).toInt() and 0xFFFF
+                    if (id == ZIP64_EXTRA_ID) {
+                        var field = extra + 4
+                        if (size == ZIP64_MAGIC) {
+                            size = cd.getLong(field)
+                            field += 8
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = cd.getLong(field)
+                            field += 8
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC) {
+                            localHeaderOffset = cd.getLong(field)
+                        }
+                    }
+                    extra += 4 + dataSize
+                }
+                position = extraEnd + commentLength
+
+                if (!name.endsWith("/")) {
+                    entries.add(Entry(method, compressedSize, size, localHeaderOffset))
+                    names.add(name)
+                }
+            }
+
+            /* Entries are relative to the folder of the map.json entry */
+            val mapFile = names.filter { it == MapLoader.MAP_FILE_NAME || it.endsWith("/" + MapLoader.MAP_FILE_NAME) }
+                    .minBy { it.length } ?: throw IOException("No ${MapLoader.MAP_FILE_NAME} in the archive")
+            val root = mapFile.substring(0, mapFile.length - MapLoader.MAP_FILE_NAME.length)
+
+            val keys = ArrayList<Long>()
+            val tileIndexes = ArrayList<Int>()
+            val entriesByName = HashMap<String, Int>()
+            for (i in names.indices) {
+                val name = names[i]
+                if (!name.startsWith(root)) continue
+                val relativeName = name.substring(root.length)
+                val key = parseTileKey(relativeName)
+                if (key != null) {
+                    keys.add(key)
+                    tileIndexes.add(i)
+                } else {
+                    entriesByName[relativeName] = i
+                }
+            }
+
+            /* Sort tiles by key, so they can be searched by dichotomy */
+            val order = keys.indices.sortedBy { keys[it] }
+            val tileKeys = LongArray(order.size) { keys[order[it]] }
+            val tileEntries = IntArray(order.size) { tileIndexes[order[it]] }
+            return MountedArchive(file, tileKeys, tileEntries, entries, entriesByName)
+        }
+
+        /**
+         * @return the key of a `level/row/col.ext` name, or `null` if it isn't the name of a tile
+         */
+        internal fun parseTileKey(name: String): Long? {
+            val parts = name.split('/')
+            if (parts.size != 3) return null
+            val dot = parts[2].lastIndexOf('.')
+            if (dot <= 0) return null
+
+            val level = parts[0].toIntOrNull() ?: return null
+            val row = parts[1].toIntOrNull() ?: return null
+            val col = parts[2].substring(0, dot).toIntOrNull() ?: return null
+            if (level < 0 || row < 0 || col < 0) return null
+            return TilePack.makeKey(level, row, col)
+        }
+
+        private fun readFully(channel: FileChannel, offset: Long, length: Int): ByteBuffer {
+            val buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN)
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) throw IOException("Unexpected end of file")
+            }
+            buffer.flip()
+            return buffer
+        }
+    }
+
+    /**
+     * @return the bytes of the tile, or `null` if the archive doesn't have it or it can't be read
+     */
+    fun readTile(level: Int, row: Int, col: Int): ByteArray? {
+        val index = tileKeys.binarySearch(TilePack.makeKey(level, row, col))
+        if (index < 0) return null
+        return readEntry(entries[tileEntries[index]])
+    }
+
+    /**
+     * @param name the name of an entry which isn't a tile, relative to the folder of the map.json
+     * entry (e.g "map.json")
+     * @return the bytes of the entry, or `null` if there is none or it can't be read
+     */
+    fun readEntry(name: String): ByteArray? {
+        val index = entriesByName[name] ?: return null
+        return readEntry(entries[index])
+    }
+
+    override fun close() {
+        try {
+            file.close()
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
+    }
+
+    private fun readEntry(entry: Entry): ByteArray? {
+        if (entry.size > Int.MAX_VALUE || entry.compressedSize > Int.MAX_VALUE) return null
+        return try {
+            /* The local header has its own extra field, so its size is only known when read */
+            val header = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE)
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) return null
+            val dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+                    (header.getShort(26).toInt() and 0xFFFF) + (header.getShort(28).toInt() and 0xFFFF)
+
+            val data = readFully(channel, dataOffset, entry.compressedSize.toInt()).array()
+            when (entry.method) {
+                METHOD_STORED -> data
+                METHOD_DEFLATED -> inflate(data, entry.size.toInt())
+                else -> null
+            }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun inflate(data: ByteArray, size: Int): ByteArray? {
+        val inflater = Inflater(true)
+        return try {
+            inflater.setInput(data)
+            val result = ByteArray(size)
+            var count = 0
+            while (count < size && !inflater.finished()) {
+                val inflated = inflater.inflate(result, count, size - count)
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break
+                count += inflated
+            }
+            if (count == size) result else null
+        } catch (e: DataFormatException) {
+            null
+        } finally {
+            inflater.end()
+        }
+    }
+
+    private class Entry(val method: Int, val compressedSize: Long, val size: Long,
+                        val localHeaderOffset: Long)
+}
@@ -6,12 +6,17 @@ import android.util.Log;
 
 import com.peterlaurence.trekme.core.map.Map;
 import com.peterlaurence.trekme.core.map.MapArchive;
+import com.peterlaurence.trekme.core.map.MapOverview;
 import com.peterlaurence.trekme.core.map.gson.MapGson;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
+import com.peterlaurence.trekme.core.map.tilepack.TilePackLevel;
+import com.peterlaurence.trekme.core.map.tilepack.TilePackReader;
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderLibVips;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderTilePack;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -23,8 +28,9 @@ import androidx.annotation.Nullable;
 
 /**
  * The {@link MapImporter} exposes a single method : {@link #importFromFile(File, MapProvider, MapImportListener)}.
- * To use the appropriate parser, the {@link MapProvider} enum type must be given. But for instance,
- * only {@link MapProvider#LIBVIPS} is supported. <br>
+ * To use the appropriate parser, the {@link MapProvider} enum type must be given. Either
+ * {@link MapProvider#LIBVIPS} for a folder structure, or {@link MapProvider#TILEPACK} for a map
+ * whose tiles are in a tile pack. <br>
  * This is typically used after a {@link MapArchive} has been extracted, or by the
  * {@link com.peterlaurence.trekme.service.DownloadService}.
  *
@@ -88,6 +94,7 @@ public class MapImporter {
     static {
         java.util.Map<MapProvider, MapParser> map = new HashMap<>();
         map.put(MapProvider.LIBVIPS, new LibvipsMapParser());
+        map.put(MapProvider.TILEPACK, new TilePackMapParser());
         mProviderToParserMap = Collections.unmodifiableMap(map);
     }
 
@@ -107,7 +114,8 @@ public class MapImporter {
      * Possible {@link Map} providers.
      */
     public enum MapProvider {
-        LIBVIPS
+        LIBVIPS,
+        TILEPACK
     }
 
     /**
@@ -149,6 +157,7 @@ public class MapImporter {
 
         enum Issue {
             NO_PARENT_FOLDER_FOUND,
+            NO_TILE_PACK_FOUND,
             NO_LEVEL_FOUND,
             UNKNOWN_IMAGE_EXT,
             MAP_SIZE_INCORRECT
@@ -177,7 +186,15 @@ public class MapImporter {
             if (dir == null) return null;
 
             try {
-                return mMapParser.parse(dir);
+                Map map = mMapParser.parse(dir);
+
+                /* The overview is made now, so that the map shows up right away when it's first
+                 * opened */
+                if (map != null) {
+                    map.setBitmapProvider(MapLoader.makeBitmapProvider(map));
+                    MapOverview.makeIfMissing(map);
+                }
+                return map;
             } catch (MapParseException e) {
                 mException = e;
             }
@@ -446,4 +463,111 @@ public class MapImporter {
             return mapSize;
         }
     }
+
+    /**
+     * This {@link MapParser} expects a directory {@link File} which contains a tile pack. The levels
+     * and the size of the map are deduced from the index of the pack.
+     */
+    private static class TilePackMapParser implements MapParser {
+        private static final byte[] PNG_SIGNATURE = new byte[]{(byte) 0x89, 'P', 'N', 'G'};
+        private BitmapFactory.Options options = new BitmapFactory.Options();
+        private MapParserStatus mStatus = MapParserStatus.NO_MAP;
+
+        TilePackMapParser() {
+            options.inJustDecodeBounds = true;
+        }
+
+        @Override
+        public Map parse(File mapDir) throws MapParseException {
+            if (!mapDir.isDirectory()) {
+                return null;
+            }
+
+            /* Check whether there is already a map.json file or not */
+            File existingJsonFile = new File(mapDir, MapLoader.MAP_FILE_NAME);
+            if (existingJsonFile.exists()) {
+                MapLoader.getInstance().generateMaps(mapDir);
+                mStatus = MapParserStatus.EXISTING_MAP;
+                return null;
+            }
+
+            TilePackReader reader;
+            try {
+                reader = TilePackReader.open(mapDir);
+            } catch (IOException e) {
+                throw new MapParseException(MapParseException.Issue.NO_TILE_PACK_FOUND);
+            }
+
+            try {
+                /* Create levels */
+                List<MapGson.Level> levelList = new ArrayList<>();
+                TilePackLevel lastPackLevel = null;
+                MapGson.Level.TileSize lastLevelTileSize = null;  // used later, for the map size
+                byte[] aTile = null;
+                for (TilePackLevel packLevel : reader.getLevels()) {
+                    byte[] tile = reader.readAnyTile(packLevel.getLevel());
+                    if (tile == null) continue;
+                    aTile = tile;
+                    BitmapFactory.decodeByteArray(tile, 0, tile.length, options);
+                    MapGson.Level.TileSize tileSize = new MapGson.Level.TileSize();
+                    tileSize.x = options.outWidth;
+                    tileSize.y = options.outHeight;
+
+                    MapGson.Level level = new MapGson.Level();
+                    level.level = packLevel.getLevel();
+                    level.tile_size = tileSize;
+                    levelList.add(level);
+                    lastPackLevel = packLevel;
+                    lastLevelTileSize = tileSize;
+                }
+
+                if (lastPackLevel == null) {
+                    throw new MapParseException(MapParseException.Issue.NO_LEVEL_FOUND);
+                }
+
+                MapGson mapGson = new MapGson();
+                mapGson.levels = levelList;
+
+                /* Create provider */
+                MapGson.Provider provider = new MapGson.Provider();
+                provider.generated_by = BitmapProviderTilePack.GENERATOR_NAME;
+                provider.image_extension = isPng(aTile) ? ".png" : ".jpg";
+                mapGson.provider = provider;
+
+                /* Map size */
+                MapGson.MapSize mapSize = new MapGson.MapSize();
+                mapSize.x = lastPackLevel.getColCount() * lastLevelTileSize.x;
+                mapSize.y = lastPackLevel.getRowCount() * lastLevelTileSize.y;
+                if (mapSize.x <= 0 || mapSize.y <= 0) {
+                    throw new MapParseException(MapParseException.Issue.MAP_SIZE_INCORRECT);
+                }
+                mapGson.size = mapSize;
+
+                /* Set the map name to the folder name */
+                mapGson.name = mapDir.getName();
+
+                /* Set default calibration */
+                mapGson.calibration.calibration_method = MapLoader.CALIBRATION_METHOD.SIMPLE_2_POINTS.name();
+
+                mStatus = MapParserStatus.NEW_MAP;
+                return new Map(mapGson, existingJsonFile, null);
+            } finally {
+                reader.close();
+            }
+        }
+
+        @NonNull
+        @Override
+        public MapParserStatus getStatus() {
+            return mStatus;
+        }
+
+        private boolean isPng(byte[] bytes) {
+            if (bytes.length < PNG_SIGNATURE.length) return false;
+            for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+                if (bytes[i] != PNG_SIGNATURE[i]) return false;
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package com.peterlaurence.trekme.core.map.maploader
+
+import android.util.Log
+import com.google.gson.Gson
+import com.google.gson.JsonElement
+import com.google.gson.JsonParseException
+import com.peterlaurence.trekme.core.map.gson.MapGson
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.Executors
+
+/**
+ * A cache of the json files of maps, so that maps can be listed without reading each of them.
+ *
+ * Each json file is kept along with its path, its last modification date and its size when it was
+ * cataloged. A json file is considered unchanged as long as they are the same (see [isUpToDate]).
+ *
+ * All the entries are stored in a single [file], which is read once and written in background
+ * (see [save]) when entries changed.
+ */
+class MapCatalog(private val file: File, private val gson: Gson) {
+    /* Guarded by the lock of the catalog. Loaded on first use */
+    private var entries: LinkedHashMap<String, CatalogEntry>? = null
+    private var dirty = false
+    private val executor = Executors.newSingleThreadExecutor()
+
+    companion object {
+        private const val TAG = "MapCatalog"
+        private const val VERSION = 1
+    }
+
+    /**
+     * Get the cataloged maps under a directory, whether they're up to date or not.
+     *
+     * @return the json files and their content
+     */
+    @Synchronized
+    fun getAll(dir: File): LinkedHashMap<File, MapGson> {
+        val result = LinkedHashMap<File, MapGson>()
+        for (entry in loadEntries().values) {
+            val configFile = File(entry.path)
+            if (!isUnder(configFile, dir)) continue
+            try {
+                gson.fromJson(entry.map, MapGson::class.java)?.let { result[configFile] = it }
+            } catch (e: JsonParseException) {
+                // the entry will be replaced when its json file is parsed
+            }
+        }
+        return result
+    }
+
+    /**
+     * @return `true` if the json file didn't change since it was cataloged
+     */
+    @Synchronized
+    fun isUpToDate(configFile: File): Boolean {
+        val entry = loadEntries()[configFile.path] ?: return false
+        return entry.lastModified == configFile.lastModified() && entry.length == configFile.length()
+    }
+
+    /**
+     * Catalog the content of a json file. This must be called after the file is written or read,
+     * since its last modification date and size are taken at this time.
+     */
+    @Synchronized
+    fun put(configFile: File, mapGson: MapGson) {
+        loadEntries()[configFile.path] = CatalogEntry(configFile.path, configFile.lastModified(),
+                configFile.length(), gson.toJsonTree(mapGson))
+        dirty = true
+    }
+
+    @Synchronized
+    fun remove(configFile: File) {
+        if (loadEntries().remove(configFile.path) != null) dirty = true
+    }
+
+    /**
+     * Remove the entries under [dirs] whose json file isn't in [configFiles].
+     */
+    @Synchronized
+    fun retain(dirs: Array<out File>, configFiles: Set<File>) {
+        val paths = configFiles.mapTo(HashSet()) { it.path }
+        val iterator = loadEntries().values.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.path !in paths && dirs.any { isUnder(File(entry.path), it) }) {
+                iterator.remove()
+                dirty = true
+            }
+        }
+    }
+
+    /**
+     * Write the catalog in background, if it changed.
+     */
+    fun save() {
+        val json = synchronized(this) {
+            if (!dirty) return
+            dirty = false
+            gson.toJson(CatalogGson(VERSION, loadEntries().values.toList()))
+        }
+        executor.execute { write(json) }
+    }
+
+    /* Called with the lock held */
+    private fun loadEntries(): LinkedHashMap<String, CatalogEntry> {
+        entries?.let { return it }
+        val loaded = LinkedHashMap<String, CatalogEntry>()
+        try {
+            if (file.exists()) {
+                val catalog = gson.fromJson(file.readText(), CatalogGson::class.java)
+                if (catalog?.version == VERSION) {
+                    catalog.entries?.forEach { loaded[it.path] = it }
+                }
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Couldn't read the catalog", e)
+        } catch (e: JsonParseException) {
+            Log.e(TAG, "The catalog is corrupted, it's rebuilt", e)
+        }
+        entries = loaded
+        return loaded
+    }
+
+    /* The catalog is written to a temporary file first, so that it's never read half written */
+    private fun write(json: String) {
+        val tmpFile = File(file.parentFile, file.name + ".tmp")
+        try {
+            tmpFile.writeText(json)
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete()
+                Log.e(TAG, "Couldn't write the catalog")
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Couldn't write the catalog", e)
+        }
+    }
+
+    private fun isUnder(file: File, dir: File): Boolean {
+        return file.path.startsWith(dir.path + File.separator)
+    }
+
+    private class CatalogGson(val version: Int, val entries: List<CatalogEntry>?)
+
+    private class CatalogEntry(val path: String, val lastModified: Long, val length: Long,
+                               val map: JsonElement)
+}
@@ -10,6 +10,7 @@ import com.peterlaurence.trekme.core.map.MapArchive;
 import com.peterlaurence.trekme.core.map.gson.MarkerGson;
 import com.peterlaurence.trekme.core.map.gson.RouteGson;
 import com.peterlaurence.trekme.core.map.gson.RuntimeTypeAdapterFactory;
+import com.peterlaurence.trekme.core.map.maparchiver.MapArchiver;
 import com.peterlaurence.trekme.core.map.mapimporter.MapImporter;
 import com.peterlaurence.trekme.core.map.maploader.tasks.MapDeleteTask;
 import com.peterlaurence.trekme.core.map.maploader.tasks.MapMarkerImportTask;
@@ -18,16 +19,22 @@ import com.peterlaurence.trekme.core.map.maploader.tasks.MapUpdateTask;
 import com.peterlaurence.trekme.core.projection.MercatorProjection;
 import com.peterlaurence.trekme.core.projection.Projection;
 import com.peterlaurence.trekme.core.projection.UniversalTransverseMercator;
+import com.peterlaurence.trekme.model.map.MapProvider;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderArchive;
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderDummy;
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderLibVips;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderTilePack;
+import com.peterlaurence.trekme.model.providers.bitmap.PrefetchableBitmapProvider;
 import com.qozix.tileview.graphics.BitmapProvider;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 
 import androidx.annotation.Nullable;
 
@@ -37,19 +44,25 @@ import androidx.annotation.Nullable;
  * A {@link MapUpdateTask} will :
  * <ul>
  * <li>
+ * Show the maps of the {@link MapCatalog} right away.
+ * </li>
+ * <li>
  * Search for maps on the SD card (json files).
  * </li>
  * <li>
- * Parse the json files to, e.g, process calibration information.
+ * Parse the json files which changed since they were cataloged, to, e.g, process calibration
+ * information.
  * </li>
  * <li>
  * populate the internal list of {@link Map}.
  * </li>
  * </ul>
+ * Then, a {@link MapWatcher} keeps the list up to date as maps are added, changed or removed in the
+ * default directories.
  *
  * @author peterLaurence
  */
-public class MapLoader implements MapImporter.MapImportListener {
+public class MapLoader implements MapImporter.MapImportListener, MapWatcher.MapFilesListener {
 
     public static final String MAP_FILE_NAME = "map.json";
     public static final String MAP_MARKER_FILE_NAME = "markers.json";
@@ -63,7 +76,9 @@ public class MapLoader implements MapImporter.MapImportListener {
     }};
     private static final String TAG = "MapLoader";
     private Gson mGson;
-    private List<Map> mMapList;
+    private MapRepository mRepository;
+    private MapCatalog mCatalog;
+    private MapWatcher mWatcher;
     private MapListUpdateListener mMapListUpdateListener;
     private MapMarkerUpdateListener mMapMarkerUpdateListener;
     private MapRouteUpdateListener mMapRouteUpdateListener;
@@ -81,7 +96,10 @@ public class MapLoader implements MapImporter.MapImportListener {
         mGson = new GsonBuilder().serializeNulls().setPrettyPrinting().
                 registerTypeAdapterFactory(factory).create();
 
-        mMapList = new ArrayList<>();
+        mRepository = new MapRepository();
+        mCatalog = new MapCatalog(TrekMeContext.INSTANCE.getMapCatalogFile(), mGson);
+        mWatcher = new MapWatcher(Arrays.asList(TrekMeContext.INSTANCE.getDefaultMapsDir(),
+                TrekMeContext.INSTANCE.getDefaultMapsDownloadDir()), this);
     }
 
     public static MapLoader getInstance() {
@@ -89,49 +107,99 @@ public class MapLoader implements MapImporter.MapImportListener {
     }
 
     /**
-     * Factory of {@link BitmapProvider} depending on the origin of the map.
+     * Factory of {@link BitmapProvider} depending on the origin of the map. The tiles of a mounted
+     * archive are read from the archive, whatever the origin.
      *
      * @param map The {@link Map} object
      * @return The {@link BitmapProvider} or a {@link BitmapProviderDummy} if the origin is unknown.
      */
     public static BitmapProvider makeBitmapProvider(Map map) {
+        File archiveFile = MapArchiver.getMountedArchive(map.getDirectory());
+        if (archiveFile != null) {
+            return new BitmapProviderArchive(map, archiveFile);
+        }
+
         switch (map.getOrigin()) {
             case BitmapProviderLibVips.GENERATOR_NAME:
                 return new BitmapProviderLibVips(map);
+            case BitmapProviderTilePack.GENERATOR_NAME:
+                return new BitmapProviderTilePack(map);
             default:
                 return new BitmapProviderDummy();
         }
     }
 
     /**
-     * Clear and sets the internal list of {@link Map} : {@code mMapList}. <br>
-     * Once done, the registered {@link MapListUpdateListener} is called.
+     * Close the files kept open by the {@link BitmapProvider} of a map, when the map isn't
+     * displayed anymore. They are opened again if the map is displayed later.
+     */
+    public static void releaseBitmapProvider(Map map) {
+        BitmapProvider bitmapProvider = map.getBitmapProvider();
+        if (bitmapProvider instanceof PrefetchableBitmapProvider) {
+            ((PrefetchableBitmapProvider) bitmapProvider).release();
+        }
+    }
+
+    /**
+     * Clear and sets the list of {@link Map}s of the {@link MapRepository}. <br>
+     * Once done, the registered {@link MapListUpdateListener} is called. When searching the default
+     * directories, they are then watched by the {@link MapWatcher}.
      *
      * @param dirs The directories in which to search for maps. If not specified, a default value is
      *             taken.
      */
     public void clearAndGenerateMaps(File... dirs) {
-        mMapList = new ArrayList<>();
+        mRepository.update(List::clear);
         if (dirs.length == 0) { // No directories specified? We take the default value.
             dirs = new File[1];
             dirs[0] = TrekMeContext.INSTANCE.getDefaultMapsDir();
+            mWatcher.start();
         }
         generateMaps(dirs);
     }
 
     /**
-     * Appends found {@link Map}s to the internal list of {@link Map} : {@code mMapList}.
-     * Once done, all of the registered {@link MapListUpdateListener} are called.
+     * Appends found {@link Map}s to the list of {@link Map}s of the {@link MapRepository}. The
+     * {@link Map}s of these directories which were already in the list are replaced.
+     * The registered {@link MapListUpdateListener} is called once the cataloged maps are added,
+     * then once done.
      *
      * @param dirs The directories in which to search for new maps.
      */
     public void generateMaps(File... dirs) {
-        MapUpdateTask updateTask = new MapUpdateTask(mMapListUpdateListener, mGson, mMapList);
+        MapUpdateTask updateTask = new MapUpdateTask(mMapListUpdateListener, mGson, mRepository,
+                mCatalog);
         updateTask.execute(dirs);
     }
 
+    /**
+     * Same as {@link #generateMaps(File...)}, for a single directory. Once done, the maps found
+     * in it are given to the {@link MapsFoundListener}.
+     */
+    public void generateMaps(File dir, MapsFoundListener listener) {
+        MapUpdateTask updateTask = new MapUpdateTask(mMapListUpdateListener, mGson, mRepository,
+                mCatalog);
+        updateTask.setMapsFoundListener(listener);
+        updateTask.execute(dir);
+    }
+
+    /**
+     * @return an immutable snapshot of the list of maps, which can be read from any thread
+     */
     public List<Map> getMaps() {
-        return mMapList;
+        return mRepository.getMaps();
+    }
+
+    /**
+     * Be told of the rows of the list of maps which changed. The listener is called on the UI
+     * thread.
+     */
+    public void addMapListListener(MapRepository.MapListListener listener) {
+        mRepository.addListener(listener);
+    }
+
+    public void removeMapListListener(MapRepository.MapListListener listener) {
+        mRepository.removeListener(listener);
     }
 
     /**
@@ -159,12 +227,15 @@ public class MapLoader implements MapImporter.MapImportListener {
      */
     @Nullable
     public Map getMap(String name) {
-        for (Map map : mMapList) {
-            if (map.getName().equalsIgnoreCase(name)) {
-                return map;
-            }
-        }
-        return null;
+        return mRepository.getMap(name);
+    }
+
+    /**
+     * Rename a {@link Map}. It must be renamed through this method, so that it can still be
+     * retrieved by name (see {@link #getMap(String)}).
+     */
+    public void renameMap(Map map, String newName) {
+        mRepository.rename(map, newName);
     }
 
     public void setMapListUpdateListener(MapListUpdateListener listener) {
@@ -196,14 +267,22 @@ public class MapLoader implements MapImporter.MapImportListener {
     public void onMapImported(Map map, MapImporter.MapParserStatus status) {
         if (map == null) return;
 
-        /* Set BitMapProvider */
-        map.setBitmapProvider(makeBitmapProvider(map));
-
-        /* Add the map */
-        if (mMapList != null) {
-            mMapList.add(map);
+        /* Set BitMapProvider, unless it was set during the import */
+        if (map.getBitmapProvider() == null) {
+            map.setBitmapProvider(makeBitmapProvider(map));
         }
 
+        /* Add the map, or replace the one which has the same json file */
+        mRepository.update(mapList -> {
+            for (int i = 0; i < mapList.size(); i++) {
+                if (mapList.get(i).getConfigFile().equals(map.getConfigFile())) {
+                    mapList.set(i, map);
+                    return;
+                }
+            }
+            mapList.add(map);
+        });
+
         /* Generate the json file */
         saveMap(map);
 
@@ -211,6 +290,69 @@ public class MapLoader implements MapImporter.MapImportListener {
         notifyMapListUpdateListeners();
     }
 
+    /**
+     * Update the maps whose files changed, as reported by the {@link MapWatcher}. Only the
+     * directories concerned are searched again, unless their map is known and didn't change.
+     */
+    @Override
+    public void onMapFilesChanged(java.util.Map<File, Set<String>> changes) {
+        List<File> dirsToSearch = new ArrayList<>();
+        for (java.util.Map.Entry<File, Set<String>> entry : changes.entrySet()) {
+            File dir = entry.getKey();
+            if (!dir.exists()) {
+                removeMaps(dir);
+                continue;
+            }
+
+            File configFile = new File(dir, MAP_FILE_NAME);
+            Map map = mRepository.getMap(configFile);
+            if (map != null && configFile.exists() && mCatalog.isUpToDate(configFile)) {
+                forgetMarkersAndRoutes(map, entry.getValue());
+            } else {
+                dirsToSearch.add(dir);
+            }
+        }
+
+        if (!dirsToSearch.isEmpty()) {
+            generateMaps(dirsToSearch.toArray(new File[0]));
+        }
+    }
+
+    /**
+     * Remove the maps of a directory which no longer exists.
+     */
+    private void removeMaps(File dir) {
+        String prefix = dir.getPath() + File.separator;
+        List<Map> removed = new ArrayList<>();
+        for (Map map : getMaps()) {
+            if (map.getConfigFile().getPath().startsWith(prefix)) {
+                removed.add(map);
+                mCatalog.remove(map.getConfigFile());
+            }
+        }
+        if (removed.isEmpty()) return;
+
+        mRepository.update(mapList -> mapList.removeAll(removed));
+        mCatalog.save();
+        notifyMapListUpdateListeners();
+    }
+
+    /**
+     * The markers and routes of a map are read when it's shown, so they are read again the next time
+     * if their json file changed. <br>
+     * The current map is left as is, as its markers and routes may be being edited.
+     */
+    private void forgetMarkersAndRoutes(Map map, Set<String> changedFiles) {
+        if (map == MapProvider.INSTANCE.getCurrentMap()) return;
+
+        if (changedFiles.contains(MAP_MARKER_FILE_NAME)) {
+            map.setMarkerGson(new MarkerGson());
+        }
+        if (changedFiles.contains(MAP_ROUTE_FILE_NAME)) {
+            map.setRouteGson(new RouteGson());
+        }
+    }
+
     @Override
     public void onMapImportError(@Nullable MapImporter.MapParseException e) {
         Log.e(TAG, "Error while parsing a map");
@@ -227,12 +369,7 @@ public class MapLoader implements MapImporter.MapImportListener {
     public
     @Nullable
     Map getMap(int mapId) {
-        for (Map map : mMapList) {
-            if (mapId == map.getId()) {
-                return map;
-            }
-        }
-        return null;
+        return mRepository.getMap(mapId);
     }
 
     /**
@@ -256,6 +393,10 @@ public class MapLoader implements MapImporter.MapImportListener {
             Log.e(TAG, e.getMessage(), e);
         }
 
+        /* Keep the catalog up to date, so the map isn't parsed again on next start */
+        mCatalog.put(configFile, map.getMapGson());
+        mCatalog.save();
+
         notifyMapListUpdateListeners();
     }
 
@@ -310,7 +451,10 @@ public class MapLoader implements MapImporter.MapImportListener {
      */
     public void deleteMap(Map map, MapDeletedListener listener) {
         File mapDirectory = map.getDirectory();
-        mMapList.remove(map);
+        releaseBitmapProvider(map);
+        mRepository.update(mapList -> mapList.remove(map));
+        mCatalog.remove(map.getConfigFile());
+        mCatalog.save();
 
         /* Notify for view update */
         notifyMapListUpdateListeners();
@@ -355,7 +499,7 @@ public class MapLoader implements MapImporter.MapImportListener {
 
     private void notifyMapListUpdateListeners() {
         if (mMapListUpdateListener != null) {
-            mMapListUpdateListener.onMapListUpdate(mMapList.size() > 0);
+            mMapListUpdateListener.onMapListUpdate(getMaps().size() > 0);
         }
     }
 
@@ -403,6 +547,10 @@ public class MapLoader implements MapImporter.MapImportListener {
         void onMapDeleted();
     }
 
+    public interface MapsFoundListener {
+        void onMapsFound(List<Map> maps);
+    }
+
     /* Singleton implementation */
     private static class SingletonHolder {
         private static final MapLoader instance = new MapLoader();
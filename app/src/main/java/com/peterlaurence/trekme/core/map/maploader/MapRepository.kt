@@ -0,0 +1,150 @@
+package com.peterlaurence.trekme.core.map.maploader
+
+import com.peterlaurence.trekme.core.map.Map
+import java.io.File
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * The list of maps found. Readers get an immutable snapshot of the list (see [maps]), which can
+ * be read from any thread, and maps can be retrieved by id or by name without a scan.
+ *
+ * All changes go through [update] or [rename], one at a time. Each change replaces the snapshot, then the
+ * [MapListListener]s are told which rows were inserted, removed or changed. They are called on the
+ * thread which made the change, the UI thread in practice.
+ */
+class MapRepository {
+    @Volatile
+    private var snapshot = Snapshot(emptyList())
+    private val listeners = CopyOnWriteArrayList<MapListListener>()
+
+    val maps: List<Map>
+        get() = snapshot.maps
+
+    fun getMap(id: Int): Map? = snapshot.byId[id]
+
+    /**
+     * Get a map given its name, ignoring the case.
+     */
+    fun getMap(name: String): Map? = snapshot.byName[name]
+
+    /**
+     * Get a map given its json file.
+     */
+    fun getMap(configFile: File): Map? = snapshot.byConfigFile[configFile]
+
+    /**
+     * Change the list of maps. The [transform] is given a copy of the list.
+     */
+    @Synchronized
+    fun update(transform: MapListTransform) {
+        val oldMaps = snapshot.maps
+        val newMaps = ArrayList(oldMaps)
+        transform.apply(newMaps)
+
+        val changes = diff(oldMaps, newMaps)
+        if (changes.isEmpty()) return
+        snapshot = Snapshot(Collections.unmodifiableList(newMaps))
+        for (listener in listeners) {
+            listener.onMapListChanged(snapshot.maps, changes)
+        }
+    }
+
+    /**
+     * Rename a map. As maps are indexed by name, the snapshot is replaced, then the row of the map
+     * is changed.
+     */
+    @Synchronized
+    fun rename(map: Map, name: String) {
+        map.name = name
+        val position = snapshot.maps.indexOfFirst { it === map }
+        snapshot = Snapshot(snapshot.maps)
+        if (position < 0) return
+        val changes = listOf(MapListChange(MapListChange.Type.CHANGED, position))
+        for (listener in listeners) {
+            listener.onMapListChanged(snapshot.maps, changes)
+        }
+    }
+
+    fun addListener(listener: MapListListener) {
+        listeners.addIfAbsent(listener)
+    }
+
+    fun removeListener(listener: MapListListener) {
+        listeners.remove(listener)
+    }
+
+    /**
+     * The changes which turn [oldMaps] into [newMaps], to be applied in order. Two maps are the same
+     * row if they have the same json file. A row changes when its map is replaced by another
+     * instance.
+     */
+    internal fun diff(oldMaps: List<Map>, newMaps: List<Map>): List<MapListChange> {
+        val changes = mutableListOf<MapListChange>()
+        val newKeys = newMaps.mapTo(HashSet()) { it.configFile.path }
+
+        /* Removals first, from the end so that positions don't shift */
+        val rows = oldMaps.toMutableList()
+        for (i in rows.indices.reversed()) {
+            if (rows[i].configFile.path !in newKeys) {
+                rows.removeAt(i)
+                changes.add(MapListChange(MapListChange.Type.REMOVED, i))
+            }
+        }
+
+        /* Then the remaining rows are matched with the new list. A row found later is moved */
+        for (i in newMaps.indices) {
+            val map = newMaps[i]
+            val key = map.configFile.path
+            if (i < rows.size && rows[i].configFile.path == key) {
+                if (rows[i] !== map) {
+                    rows[i] = map
+                    changes.add(MapListChange(MapListChange.Type.CHANGED, i))
+                }
+                continue
+            }
+
+            val index = rows.indexOfFirst { it.configFile.path == key }
+            if (index > i) {
+                rows.removeAt(index)
+                changes.add(MapListChange(MapListChange.Type.REMOVED, index))
+            }
+            rows.add(i, map)
+            changes.add(MapListChange(MapListChange.Type.INSERTED, i))
+        }
+        return changes
+    }
+
+    private class Snapshot(val maps: List<Map>) {
+        val byId = HashMap<Int, Map>()
+        val byName = TreeMap<String, Map>(String.CASE_INSENSITIVE_ORDER)
+        val byConfigFile = HashMap<File, Map>()
+
+        init {
+            for (map in maps) {
+                byId[map.id] = map
+                byConfigFile[map.configFile] = map
+                map.name?.let { byName.getOrPut(it) { map } }
+            }
+        }
+    }
+
+    interface MapListTransform {
+        fun apply(maps: MutableList<Map>)
+    }
+
+    @JvmSuppressWildcards
+    interface MapListListener {
+        /**
+         * @param maps the new list of maps
+         * @param changes the changes of rows, to be applied in order
+         */
+        fun onMapListChanged(maps: List<Map>, changes: List<MapListChange>)
+    }
+}
+
+data class MapListChange(val type: Type, val position: Int) {
+    enum class Type {
+        INSERTED, REMOVED, CHANGED
+    }
+}
@@ -0,0 +1,310 @@
+package com.peterlaurence.trekme.core.map.maploader
+
+import android.os.FileObserver
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import com.peterlaurence.trekme.core.download.DownloadJournal
+import com.peterlaurence.trekme.util.UnzipTask
+import java.io.File
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Watches the directories where maps are searched, so that the list of maps follows the maps
+ * added, changed or removed without searching these directories again.
+ *
+ * A [FileObserver] is set on each directory which may be or hold a map, down to the depth at which
+ * maps are searched. Inside a map, only the directory of the map is observed, for its json files.
+ * Tile directories, and the inside of directories which a download or an extraction is writing
+ * into, aren't observed: a new map is only reported once its map.json appears. If there are too
+ * many directories to observe, they are polled instead: the json files found are compared with
+ * those of the previous poll. Once there are few enough, they are observed again.
+ *
+ * Changes come in bursts, e.g when a map is extracted from an archive. They are gathered, then the
+ * [MapFilesListener] is called on the main thread once no change came for a while.
+ */
+class MapWatcher(roots: List<File>, private val listener: MapFilesListener) {
+    /* A root under another one is already watched */
+    private val roots = roots.filter { root -> roots.none { isUnder(root, it) } }.distinct()
+    private val executor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "Map watcher thread").apply { isDaemon = true }
+    }
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
+    /* Guarded by the lock of the watcher */
+    private var started = false
+    private var polling = false
+    private var pollTask: ScheduledFuture<*>? = null
+    private val observers = HashMap<String, DirObserver>()
+    private val pending = HashMap<File, MutableSet<String>>()
+    private var firstPendingTime = 0L
+
+    /* Only used by the thread of the executor */
+    private var polledFiles: Map<String, FileStamp>? = null
+
+    companion object {
+        private const val MAX_DEPTH = 6
+        private const val MAX_OBSERVERS = 512
+        /* Below this number of directories, polling stops */
+        private const val RESUME_OBSERVERS = MAX_OBSERVERS * 3 / 4
+        private const val DEBOUNCE_MS = 1000L
+        private const val MAX_DEBOUNCE_MS = 10_000L
+        private const val POLL_INTERVAL_S = 30L
+        private const val EVENTS = FileObserver.CREATE or FileObserver.DELETE or
+                FileObserver.MOVED_FROM or FileObserver.MOVED_TO or FileObserver.CLOSE_WRITE or
+                FileObserver.DELETE_SELF or FileObserver.MOVE_SELF
+        private val WATCHED_NAMES = setOf(MapLoader.MAP_FILE_NAME, MapLoader.MAP_MARKER_FILE_NAME,
+                MapLoader.MAP_ROUTE_FILE_NAME)
+        /* Files which tell that a directory is being written */
+        private val IN_PROGRESS_NAMES = setOf(DownloadJournal.FILE_NAME, UnzipTask.IN_PROGRESS_FILE_NAME)
+
+        /**
+         * @return the json files which appeared, changed or disappeared between two polls, by
+         * directory
+         */
+        internal fun diffPolls(previous: Map<String, FileStamp>,
+                               current: Map<String, FileStamp>): Map<File, Set<String>> {
+            val changes = HashMap<File, MutableSet<String>>()
+            for (path in previous.keys + current.keys) {
+                if (previous[path] == current[path]) continue
+                val file = File(path)
+                changes.getOrPut(file.parentFile) { HashSet() }.add(file.name)
+            }
+            return changes
+        }
+
+        /**
+         * Drop the directories under another one which changed, as the latter is searched anyway.
+         */
+        internal fun prune(changes: Map<File, Set<String>>): Map<File, Set<String>> {
+            return changes.filterKeys { dir -> changes.keys.none { isUnder(dir, it) } }
+        }
+
+        /**
+         * Collect the json files of the maps under [dir], looking where the watcher would observe.
+         *
+         * @return the number of directories looked into
+         */
+        internal fun findJsonFiles(dir: File, depth: Int, files: MutableMap<String, FileStamp>): Int {
+            if (depth > MAX_DEPTH) return 0
+            for (name in WATCHED_NAMES) {
+                val file = File(dir, name)
+                if (file.isFile) files[file.path] = FileStamp(file.lastModified(), file.length())
+            }
+            if (!isSearchedInside(dir)) return 1
+
+            var count = 1
+            dir.listFiles()?.forEach {
+                if (isSearched(it)) count += findJsonFiles(it, depth + 1, files)
+            }
+            return count
+        }
+
+        /**
+         * @return whether [dir] may be or hold a map. Hidden directories (e.g the tile store) and
+         * tile directories (levels and rows, named by a number) can't.
+         */
+        internal fun isSearched(dir: File): Boolean {
+            return !dir.name.startsWith(".") && dir.name.toIntOrNull() == null && dir.isDirectory
+        }
+
+        /**
+         * @return whether the directories under [dir] may hold maps: not if [dir] is a map, or if
+         * a download or an extraction is writing into it
+         */
+        internal fun isSearchedInside(dir: File): Boolean {
+            if (File(dir, MapLoader.MAP_FILE_NAME).exists()) return false
+            return IN_PROGRESS_NAMES.none { File(dir, it).exists() }
+        }
+
+        private fun isUnder(file: File, dir: File): Boolean {
+            return file.path.startsWith(dir.path + File.separator)
+        }
+    }
+
+    /**
+     * Start watching, in background. Changes made before are not reported.
+     */
+    fun start() {
+        synchronized(this) {
+            if (started) return
+            started = true
+        }
+        executor.execute { roots.forEach { watchTree(it, 1, false) } }
+    }
+
+    /**
+     * @param report whether the maps found are reported, for directories which appeared
+     */
+    private fun watchTree(dir: File, depth: Int, report: Boolean) {
+        if (depth > MAX_DEPTH || !dir.isDirectory || !observe(dir, depth)) return
+
+        /* A map which appeared along with its directory, e.g moved there */
+        if (report && File(dir, MapLoader.MAP_FILE_NAME).exists()) {
+            schedule(dir, MapLoader.MAP_FILE_NAME)
+        }
+        if (!isSearchedInside(dir)) return
+
+        dir.listFiles()?.forEach {
+            if (isSearched(it)) watchTree(it, depth + 1, report)
+        }
+    }
+
+    /**
+     * @return `false` if directories are polled instead
+     */
+    @Synchronized
+    private fun observe(dir: File, depth: Int): Boolean {
+        if (polling) return false
+        if (observers.containsKey(dir.path)) return true
+        if (observers.size >= MAX_OBSERVERS) {
+            startPolling()
+            return false
+        }
+        observers[dir.path] = DirObserver(dir, depth).apply { startWatching() }
+        return true
+    }
+
+    /**
+     * Stop observing a directory and the directories under it.
+     *
+     * @return `true` if the directory was observed
+     */
+    @Synchronized
+    private fun forget(dir: File, includingDir: Boolean = true): Boolean {
+        var found = false
+        val iterator = observers.values.iterator()
+        while (iterator.hasNext()) {
+            val observer = iterator.next()
+            val isDir = observer.dir == dir
+            if ((isDir && includingDir) || isUnder(observer.dir, dir)) {
+                observer.stopWatching()
+                iterator.remove()
+                found = found || isDir
+            }
+        }
+        return found
+    }
+
+    /* Called with the lock held */
+    private fun startPolling() {
+        polling = true
+        observers.values.forEach { it.stopWatching() }
+        observers.clear()
+        pollTask = executor.scheduleWithFixedDelay({ poll() }, 0, POLL_INTERVAL_S, TimeUnit.SECONDS)
+    }
+
+    private fun poll() {
+        val files = HashMap<String, FileStamp>()
+        val dirCount = roots.sumBy { findJsonFiles(it, 1, files) }
+        val previous = polledFiles
+        polledFiles = files
+        if (previous != null) {
+            for ((dir, names) in diffPolls(previous, files)) {
+                names.forEach { schedule(dir, it) }
+            }
+        }
+
+        /* Directories were removed: they can be observed again */
+        if (dirCount < RESUME_OBSERVERS) stopPolling()
+    }
+
+    private fun stopPolling() {
+        synchronized(this) {
+            polling = false
+            pollTask?.cancel(false)
+            pollTask = null
+        }
+        polledFiles = null
+        roots.forEach { watchTree(it, 1, false) }
+    }
+
+    /**
+     * Report a change once no change came for a while, or after [MAX_DEBOUNCE_MS] at most.
+     *
+     * @param name the json file which changed, or `null` if the directory itself appeared or
+     * disappeared
+     */
+    private fun schedule(dir: File, name: String?) {
+        val now = SystemClock.uptimeMillis()
+        val delay = synchronized(this) {
+            if (pending.isEmpty()) firstPendingTime = now
+            val names = pending.getOrPut(dir) { HashSet() }
+            if (name != null) names.add(name)
+            Math.min(DEBOUNCE_MS, firstPendingTime + MAX_DEBOUNCE_MS - now)
+        }
+        mainHandler.removeCallbacks(flush)
+        mainHandler.postDelayed(flush, Math.max(0L, delay))
+    }
+
+    private val flush = Runnable {
+        val changes = synchronized(this) {
+            HashMap<File, Set<String>>(pending).also { pending.clear() }
+        }
+        if (changes.isNotEmpty()) listener.onMapFilesChanged(prune(changes))
+    }
+
+    private inner class DirObserver(val dir: File, val depth: Int) : FileObserver(dir.path, EVENTS) {
+        override fun onEvent(event: Int, path: String?) {
+            when (event and FileObserver.ALL_EVENTS) {
+                FileObserver.DELETE_SELF, FileObserver.MOVE_SELF -> {
+                    /* The parent directory reports it, unless this is a root */
+                    forget(dir)
+                    if (dir in roots) schedule(dir, null)
+                }
+                FileObserver.CREATE, FileObserver.MOVED_TO -> if (path != null) onCreated(path)
+                FileObserver.DELETE, FileObserver.MOVED_FROM -> if (path != null) onDeleted(path)
+                FileObserver.CLOSE_WRITE -> if (path in WATCHED_NAMES) schedule(dir, path)
+            }
+        }
+
+        private fun onCreated(name: String) {
+            if (name in WATCHED_NAMES) {
+                /* The directory became a map, e.g while it's extracted: its content isn't observed */
+                if (name == MapLoader.MAP_FILE_NAME) executor.execute { forget(dir, false) }
+                schedule(dir, name)
+                return
+            }
+
+            /* A download or an extraction writes into the directory */
+            if (name in IN_PROGRESS_NAMES) {
+                executor.execute { forget(dir, false) }
+                return
+            }
+
+            /* A new directory is only reported once a map.json appears in it */
+            val child = File(dir, name)
+            if (!isSearchedInside(dir) || !isSearched(child)) return
+            executor.execute { watchTree(child, depth + 1, true) }
+        }
+
+        private fun onDeleted(name: String) {
+            if (name in WATCHED_NAMES) {
+                schedule(dir, name)
+                return
+            }
+
+            /* The download or the extraction is over: the maps it made are reported */
+            if (name in IN_PROGRESS_NAMES) {
+                executor.execute { watchTree(dir, depth, true) }
+                return
+            }
+
+            val child = File(dir, name)
+            if (forget(child)) schedule(child, null)
+        }
+    }
+
+    internal data class FileStamp(val lastModified: Long, val length: Long)
+
+    @JvmSuppressWildcards
+    interface MapFilesListener {
+        /**
+         * @param changes for each directory, the names of the json files which changed in it. It's
+         * empty when the directory itself appeared or disappeared.
+         */
+        fun onMapFilesChanged(changes: Map<File, Set<String>>)
+    }
+}
@@ -8,72 +8,222 @@ import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.peterlaurence.trekme.core.map.Map;
 import com.peterlaurence.trekme.core.map.gson.MapGson;
+import com.peterlaurence.trekme.core.map.maploader.MapCatalog;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
+import com.peterlaurence.trekme.core.map.maploader.MapRepository;
 import com.peterlaurence.trekme.util.FileUtils;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Searches for maps in directories, and updates the list of maps. <br>
+ * The maps of the {@link MapCatalog} are shown first, so the list of maps doesn't wait for the
+ * search. Then, only the json files which changed since they were cataloged are parsed.
+ * <p>
+ * Json files are parsed, and maps are made (which calibrates them), on a pool of one thread per
+ * core, as soon as they're found. The maps are added to the list as
+ * they are made, so the list fills in while the search goes on.
+ * </p>
+ *
  * @author peterLaurence on 30/04/17.
  */
-public class MapUpdateTask extends AsyncTask<File, Void, Void> {
+public class MapUpdateTask extends AsyncTask<File, List<Map>, List<Map>> {
     MapLoader.MapListUpdateListener mListener;
     Gson mGson;
-    List<Map> mMapList;
+    MapRepository mRepository;
+    private MapCatalog mCatalog;
+    @Nullable
+    private MapLoader.MapsFoundListener mMapsFoundListener;
+    private File[] mDirs;
 
     private List<File> mapFilesFoundList;
     private static final int MAX_RECURSION_DEPTH = 6;
     private static final String TAG = "MapUpdateTask";
 
+    /* Shared by all tasks. Threads are stopped when there's nothing to parse */
+    private static final ThreadPoolExecutor PARSE_EXECUTOR;
+
+    static {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        PARSE_EXECUTOR = new ThreadPoolExecutor(threadCount, threadCount, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "Map parse thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        PARSE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /* Only used by the thread of the task */
+    private CompletionService<ParsedMap> mCompletionService;
+    private int mPendingCount = 0;
+    private Set<File> mCatalogedFiles = new HashSet<>();
+    private Set<File> mChangedFiles = new HashSet<>();
+    private java.util.Map<File, Map> mMaps = new HashMap<>();
+
     public MapUpdateTask(@Nullable MapLoader.MapListUpdateListener listener,
                          Gson gson,
-                         List<Map> mapList) {
+                         MapRepository repository,
+                         MapCatalog catalog) {
         super();
         mListener = listener;
         mGson = gson;
-        mMapList = mapList;
+        mRepository = repository;
+        mCatalog = catalog;
         mapFilesFoundList = new ArrayList<>();
     }
 
+    /**
+     * Be told of the maps found in the searched directories, once the list of maps is updated.
+     */
+    public void setMapsFoundListener(@Nullable MapLoader.MapsFoundListener listener) {
+        mMapsFoundListener = listener;
+    }
+
     @Override
-    protected Void doInBackground(File... dirs) {
-        /* Search for json files */
+    protected List<Map> doInBackground(File... dirs) {
+        mDirs = dirs;
+        mCompletionService = new ExecutorCompletionService<>(PARSE_EXECUTOR);
+
+        /* The cataloged maps are shown first */
+        for (File dir : dirs) {
+            for (java.util.Map.Entry<File, MapGson> entry : mCatalog.getAll(dir).entrySet()) {
+                File f = entry.getKey();
+                MapGson mapGson = entry.getValue();
+                mCatalogedFiles.add(f);
+                submit(() -> new ParsedMap(f, makeMap(mapGson, f), true));
+            }
+        }
+
+        /* Search for json files, which are parsed as soon as they are found */
         for (File dir : dirs) {
             findMaps(dir, 1);
         }
 
-        /* Now parse the json files found */
+        /* Wait for the remaining maps */
+        try {
+            while (mPendingCount > 0) {
+                List<Map> batch = new ArrayList<>();
+                onParsed(mCompletionService.take(), batch);
+                publishCompleted(batch);
+            }
+        } catch (InterruptedException e) {
+            return null;
+        }
+
+        /* Forget the maps which no longer exist */
+        mCatalog.retain(dirs, new HashSet<>(mapFilesFoundList));
+        mCatalog.save();
+
+        List<Map> maps = new ArrayList<>();
         for (File f : mapFilesFoundList) {
-            /* Get json file content as String */
-            String jsonString;
-            try {
-                jsonString = FileUtils.getStringFromFile(f);
-            } catch (Exception e) {
-                // Error while decoding the json file
-                Log.e(TAG, e.getMessage(), e);
-                continue;
+            Map map = mMaps.get(f);
+            if (map != null) {
+                maps.add(map);
             }
+        }
+        return maps;
+    }
 
-            try {
-                /* json deserialization */
-                MapGson mapGson = mGson.fromJson(jsonString, MapGson.class);
+    private void submit(Callable<ParsedMap> callable) {
+        mCompletionService.submit(callable);
+        mPendingCount++;
+    }
 
-                /* Map creation */
-                Map map = mapGson.thumbnail == null ? new Map(mapGson, f, null) :
-                        new Map(mapGson, f, new File(f.getParent(), mapGson.thumbnail));
+    /**
+     * Publish the maps made so far, along with those of the given batch.
+     */
+    @SuppressWarnings("unchecked")
+    private void publishCompleted(List<Map> batch) {
+        Future<ParsedMap> future;
+        while ((future = mCompletionService.poll()) != null) {
+            onParsed(future, batch);
+        }
+        if (!batch.isEmpty()) {
+            publishProgress(batch);
+        }
+    }
 
-                /* Calibration */
-                map.calibrate();
+    private void onParsed(Future<ParsedMap> future, List<Map> batch) {
+        mPendingCount--;
+        ParsedMap parsed;
+        try {
+            parsed = future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return;
+        }
 
-                /* Set BitMapProvider */
-                map.setBitmapProvider(MapLoader.makeBitmapProvider(map));
+        if (parsed.cataloged) {
+            /* A cataloged map which changed is replaced by the one parsed from its json file */
+            if (parsed.map == null || mChangedFiles.contains(parsed.configFile)) return;
+        } else if (parsed.map == null) {
+            mMaps.remove(parsed.configFile);
+            return;
+        }
+        mMaps.put(parsed.configFile, parsed.map);
+        batch.add(parsed.map);
+    }
+
+    @Nullable
+    private Map parseMap(File f) {
+        /* Get json file content as String */
+        String jsonString;
+        try {
+            jsonString = FileUtils.getStringFromFile(f);
+        } catch (Exception e) {
+            // Error while decoding the json file
+            Log.e(TAG, e.getMessage(), e);
+            return null;
+        }
 
-                mMapList.add(map);
-            } catch (JsonSyntaxException | NullPointerException e) {
-                Log.e(TAG, e.getMessage(), e);
+        try {
+            /* json deserialization */
+            MapGson mapGson = mGson.fromJson(jsonString, MapGson.class);
+
+            Map map = makeMap(mapGson, f);
+            if (map != null) {
+                mCatalog.put(f, mapGson);
             }
+            return map;
+        } catch (JsonSyntaxException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+        return null;
+    }
+
+    @Nullable
+    private Map makeMap(MapGson mapGson, File f) {
+        try {
+            /* Map creation */
+            Map map = mapGson.thumbnail == null ? new Map(mapGson, f, null) :
+                    new Map(mapGson, f, new File(f.getParent(), mapGson.thumbnail));
+
+            /* Calibration */
+            map.calibrate();
+
+            /* Set BitMapProvider */
+            map.setBitmapProvider(MapLoader.makeBitmapProvider(map));
+
+            return map;
+        } catch (NullPointerException e) {
+            Log.e(TAG, e.getMessage(), e);
         }
         return null;
     }
@@ -85,6 +235,10 @@ public class MapUpdateTask extends AsyncTask<File, Void, Void> {
         File rootJsonFile = new File(root, MapLoader.MAP_FILE_NAME);
         if (rootJsonFile.exists() && rootJsonFile.isFile()) {
             mapFilesFoundList.add(rootJsonFile);
+            if (!mCatalogedFiles.contains(rootJsonFile) || !mCatalog.isUpToDate(rootJsonFile)) {
+                mChangedFiles.add(rootJsonFile);
+                submit(() -> new ParsedMap(rootJsonFile, parseMap(rootJsonFile), false));
+            }
             return;
         }
 
@@ -93,17 +247,105 @@ public class MapUpdateTask extends AsyncTask<File, Void, Void> {
             return;
         }
 
+        /* Maps made in the meantime are shown while the search goes on */
+        publishCompleted(new ArrayList<>());
+
         for (File f : list) {
-            if (f.isDirectory()) {
+            /* Hidden folders (e.g the tile store) don't contain maps */
+            if (f.isDirectory() && !f.getName().startsWith(".")) {
                 findMaps(f, depth + 1);
             }
         }
     }
 
+    /**
+     * Add the maps made, or replace those which have the same json file.
+     */
     @Override
-    protected void onPostExecute(Void result) {
+    @SafeVarargs
+    protected final void onProgressUpdate(List<Map>... values) {
+        List<Map> made = values[0];
+        mRepository.update(mapList -> {
+            for (Map map : made) {
+                int index = indexOf(mapList, map.getConfigFile());
+                if (index >= 0) {
+                    mapList.set(index, map);
+                } else {
+                    mapList.add(map);
+                }
+            }
+        });
+        notifyListener();
+    }
+
+    /**
+     * Remove the maps of the searched directories which weren't found.
+     */
+    @Override
+    protected void onPostExecute(List<Map> maps) {
+        if (maps == null) return;
+
+        Set<Map> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        found.addAll(maps);
+        mRepository.update(mapList -> {
+            Set<Map> present = Collections.newSetFromMap(new IdentityHashMap<>());
+            Iterator<Map> iterator = mapList.iterator();
+            while (iterator.hasNext()) {
+                Map map = iterator.next();
+                if (isInDirs(map.getConfigFile()) && !found.contains(map)) {
+                    iterator.remove();
+                } else {
+                    present.add(map);
+                }
+            }
+            for (Map map : maps) {
+                if (!present.contains(map)) {
+                    mapList.add(map);
+                }
+            }
+        });
+        notifyListener();
+
+        if (mMapsFoundListener != null) {
+            mMapsFoundListener.onMapsFound(maps);
+        }
+    }
+
+    private void notifyListener() {
         if (mListener != null) {
-            mListener.onMapListUpdate(mMapList.size() > 0);
+            mListener.onMapListUpdate(mRepository.getMaps().size() > 0);
+        }
+    }
+
+    private static int indexOf(List<Map> mapList, File configFile) {
+        for (int i = 0; i < mapList.size(); i++) {
+            if (mapList.get(i).getConfigFile().equals(configFile)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isInDirs(File configFile) {
+        for (File dir : mDirs) {
+            if (configFile.getPath().startsWith(dir.getPath() + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class ParsedMap {
+        final File configFile;
+        @Nullable
+        final Map map;
+        /* Whether the map was made from the catalog, rather than from its json file */
+        final boolean cataloged;
+
+        ParsedMap(File configFile, @Nullable Map map, boolean cataloged) {
+            this.configFile = configFile;
+            this.map = map;
+            this.cataloged = cataloged;
         }
     }
 }
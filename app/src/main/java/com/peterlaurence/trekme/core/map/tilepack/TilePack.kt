@@ -0,0 +1,53 @@
+package com.peterlaurence.trekme.core.map.tilepack
+
+import java.io.File
+
+/**
+ * A tile pack stores all the tiles of a map in a single data file, instead of one file per tile in
+ * a `level/row/col` folder structure. An index file maps each (level, row, col) to the position
+ * and the length of the tile in the data file.
+ *
+ * Data file: a header (magic, version), then one record per tile (level, row, col, length, bytes).
+ * Index file: a header (magic, version, entry count), then the entries sorted by key. Each entry is
+ * a key, an offset in the data file and a length.
+ *
+ * The tiles of a pack are written by a [TilePackWriter] and read by a [TilePackReader].
+ */
+object TilePack {
+    const val DATA_FILE_NAME = "tiles.pack"
+    const val INDEX_FILE_NAME = "tiles.idx"
+
+    const val VERSION = 1
+    internal const val DATA_MAGIC = 0x544B504B     // "TKPK"
+    internal const val INDEX_MAGIC = 0x544B5049    // "TKPI"
+    internal const val DATA_HEADER_SIZE = 8
+    internal const val RECORD_HEADER_SIZE = 16
+    internal const val INDEX_HEADER_SIZE = 12
+    internal const val INDEX_ENTRY_SIZE = 20
+
+    private const val POSITION_BITS = 28
+    private const val POSITION_MASK = (1L shl POSITION_BITS) - 1
+
+    @JvmStatic
+    fun exists(dir: File): Boolean = File(dir, DATA_FILE_NAME).exists()
+
+    /**
+     * Sorting by key sorts tiles by level, then by row, then by col.
+     */
+    internal fun makeKey(level: Int, row: Int, col: Int): Long {
+        return (level.toLong() shl (2 * POSITION_BITS)) or
+                ((row.toLong() and POSITION_MASK) shl POSITION_BITS) or
+                (col.toLong() and POSITION_MASK)
+    }
+
+    internal fun levelOf(key: Long): Int = (key ushr (2 * POSITION_BITS)).toInt()
+    internal fun rowOf(key: Long): Int = ((key ushr POSITION_BITS) and POSITION_MASK).toInt()
+    internal fun colOf(key: Long): Int = (key and POSITION_MASK).toInt()
+}
+
+internal class TilePackEntry(val key: Long, val offset: Long, val length: Int)
+
+/**
+ * The extent of a level of a tile pack.
+ */
+data class TilePackLevel(val level: Int, val rowCount: Int, val colCount: Int)
@@ -0,0 +1,64 @@
+package com.peterlaurence.trekme.core.map.tilepack
+
+import java.io.File
+import java.io.FileFilter
+import java.io.IOException
+
+/**
+ * Converts a map made of a `level/row/col` folder structure into a tile pack, in the same folder.
+ * The tile folders are left untouched by the conversion, so the map stays usable until its
+ * provider is switched. They can be deleted afterwards with [deleteTileFolders].
+ *
+ * This must not be called from the UI thread.
+ */
+object TilePackConverter {
+    /**
+     * @param imageExtension the extension of the tiles, with the dot. For example: ".jpg"
+     * @return `true` if the map was converted
+     */
+    @JvmStatic
+    fun convert(mapDir: File, imageExtension: String): Boolean {
+        val levelDirs = listLevelDirs(mapDir)
+        if (levelDirs.isEmpty()) return false
+
+        return try {
+            val writer = TilePackWriter.open(mapDir)
+            try {
+                for (levelDir in levelDirs) {
+                    if (!packLevel(writer, levelDir, imageExtension)) return false
+                }
+            } finally {
+                writer.close()
+            }
+            true
+        } catch (e: IOException) {
+            e.printStackTrace()
+            false
+        }
+    }
+
+    @JvmStatic
+    fun deleteTileFolders(mapDir: File) {
+        listLevelDirs(mapDir).forEach { it.deleteRecursively() }
+    }
+
+    private fun listLevelDirs(mapDir: File): Array<File> {
+        return mapDir.listFiles(FileFilter { it.isDirectory && it.name.toIntOrNull() != null })
+                ?: arrayOf()
+    }
+
+    private fun packLevel(writer: TilePackWriter, levelDir: File, imageExtension: String): Boolean {
+        val level = levelDir.name.toInt()
+        val rowDirs = levelDir.listFiles(FileFilter { it.isDirectory }) ?: return true
+        for (rowDir in rowDirs) {
+            val row = rowDir.name.toIntOrNull() ?: continue
+            val tileFiles = rowDir.listFiles(FileFilter { it.name.endsWith(imageExtension) }) ?: continue
+            for (tileFile in tileFiles) {
+                val col = tileFile.name.removeSuffix(imageExtension).toIntOrNull() ?: continue
+                if (writer.contains(level, row, col)) continue
+                if (!writer.write(level, row, col, tileFile.readBytes())) return false
+            }
+        }
+        return true
+    }
+}
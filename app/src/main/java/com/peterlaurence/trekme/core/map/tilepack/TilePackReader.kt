@@ -0,0 +1,133 @@
+package com.peterlaurence.trekme.core.map.tilepack
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Reads the tiles of a tile pack. The index is memory-mapped and searched by dichotomy, and tiles
+ * are read with positional reads on the data file. There is no shared position, so this class is
+ * thread-safe.
+ */
+class TilePackReader private constructor(private val dataFile: RandomAccessFile,
+                                         private val index: MappedByteBuffer) : Closeable {
+    private val channel: FileChannel = dataFile.channel
+
+    val tileCount: Int = index.getInt(8)
+
+    companion object {
+        /**
+         * Open the tile pack of [dir]. If its index is missing (e.g the pack was being written when
+         * the app was killed), it's rebuilt from the data file.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun open(dir: File): TilePackReader {
+            val dataFile = File(dir, TilePack.DATA_FILE_NAME)
+            if (!dataFile.exists()) throw IOException("No tile pack in $dir")
+
+            val indexFile = File(dir, TilePack.INDEX_FILE_NAME)
+            if (!indexFile.exists()) {
+                TilePackWriter.open(dir).close()
+            }
+
+            val index = RandomAccessFile(indexFile, "r").use {
+                it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+            }
+            if (index.capacity() < TilePack.INDEX_HEADER_SIZE || index.getInt(0) != TilePack.INDEX_MAGIC) {
+                throw IOException("Corrupted tile pack index in $dir")
+            }
+            return TilePackReader(RandomAccessFile(dataFile, "r"), index)
+        }
+    }
+
+    /**
+     * @return the bytes of the tile, or `null` if the pack doesn't have it
+     */
+    fun readTile(level: Int, row: Int, col: Int): ByteArray? {
+        val entryPosition = findEntry(TilePack.makeKey(level, row, col))
+        if (entryPosition < 0) return null
+
+        val offset = index.getLong(entryPosition + 8)
+        val length = index.getInt(entryPosition + 16)
+        val buffer = ByteBuffer.allocate(length)
+        return try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) return null
+            }
+            buffer.array()
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    /**
+     * The levels of the pack, in ascending order. As tiles are named using indexes, the extent of a
+     * level is given by its greatest row and col.
+     */
+    fun getLevels(): List<TilePackLevel> {
+        val levels = mutableListOf<TilePackLevel>()
+        var currentLevel = -1
+        var maxRow = 0
+        var maxCol = 0
+        for (i in 0 until tileCount) {
+            val key = keyAt(i)
+            val level = TilePack.levelOf(key)
+            if (level != currentLevel) {
+                if (currentLevel >= 0) levels.add(TilePackLevel(currentLevel, maxRow + 1, maxCol + 1))
+                currentLevel = level
+                maxRow = 0
+                maxCol = 0
+            }
+            maxRow = Math.max(maxRow, TilePack.rowOf(key))
+            maxCol = Math.max(maxCol, TilePack.colOf(key))
+        }
+        if (currentLevel >= 0) levels.add(TilePackLevel(currentLevel, maxRow + 1, maxCol + 1))
+        return levels
+    }
+
+    /**
+     * @return the bytes of a tile of the given [level], or `null` if there is none
+     */
+    fun readAnyTile(level: Int): ByteArray? {
+        for (i in 0 until tileCount) {
+            val key = keyAt(i)
+            if (TilePack.levelOf(key) == level) {
+                return readTile(level, TilePack.rowOf(key), TilePack.colOf(key))
+            }
+        }
+        return null
+    }
+
+    override fun close() {
+        try {
+            dataFile.close()
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
+    }
+
+    private fun keyAt(i: Int): Long = index.getLong(TilePack.INDEX_HEADER_SIZE + i * TilePack.INDEX_ENTRY_SIZE)
+
+    /**
+     * @return the position of the entry in the index, or -1 if not found
+     */
+    private fun findEntry(key: Long): Int {
+        var low = 0
+        var high = tileCount - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midKey = keyAt(mid)
+            when {
+                midKey < key -> low = mid + 1
+                midKey > key -> high = mid - 1
+                else -> return TilePack.INDEX_HEADER_SIZE + mid * TilePack.INDEX_ENTRY_SIZE
+            }
+        }
+        return -1
+    }
+}
@@ -0,0 +1,172 @@
+package com.peterlaurence.trekme.core.map.tilepack
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Appends tiles to the data file of a tile pack, and writes its index when closed.
+ *
+ * Each tile is written as a record: its level, row and col, its length, then its bytes. So the
+ * index can always be rebuilt from the data file. When an existing pack is opened (e.g to resume a
+ * download), the records are scanned and a truncated last record is discarded.
+ *
+ * This class is thread-safe. A tile is read from its stream before the data file is locked, so
+ * only the append itself is serialized.
+ */
+class TilePackWriter private constructor(val dir: File, private val file: RandomAccessFile,
+                                         private val entries: HashMap<Long, TilePackEntry>) {
+    private val channel: FileChannel = file.channel
+    private var position = channel.size()
+    private var closed = false
+
+    companion object {
+        /**
+         * Open the tile pack of [dir], or create it if there is none.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun open(dir: File): TilePackWriter {
+            val dataFile = File(dir, TilePack.DATA_FILE_NAME)
+            val file = RandomAccessFile(dataFile, "rw")
+            return try {
+                val entries = if (file.length() < TilePack.DATA_HEADER_SIZE) {
+                    file.setLength(0)
+                    file.writeInt(TilePack.DATA_MAGIC)
+                    file.writeInt(TilePack.VERSION)
+                    HashMap()
+                } else {
+                    recover(file)
+                }
+                TilePackWriter(dir, file, entries)
+            } catch (e: IOException) {
+                file.close()
+                throw e
+            }
+        }
+
+        /**
+         * Scan the records of the data file, and truncate it after the last complete record.
+         */
+        private fun recover(file: RandomAccessFile): HashMap<Long, TilePackEntry> {
+            if (file.readInt() != TilePack.DATA_MAGIC || file.readInt() != TilePack.VERSION) {
+                throw IOException("Not a tile pack")
+            }
+
+            val entries = HashMap<Long, TilePackEntry>()
+            val channel = file.channel
+            val size = channel.size()
+            val header = ByteBuffer.allocate(TilePack.RECORD_HEADER_SIZE)
+            var position = TilePack.DATA_HEADER_SIZE.toLong()
+            while (position + TilePack.RECORD_HEADER_SIZE <= size) {
+                header.clear()
+                channel.read(header, position)
+                val level = header.getInt(0)
+                val row = header.getInt(4)
+                val col = header.getInt(8)
+                val length = header.getInt(12)
+                val offset = position + TilePack.RECORD_HEADER_SIZE
+                if (length <= 0 || offset + length > size) break
+
+                val key = TilePack.makeKey(level, row, col)
+                entries[key] = TilePackEntry(key, offset, length)
+                position = offset + length
+            }
+            channel.truncate(position)
+            return entries
+        }
+    }
+
+    val tileCount: Int
+        @Synchronized get() = entries.size
+
+    @Synchronized
+    fun contains(level: Int, row: Int, col: Int): Boolean {
+        return entries.containsKey(TilePack.makeKey(level, row, col))
+    }
+
+    /**
+     * Read back a tile written by this writer.
+     *
+     * @return the bytes of the tile, or `null` if there is no such tile
+     */
+    fun read(level: Int, row: Int, col: Int): ByteArray? {
+        val entry = synchronized(this) {
+            if (closed) return null
+            entries[TilePack.makeKey(level, row, col)]
+        } ?: return null
+
+        val buffer = ByteBuffer.allocate(entry.length)
+        return try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0) return null
+            }
+            buffer.array()
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    @Synchronized
+    fun write(level: Int, row: Int, col: Int, bytes: ByteArray): Boolean {
+        if (closed) return false
+
+        val buffer = ByteBuffer.allocate(TilePack.RECORD_HEADER_SIZE + bytes.size)
+        buffer.putInt(level).putInt(row).putInt(col).putInt(bytes.size).put(bytes)
+        buffer.flip()
+        return try {
+            var written = 0L
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer, position + written)
+            }
+            val key = TilePack.makeKey(level, row, col)
+            entries[key] = TilePackEntry(key, position + TilePack.RECORD_HEADER_SIZE, bytes.size)
+            position += written
+            true
+        } catch (e: IOException) {
+            e.printStackTrace()
+            false
+        }
+    }
+
+    /**
+     * Write the index, sorted by key, and release the data file. The index is first written to a
+     * temporary file then renamed, so that readers which mapped the previous index aren't
+     * disturbed.
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun close() {
+        if (closed) return
+        closed = true
+
+        try {
+            channel.force(false)
+            writeIndex(entries.values.sortedBy { it.key })
+        } finally {
+            file.close()
+        }
+    }
+
+    private fun writeIndex(sortedEntries: List<TilePackEntry>) {
+        val indexFile = File(dir, TilePack.INDEX_FILE_NAME)
+        val tmpFile = File(dir, TilePack.INDEX_FILE_NAME + ".tmp")
+        val buffer = ByteBuffer.allocate(TilePack.INDEX_HEADER_SIZE + sortedEntries.size * TilePack.INDEX_ENTRY_SIZE)
+        buffer.putInt(TilePack.INDEX_MAGIC).putInt(TilePack.VERSION).putInt(sortedEntries.size)
+        for (entry in sortedEntries) {
+            buffer.putLong(entry.key).putLong(entry.offset).putInt(entry.length)
+        }
+        buffer.flip()
+
+        RandomAccessFile(tmpFile, "rw").use {
+            it.setLength(0)
+            it.channel.write(buffer)
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete()
+            throw IOException("Could not write the index of the tile pack")
+        }
+    }
+}
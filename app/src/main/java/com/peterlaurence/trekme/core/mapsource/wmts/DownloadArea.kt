@@ -0,0 +1,204 @@
+package com.peterlaurence.trekme.core.mapsource.wmts
+
+import com.peterlaurence.trekme.core.projection.MercatorProjection
+import com.peterlaurence.trekme.util.gpx.model.TrackPoint
+
+/**
+ * An area to download, which isn't necessarily a rectangle. Coordinates are WebMercator values.
+ * Only the tiles which intersect the area are downloaded, see [getTileSequenceAndCalibration].
+ */
+interface DownloadArea {
+    val XLeft: Double
+    val YTop: Double
+    val XRight: Double
+    val YBottom: Double
+
+    /**
+     * For each row of tiles from [rowTop] to [rowBottom], add to the corresponding list the ranges
+     * of X covered by the area within the row.
+     *
+     * @param tileSize the size of a tile in meters
+     */
+    fun collectRanges(tileSize: Double, rowTop: Int, rowBottom: Int, ranges: Array<MutableList<XRange>>)
+}
+
+data class XRange(val XMin: Double, val XMax: Double)
+
+/**
+ * A polygon, which can be concave. The last point is implicitly linked to the first one.
+ */
+class PolygonArea(private val points: List<Point>) : DownloadArea {
+    override val XLeft = points.map { it.X }.min()!!
+    override val YTop = points.map { it.Y }.max()!!
+    override val XRight = points.map { it.X }.max()!!
+    override val YBottom = points.map { it.Y }.min()!!
+
+    /**
+     * The part of the polygon within a row is delimited by its edges, and by the parts of the
+     * top and bottom lines of the row which are inside the polygon. So its extent along X is the
+     * union of the extents of those.
+     */
+    override fun collectRanges(tileSize: Double, rowTop: Int, rowBottom: Int, ranges: Array<MutableList<XRange>>) {
+        for (row in rowTop..rowBottom) {
+            val yTop = Y0 - row * tileSize
+            val yBottom = yTop - tileSize
+            val rowRanges = ranges[row - rowTop]
+
+            for (i in points.indices) {
+                val a = points[i]
+                val b = points[(i + 1) % points.size]
+                clipSegment(a, b, yBottom, yTop)?.also { rowRanges.add(it) }
+            }
+            addInsideRanges(yTop, rowRanges)
+            addInsideRanges(yBottom, rowRanges)
+        }
+    }
+
+    /**
+     * Add the parts of the horizontal line at [y] which are inside the polygon (even-odd rule).
+     */
+    private fun addInsideRanges(y: Double, rowRanges: MutableList<XRange>) {
+        val crossings = mutableListOf<Double>()
+        for (i in points.indices) {
+            val a = points[i]
+            val b = points[(i + 1) % points.size]
+            if ((a.Y > y) != (b.Y > y)) {
+                crossings.add(a.X + (y - a.Y) * (b.X - a.X) / (b.Y - a.Y))
+            }
+        }
+        crossings.sort()
+        for (i in 0 until crossings.size - 1 step 2) {
+            rowRanges.add(XRange(crossings[i], crossings[i + 1]))
+        }
+    }
+}
+
+/**
+ * The area within [bufferMeters] of a track. The track is a list of WebMercator points.
+ *
+ * Each segment of the track is turned into a convex polygon which contains the points within the
+ * buffer distance of the segment. As WebMercator inflates distances away from the equator, the
+ * buffer is scaled according to the latitude of the segment.
+ */
+class CorridorArea(private val track: List<Point>, private val bufferMeters: Double) : DownloadArea {
+    init {
+        require(track.isNotEmpty()) { "A corridor needs at least one point" }
+    }
+
+    private val segments: List<List<Point>> = if (track.size == 1) {
+        listOf(makeCapsule(track[0], track[0]))
+    } else {
+        (0 until track.size - 1).map { makeCapsule(track[it], track[it + 1]) }
+    }
+
+    override val XLeft = segments.flatten().map { it.X }.min()!!
+    override val YTop = segments.flatten().map { it.Y }.max()!!
+    override val XRight = segments.flatten().map { it.X }.max()!!
+    override val YBottom = segments.flatten().map { it.Y }.min()!!
+
+    companion object {
+        /* The number of edges used to approximate each half circle at the ends of a segment */
+        private const val HALF_CIRCLE_EDGES = 8
+        private const val EARTH_RADIUS = 6378137.0
+
+        /**
+         * Get the WebMercator points of the points of a GPX track.
+         */
+        @JvmStatic
+        fun projectTrackPoints(trackPoints: List<TrackPoint>): List<Point> {
+            val projection = MercatorProjection()
+            return trackPoints.mapNotNull {
+                projection.doProjection(it.latitude, it.longitude)?.let { xy -> Point(xy[0], xy[1]) }
+            }
+        }
+    }
+
+    override fun collectRanges(tileSize: Double, rowTop: Int, rowBottom: Int, ranges: Array<MutableList<XRange>>) {
+        for (capsule in segments) {
+            /* Only the rows the capsule spans */
+            val capsuleTop = capsule.map { it.Y }.max()!!
+            val capsuleBottom = capsule.map { it.Y }.min()!!
+            val first = Math.max(rowTop, Math.floor((Y0 - capsuleTop) / tileSize).toInt())
+            val last = Math.min(rowBottom, Math.floor((Y0 - capsuleBottom) / tileSize).toInt())
+
+            for (row in first..last) {
+                val yTop = Y0 - row * tileSize
+                val yBottom = yTop - tileSize
+
+                /* The capsule is convex, so its part within the row is a single range */
+                var xMin = Double.MAX_VALUE
+                var xMax = -Double.MAX_VALUE
+                for (i in capsule.indices) {
+                    val range = clipSegment(capsule[i], capsule[(i + 1) % capsule.size], yBottom, yTop)
+                            ?: continue
+                    xMin = Math.min(xMin, range.XMin)
+                    xMax = Math.max(xMax, range.XMax)
+                }
+                if (xMin <= xMax) ranges[row - rowTop].add(XRange(xMin, xMax))
+            }
+        }
+    }
+
+    /**
+     * A polygon which contains all points within the buffer distance of the segment [a]-[b]: two
+     * half circles joined by two lines. The polygon is circumscribed to the half circles.
+     */
+    private fun makeCapsule(a: Point, b: Point): List<Point> {
+        val latitude = Math.atan(Math.sinh((a.Y + b.Y) / 2 / EARTH_RADIUS))
+        val step = Math.PI / HALF_CIRCLE_EDGES
+        val radius = bufferMeters / Math.cos(latitude) / Math.cos(step / 2)
+
+        val angle = if (a == b) 0.0 else Math.atan2(b.Y - a.Y, b.X - a.X)
+        val points = mutableListOf<Point>()
+        for (i in 0..HALF_CIRCLE_EDGES) {
+            val theta = angle - Math.PI / 2 + i * step
+            points.add(Point(b.X + radius * Math.cos(theta), b.Y + radius * Math.sin(theta)))
+        }
+        for (i in 0..HALF_CIRCLE_EDGES) {
+            val theta = angle + Math.PI / 2 + i * step
+            points.add(Point(a.X + radius * Math.cos(theta), a.Y + radius * Math.sin(theta)))
+        }
+        return points
+    }
+}
+
+/**
+ * @return the range of X of the part of the segment [a]-[b] between [yBottom] and [yTop], or
+ * `null` if there is none
+ */
+private fun clipSegment(a: Point, b: Point, yBottom: Double, yTop: Double): XRange? {
+    if (a.Y == b.Y) {
+        return if (a.Y in yBottom..yTop) XRange(Math.min(a.X, b.X), Math.max(a.X, b.X)) else null
+    }
+
+    /* Parameters of the intersections with the two lines, along the segment */
+    val tBottom = (yBottom - a.Y) / (b.Y - a.Y)
+    val tTop = (yTop - a.Y) / (b.Y - a.Y)
+    val tStart = Math.max(0.0, Math.min(tBottom, tTop))
+    val tEnd = Math.min(1.0, Math.max(tBottom, tTop))
+    if (tStart > tEnd) return null
+
+    val x1 = a.X + tStart * (b.X - a.X)
+    val x2 = a.X + tEnd * (b.X - a.X)
+    return XRange(Math.min(x1, x2), Math.max(x1, x2))
+}
+
+/**
+ * The union of several areas, e.g the corridors around each segment of a GPX track.
+ */
+class UnionArea(private val areas: List<DownloadArea>) : DownloadArea {
+    init {
+        require(areas.isNotEmpty()) { "A union needs at least one area" }
+    }
+
+    override val XLeft = areas.map { it.XLeft }.min()!!
+    override val YTop = areas.map { it.YTop }.max()!!
+    override val XRight = areas.map { it.XRight }.max()!!
+    override val YBottom = areas.map { it.YBottom }.min()!!
+
+    override fun collectRanges(tileSize: Double, rowTop: Int, rowBottom: Int, ranges: Array<MutableList<XRange>>) {
+        for (area in areas) {
+            area.collectRanges(tileSize, rowTop, rowBottom, ranges)
+        }
+    }
+}
@@ -6,7 +6,10 @@ data class Tile(val level: Int, val row: Int, val col: Int, val indexLevel: Int,
                 val indexCol: Int)
 
 data class Point(val X: Double, val Y: Double)
-data class IgnMetadata(val tileSequence: Sequence<Tile>, val calibrationPoints: Pair<CalibrationPoint, CalibrationPoint>)
+data class IgnMetadata(val tileRanges: TileRanges, val calibrationPoints: Pair<CalibrationPoint, CalibrationPoint>) {
+    val tileSequence: Sequence<Tile>
+        get() = tileRanges.asSequence()
+}
 
 /**
  * At level 0, an IGN map (which use WebMercator projection) is contained in a single tile of
@@ -28,8 +31,8 @@ data class IgnMetadata(val tileSequence: Sequence<Tile>, val calibrationPoints:
  *    --------------------------
  *                             X1 = -X0
  *                             Y1 = X0
- * This function builds the map as an [Sequence] of [Tile] which contain the area defined by the two
- * supplied points. The build method is:
+ * This function builds the map as [TileRanges] which contain the area defined by the two supplied
+ * points. The build method is:
  *
  * * Start by finding the tiles at min level that overlap the area.
  * * Find the tiles at higher levels that match exactly the the area underneath the tiles at min level
@@ -50,16 +53,35 @@ data class IgnMetadata(val tileSequence: Sequence<Tile>, val calibrationPoints:
 fun getTileSequenceAndCalibration(levelMin: Int, levelMax: Int, point1: Point, point2: Point): IgnMetadata {
     val (XLeft, YTop, XRight, YBottom) = orderCoordinates(point1, point2)
 
-    val tileSequence = getTileSequenceAndCalibration(levelMin, levelMax, XLeft, YTop, XRight, YBottom)
+    val tileRanges = getTileRanges(levelMin, levelMax, XLeft, YTop, XRight, YBottom)
     val calibrationPoints = getCalibrationPoints(levelMin, XLeft, YTop, XRight, YBottom)
 
-    return IgnMetadata(tileSequence, calibrationPoints)
+    return IgnMetadata(tileRanges, calibrationPoints)
 }
 
 fun getNumberOfTiles(levelMin: Int, levelMax: Int, point1: Point, point2: Point): Long {
     val (XLeft, YTop, XRight, YBottom) = orderCoordinates(point1, point2)
 
-    return getNumberOfTiles(levelMin, levelMax, XLeft, YTop, XRight, YBottom)
+    return getTileRanges(levelMin, levelMax, XLeft, YTop, XRight, YBottom).tileCount
+}
+
+/**
+ * Same as above, but only the tiles which intersect the [area] are kept at each level. The levels
+ * still have the rectangle of the bounding box of the area, so the map is calibrated the same way
+ * and missing tiles are just blank.
+ */
+fun getTileSequenceAndCalibration(levelMin: Int, levelMax: Int, area: DownloadArea): IgnMetadata {
+    val tileRanges = getTileRanges(levelMin, levelMax, area)
+    val calibrationPoints = getCalibrationPoints(levelMin, area.XLeft, area.YTop, area.XRight, area.YBottom)
+
+    return IgnMetadata(tileRanges, calibrationPoints)
+}
+
+/**
+ * The exact number of tiles which intersect the [area], from [levelMin] to [levelMax].
+ */
+fun getNumberOfTiles(levelMin: Int, levelMax: Int, area: DownloadArea): Long {
+    return getTileRanges(levelMin, levelMax, area).tileCount
 }
 
 /**
@@ -94,45 +116,62 @@ private fun orderCoordinates(point1: Point, point2: Point): TopLeftToBottomRight
     return TopLeftToBottomRight(XLeft, YTop, XRight, YBottom)
 }
 
-private fun getTileSequenceAndCalibration(levelMin: Int, levelMax: Int, XLeft: Double, YTop: Double, XRight: Double, YBottom: Double): Sequence<Tile> {
-    return Sequence {
-        iterator {
-            /* Level min */
-            var (colLeft, rowTop, colRight, rowBottom) = getLevelArea(levelMin, XLeft, YTop, XRight, YBottom)
-            for ((indexRow, i) in (rowTop..rowBottom).withIndex()) {
-                for ((indexCol, j) in (colLeft..colRight).withIndex()) {
-                    yield(Tile(levelMin, i, j, 0, indexRow, indexCol))
-                }
-            }
-
-            /* Other levels */
-            for (level in (levelMin + 1)..levelMax) {
-                colLeft *= 2
-                rowTop *= 2
-                colRight = (colRight + 1) * 2 - 1
-                rowBottom = (rowBottom + 1) * 2 - 1
-                for ((indexRow, i) in (rowTop..rowBottom).withIndex()) {
-                    for ((indexCol, j) in (colLeft..colRight).withIndex()) {
-                        yield(Tile(level, i, j, level - levelMin, indexRow, indexCol))
-                    }
-                }
-            }
-        }
-    }
-}
-
-private fun getNumberOfTiles(levelMin: Int, levelMax: Int, XLeft: Double, YTop: Double, XRight: Double, YBottom: Double): Long {
+/**
+ * Each level is a rectangle of tiles: the tiles at min level which overlap the area, and the tiles
+ * underneath them at higher levels.
+ */
+private fun getTileRanges(levelMin: Int, levelMax: Int, XLeft: Double, YTop: Double, XRight: Double, YBottom: Double): TileRanges {
+    /* Level min */
     var (colLeft, rowTop, colRight, rowBottom) = getLevelArea(levelMin, XLeft, YTop, XRight, YBottom)
-    val tilesAtLevelMin = (rowBottom - rowTop + 1).toLong() * (colRight - colLeft + 1).toLong()
-    var count = tilesAtLevelMin
+    val levels = mutableListOf(LevelRange(levelMin, 0, rowTop, rowBottom, colLeft, colRight))
+
+    /* Other levels */
     for (level in (levelMin + 1)..levelMax) {
         colLeft *= 2
         rowTop *= 2
         colRight = (colRight + 1) * 2 - 1
         rowBottom = (rowBottom + 1) * 2 - 1
-        count += (rowBottom - rowTop + 1).toLong() * (colRight - colLeft + 1).toLong()
+        levels.add(LevelRange(level, level - levelMin, rowTop, rowBottom, colLeft, colRight))
     }
-    return count
+    return TileRanges(levels)
+}
+
+private fun getTileRanges(levelMin: Int, levelMax: Int, area: DownloadArea): TileRanges {
+    val boundingBox = getTileRanges(levelMin, levelMax, area.XLeft, area.YTop, area.XRight, area.YBottom)
+    return TileRanges(boundingBox.levels.map {
+        it.copy(spans = getRowSpans(it, area))
+    })
+}
+
+/**
+ * For each row of the [range], the spans of the columns whose tiles intersect the [area].
+ */
+private fun getRowSpans(range: LevelRange, area: DownloadArea): RowSpans {
+    val tileSize = getTileInMetersForZoom(range.level)
+    val rowCount = range.rowBottom - range.rowTop + 1
+    val ranges = Array<MutableList<XRange>>(rowCount) { mutableListOf() }
+    area.collectRanges(tileSize, range.rowTop, range.rowBottom, ranges)
+
+    return RowSpans(Array(rowCount) { indexRow ->
+        val spans = mutableListOf<Int>()
+        val sortedRanges = ranges[indexRow].sortedBy { it.XMin }
+        for (xRange in sortedRanges) {
+            /* A range which ends exactly on a tile border doesn't intersect the next tile */
+            val first = Math.max(range.colLeft, Math.floor((xRange.XMin - X0) / tileSize).toInt())
+            val last = Math.min(range.colRight,
+                    Math.max(first, Math.ceil((xRange.XMax - X0) / tileSize).toInt() - 1))
+            if (first > last) continue
+
+            /* Merge with the previous span when they overlap or touch */
+            if (spans.isNotEmpty() && first <= spans[spans.size - 1] + 1) {
+                spans[spans.size - 1] = Math.max(spans[spans.size - 1], last)
+            } else {
+                spans.add(first)
+                spans.add(last)
+            }
+        }
+        spans.toIntArray()
+    })
 }
 
 private fun getCalibrationPoints(level: Int, XLeft: Double, YTop: Double, XRight: Double, YBottom: Double):
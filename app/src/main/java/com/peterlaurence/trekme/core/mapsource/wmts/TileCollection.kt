@@ -0,0 +1,133 @@
+package com.peterlaurence.trekme.core.mapsource.wmts
+
+/**
+ * A collection of [Tile]s which can be accessed by their position, without holding them in memory.
+ * The position of a tile is stable: it's used to track the progress of a download.
+ */
+interface TileCollection {
+    val tileCount: Long
+
+    fun tileAt(index: Long): Tile
+}
+
+/**
+ * The tiles of a level, as a rectangle of rows and columns. The [indexLevel] is the position of the
+ * level in the map, starting from 0.
+ * If [spans] is not `null`, only the tiles of the rectangle which are in the spans belong to the
+ * level. Indexes are still relative to the rectangle.
+ */
+data class LevelRange(val level: Int, val indexLevel: Int, val rowTop: Int, val rowBottom: Int,
+                      val colLeft: Int, val colRight: Int, val spans: RowSpans? = null) {
+    val colCount: Long
+        get() = (colRight - colLeft + 1).toLong()
+
+    val tileCount: Long
+        get() = spans?.tileCount ?: (rowBottom - rowTop + 1).toLong() * colCount
+
+    fun contains(row: Int, col: Int): Boolean {
+        if (row < rowTop || row > rowBottom || col < colLeft || col > colRight) return false
+        return spans?.contains(row - rowTop, col) ?: true
+    }
+
+    /**
+     * @return the tile at [position] in this level
+     */
+    internal fun tileAt(position: Long): Tile {
+        val spans = spans
+        return if (spans != null) {
+            val indexRow = spans.rowAt(position)
+            val col = spans.colAt(indexRow, position)
+            Tile(level, rowTop + indexRow, col, indexLevel, indexRow, col - colLeft)
+        } else {
+            val indexRow = (position / colCount).toInt()
+            val indexCol = (position % colCount).toInt()
+            Tile(level, rowTop + indexRow, colLeft + indexCol, indexLevel, indexRow, indexCol)
+        }
+    }
+}
+
+/**
+ * For each row of a level, the spans of columns which belong to the level. The spans of a row are
+ * stored as (first col, last col) pairs, sorted and disjoint.
+ */
+class RowSpans(internal val rows: Array<IntArray>) {
+    /* The position of the first tile of each row, and the total as the last element */
+    private val rowOffsets = LongArray(rows.size + 1)
+
+    init {
+        for (i in rows.indices) {
+            var count = 0L
+            val spans = rows[i]
+            for (j in 0 until spans.size step 2) {
+                count += spans[j + 1] - spans[j] + 1
+            }
+            rowOffsets[i + 1] = rowOffsets[i] + count
+        }
+    }
+
+    val tileCount: Long
+        get() = rowOffsets[rows.size]
+
+    fun contains(indexRow: Int, col: Int): Boolean {
+        val spans = rows[indexRow]
+        for (j in 0 until spans.size step 2) {
+            if (col >= spans[j] && col <= spans[j + 1]) return true
+        }
+        return false
+    }
+
+    internal fun rowAt(position: Long): Int {
+        /* The last row whose offset is lower or equal to the position */
+        var low = 0
+        var high = rows.size - 1
+        while (low < high) {
+            val mid = (low + high + 1) ushr 1
+            if (rowOffsets[mid] <= position) low = mid else high = mid - 1
+        }
+        return low
+    }
+
+    internal fun colAt(indexRow: Int, position: Long): Int {
+        var remaining = position - rowOffsets[indexRow]
+        val spans = rows[indexRow]
+        for (j in 0 until spans.size step 2) {
+            val length = spans[j + 1] - spans[j] + 1
+            if (remaining < length) return spans[j] + remaining.toInt()
+            remaining -= length
+        }
+        throw IndexOutOfBoundsException("No tile at position $position")
+    }
+}
+
+/**
+ * Tiles described as one [LevelRange] per level. Tiles are ordered by level, then by row, then by
+ * column.
+ */
+class TileRanges(val levels: List<LevelRange>) : TileCollection {
+    override val tileCount: Long = levels.fold(0L) { acc, range -> acc + range.tileCount }
+
+    override fun tileAt(index: Long): Tile {
+        var position = index
+        for (range in levels) {
+            if (position < range.tileCount) {
+                return range.tileAt(position)
+            }
+            position -= range.tileCount
+        }
+        throw IndexOutOfBoundsException("No tile at index $index, the size is $tileCount")
+    }
+
+    fun asSequence(): Sequence<Tile> {
+        return (0 until tileCount).asSequence().map { tileAt(it) }
+    }
+}
+
+/**
+ * Arbitrary tiles, e.g those which failed to be downloaded.
+ */
+class TileList(private val tiles: List<Tile>) : TileCollection {
+    override val tileCount: Long
+        get() = tiles.size.toLong()
+
+    override fun tileAt(index: Long): Tile = tiles[index.toInt()]
+}
@@ -0,0 +1,208 @@
+package com.peterlaurence.trekme.core.metrics
+
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * The metrics of the tile pipeline: how long tiles take to be read, decoded, fetched and written,
+ * how many bytes are read, and how often caches are hit.
+ *
+ * Metrics are created once, so recording a value doesn't allocate anything: it's only a few atomic
+ * operations. They can be shown (see [report]) and reset at any time. The metrics of the
+ * [TileBitmapCache][com.peterlaurence.trekme.core.map.cache.TileBitmapCache] have their own
+ * counters, see its `stats`.
+ */
+object Metrics {
+    private val counters = mutableListOf<Counter>()
+    private val histograms = mutableListOf<Histogram>()
+
+    /* Bounds of the buckets of durations, in microseconds */
+    private val DURATION_BOUNDS_US = longArrayOf(100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000,
+            50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000)
+    private val QUEUE_DEPTH_BOUNDS = longArrayOf(0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512)
+
+    /** Decoding a tile into a bitmap */
+    @JvmField
+    val tileDecode = histogram("tile.decode", DURATION_BOUNDS_US)
+    /** Reading the bytes of a tile from its file, a tile pack or an archive */
+    @JvmField
+    val tileRead = histogram("tile.read", DURATION_BOUNDS_US)
+    /** An HTTP request for a tile, until the response headers are received */
+    @JvmField
+    val httpFetch = histogram("tile.http_fetch", DURATION_BOUNDS_US)
+    /** Writing a downloaded tile, including reading the body of the response */
+    @JvmField
+    val tileWrite = histogram("tile.write", DURATION_BOUNDS_US)
+    /** The time a tile waits in the queue of a decode scheduler before it's decoded */
+    @JvmField
+    val decodeWait = histogram("tile.decode_wait", DURATION_BOUNDS_US)
+    /** The number of tiles waiting to be decoded, each time one is queued */
+    @JvmField
+    val decodeQueueDepth = histogram("tile.decode_queue_depth", QUEUE_DEPTH_BOUNDS, false)
+
+    @JvmField
+    val bytesRead = counter("tile.bytes_read")
+    @JvmField
+    val bytesFetched = counter("tile.bytes_fetched")
+    @JvmField
+    val bytesWritten = counter("tile.bytes_written")
+    @JvmField
+    val httpErrors = counter("tile.http_errors")
+    @JvmField
+    val diskCacheHits = counter("tile.disk_cache.hits")
+    @JvmField
+    val diskCacheMisses = counter("tile.disk_cache.misses")
+    /** Decode requests dropped because their tile was no longer targeted */
+    @JvmField
+    val decodeDropped = counter("tile.decode_dropped")
+
+    @Synchronized
+    fun counter(name: String): Counter {
+        return Counter(name).also { counters.add(it) }
+    }
+
+    /**
+     * @param isDuration whether values are durations, in microseconds
+     */
+    @Synchronized
+    @JvmOverloads
+    fun histogram(name: String, bounds: LongArray, isDuration: Boolean = true): Histogram {
+        return Histogram(name, bounds, isDuration).also { histograms.add(it) }
+    }
+
+    @Synchronized
+    fun reset() {
+        counters.forEach { it.reset() }
+        histograms.forEach { it.reset() }
+    }
+
+    /**
+     * A human readable report of all metrics. Durations are in milliseconds.
+     */
+    @Synchronized
+    fun report(): String {
+        val builder = StringBuilder()
+        for (histogram in histograms) {
+            builder.append(histogram.name).append(": count=").append(histogram.count)
+            if (histogram.count > 0) {
+                val unit = if (histogram.isDuration) 1000.0 else 1.0
+                builder.append(String.format(Locale.US, " mean=%.2f p50<=%s p90<=%s p99<=%s max=%.2f",
+                        histogram.mean / unit, formatBound(histogram.percentile(0.5), unit),
+                        formatBound(histogram.percentile(0.9), unit),
+                        formatBound(histogram.percentile(0.99), unit), histogram.max / unit))
+            }
+            builder.append('\n')
+        }
+        for (counter in counters) {
+            builder.append(counter.name).append(": ").append(counter.count).append('\n')
+        }
+        return builder.toString()
+    }
+
+    /**
+     * Write the [report] to a new file of [dir], after a [header] (device, map, ..).
+     *
+     * @return the file
+     */
+    @Throws(IOException::class)
+    fun dump(dir: File, header: String): File {
+        if (!dir.exists() && !dir.mkdirs()) throw IOException("Can't create $dir")
+        val date = SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(Date())
+        val file = File(dir, "metrics-$date.txt")
+        file.writeText(header + "\n" + report())
+        return file
+    }
+
+    private fun formatBound(bound: Long, unit: Double): String {
+        return if (bound == Long.MAX_VALUE) "inf" else String.format(Locale.US, "%.2f", bound / unit)
+    }
+
+    /**
+     * @return the current time, to give to [Histogram.recordSince]
+     */
+    @JvmStatic
+    fun now(): Long = System.nanoTime()
+}
+
+class Counter internal constructor(val name: String) {
+    private val value = AtomicLong()
+
+    val count: Long
+        get() = value.get()
+
+    fun increment() {
+        value.incrementAndGet()
+    }
+
+    fun add(delta: Long) {
+        value.addAndGet(delta)
+    }
+
+    internal fun reset() = value.set(0)
+}
+
+/**
+ * Counts values in buckets of fixed bounds. Percentiles are approximated by the upper bound of
+ * their bucket.
+ */
+class Histogram internal constructor(val name: String, private val bounds: LongArray,
+                                     val isDuration: Boolean) {
+    private val buckets = AtomicLongArray(bounds.size + 1)
+    private val total = AtomicLong()
+    private val sum = AtomicLong()
+    private val maxValue = AtomicLong()
+
+    val count: Long
+        get() = total.get()
+
+    val mean: Double
+        get() = total.get().let { if (it > 0) sum.get().toDouble() / it else 0.0 }
+
+    val max: Long
+        get() = maxValue.get()
+
+    fun record(value: Long) {
+        var index = 0
+        while (index < bounds.size && value > bounds[index]) index++
+        buckets.incrementAndGet(index)
+        total.incrementAndGet()
+        sum.addAndGet(value)
+
+        var currentMax = maxValue.get()
+        while (value > currentMax && !maxValue.compareAndSet(currentMax, value)) {
+            currentMax = maxValue.get()
+        }
+    }
+
+    /**
+     * Record the duration since [startNs] (see [Metrics.now]), in microseconds.
+     */
+    fun recordSince(startNs: Long) {
+        record((System.nanoTime() - startNs) / 1000)
+    }
+
+    /**
+     * @return the upper bound of the bucket of the [fraction] percentile, or [Long.MAX_VALUE] if
+     * it's in the last bucket
+     */
+    fun percentile(fraction: Double): Long {
+        val target = Math.ceil(total.get() * fraction).toLong()
+        var cumulated = 0L
+        for (i in 0 until buckets.length()) {
+            cumulated += buckets.get(i)
+            if (cumulated >= target) return if (i < bounds.size) bounds[i] else Long.MAX_VALUE
+        }
+        return Long.MAX_VALUE
+    }
+
+    internal fun reset() {
+        for (i in 0 until buckets.length()) buckets.set(i, 0)
+        total.set(0)
+        sum.set(0)
+        maxValue.set(0)
+    }
+}
@@ -3,8 +3,18 @@ package com.peterlaurence.trekme.core.providers.bitmap
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import android.util.Base64
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.MapSourceCredentials
+import com.peterlaurence.trekme.core.metrics.Metrics
+import com.peterlaurence.trekme.core.providers.cache.TileDiskCache
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilder
+import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgn
+import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgnSpain
+import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderOSM
+import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderUSGS
 import java.io.BufferedInputStream
+import java.io.IOException
+import java.io.InputStream
 import java.net.HttpURLConnection
 import java.net.URL
 
@@ -12,6 +22,8 @@ import java.net.URL
 /**
  * Given the level, row and col numbers, a [GenericBitmapProvider] returns a [Bitmap] using the
  * provided [UrlTileBuilder] to build an [URL] and make an HTTP request.
+ * It can also return the raw body of the response with [getTileStream], for callers which don't
+ * need a decoded [Bitmap] (like the download service, which writes tiles straight to disk).
  * Here is also defined the kind of provider used for each particular case (IGN, USGS, etc).
  */
 open class GenericBitmapProvider protected constructor(open val urlTileBuilder: UrlTileBuilder, options: BitmapFactory.Options? = null) {
@@ -31,6 +43,25 @@ open class GenericBitmapProvider protected constructor(open val urlTileBuilder:
         fun getBitmapProviderUSGS(urlTileBuilder: UrlTileBuilder): GenericBitmapProvider {
             return GenericBitmapProvider(urlTileBuilder)
         }
+
+        /**
+         * The provider of the tiles of a [MapSource] and layer, or `null` if the source requires
+         * credentials which aren't set.
+         */
+        fun getBitmapProvider(source: MapSource, layerRealName: String): GenericBitmapProvider? {
+            return when (source) {
+                MapSource.IGN -> {
+                    val ignCredentials = MapSourceCredentials.getIGNCredentials() ?: return null
+
+                    val urlTileBuilder = UrlTileBuilderIgn(ignCredentials.api ?: "", layerRealName)
+                    getBitmapProviderIgn(urlTileBuilder, ignCredentials.user ?: "", ignCredentials.pwd
+                            ?: "")
+                }
+                MapSource.USGS -> getBitmapProviderUSGS(UrlTileBuilderUSGS())
+                MapSource.OPEN_STREET_MAP -> getBitmapProviderOSM(UrlTileBuilderOSM())
+                MapSource.IGN_SPAIN -> getBitmapProviderIgnSpain(UrlTileBuilderIgnSpain())
+            }
+        }
     }
 
     var bitmapLoadingOptions = options ?: BitmapFactory.Options()
@@ -40,9 +71,7 @@ open class GenericBitmapProvider protected constructor(open val urlTileBuilder:
     }
 
     open fun getBitmap(level: Int, row: Int, col: Int): Bitmap? {
-        val url = URL(urlTileBuilder.build(level, row, col))
-        val connection = url.openConnection() as HttpURLConnection
-        connection.doInput = true
+        val connection = createConnection(level, row, col)
 
         return try {
             connection.connect()
@@ -57,37 +86,117 @@ open class GenericBitmapProvider protected constructor(open val urlTileBuilder:
         }
     }
 
+    /**
+     * Same as [getBitmap], but the tiles are first looked up in a [TileDiskCache], and the fetched
+     * ones are added to it. A stale tile is used as is, and fetched again in background. In offline
+     * only mode, no request is made.
+     */
+    fun getCachedBitmap(cache: TileDiskCache, source: MapSource, layer: String, level: Int, row: Int,
+                        col: Int): Bitmap? {
+        val cachedTile = cache.get(source, layer, level, row, col)
+        if (cachedTile != null) {
+            val start = Metrics.now()
+            val bitmap = BitmapFactory.decodeFile(cachedTile.file.path, bitmapLoadingOptions)
+            Metrics.tileDecode.recordSince(start)
+            if (bitmap != null) {
+                if (cachedTile.isStale && !cache.offlineOnly) {
+                    cache.revalidate(source, layer, level, row, col) { getTileBytes(level, row, col) }
+                }
+                return bitmap
+            }
+        }
+        if (cache.offlineOnly) return null
+
+        val bytes = getTileBytes(level, row, col) ?: return null
+        cache.put(source, layer, level, row, col, bytes)
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.size, bitmapLoadingOptions)
+    }
+
+    /**
+     * @return the body of the HTTP response, or `null` if the request failed or it isn't an image
+     */
+    fun getTileBytes(level: Int, row: Int, col: Int): ByteArray? {
+        val inputStream = getTileStream(level, row, col).inputStream ?: return null
+        return try {
+            inputStream.use { it.readBytes() }.also { Metrics.bytesFetched.add(it.size.toLong()) }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    /**
+     * Get the body of the HTTP response, without decoding it. The original format of the tile (jpeg,
+     * png, ..) is preserved. The first bytes are checked against known image signatures, so that
+     * an error page (html, xml) sent with a 200 status code isn't mistaken for a tile.
+     *
+     * The time until the response is received is recorded in [Metrics.httpFetch].
+     *
+     * @return a [TileStreamResult], whose stream must be closed by the caller.
+     */
+    fun getTileStream(level: Int, row: Int, col: Int): TileStreamResult {
+        val connection = createConnection(level, row, col)
+
+        val start = Metrics.now()
+        return try {
+            connection.connect()
+            val responseCode = connection.responseCode
+            Metrics.httpFetch.recordSince(start)
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Metrics.httpErrors.increment()
+                connection.disconnect()
+                return TileStreamResult(null, responseCode)
+            }
+
+            val inputStream = BufferedInputStream(connection.inputStream)
+            if (connection.contentType.isTextual() || !inputStream.hasImageSignature()) {
+                inputStream.close()
+                connection.disconnect()
+                TileStreamResult(null, responseCode)
+            } else {
+                TileStreamResult(inputStream, responseCode, connection.contentLength.toLong())
+            }
+        } catch (e: Exception) {
+            connection.disconnect()
+            e.printStackTrace()
+            Metrics.httpErrors.increment()
+            TileStreamResult(null, NO_RESPONSE)
+        }
+    }
+
     open fun setBitmapOptions(options: BitmapFactory.Options) {
         bitmapLoadingOptions = options
     }
+
+    protected open fun createConnection(level: Int, row: Int, col: Int): HttpURLConnection {
+        val url = URL(urlTileBuilder.build(level, row, col))
+        val connection = url.openConnection() as HttpURLConnection
+        connection.doInput = true
+        return connection
+    }
 }
 
+/**
+ * The outcome of [GenericBitmapProvider.getTileStream]. When [inputStream] is `null`, the request
+ * failed. The [responseCode] then tells whether the server refused it (429, 503, ..), or if it
+ * couldn't be reached at all ([NO_RESPONSE]).
+ * The [contentLength] is the size of the body announced by the server, or -1 if unknown.
+ */
+class TileStreamResult(val inputStream: InputStream?, val responseCode: Int, val contentLength: Long = -1)
+
+const val NO_RESPONSE = -1
+
 /**
  * Same as [GenericBitmapProvider], but using basic authentication.
  */
 class GenericBitmapProviderAuth(override val urlTileBuilder: UrlTileBuilder, private val user: String, private val pwd: String,
                                 options: BitmapFactory.Options? = null) : GenericBitmapProvider(urlTileBuilder, options) {
 
-    override fun getBitmap(level: Int, row: Int, col: Int): Bitmap? {
-
-        val url = URL(urlTileBuilder.build(level, row, col))
-        val connection = url.openConnection() as HttpURLConnection
-        connection.doInput = true
+    override fun createConnection(level: Int, row: Int, col: Int): HttpURLConnection {
+        val connection = super.createConnection(level, row, col)
 
         /* Set authentication */
         connection.setAuth()
-
-        return try {
-            connection.connect()
-            val inputStream = BufferedInputStream(connection.inputStream)
-            val myBitmap = BitmapFactory.decodeStream(inputStream, null, bitmapLoadingOptions)
-            inputStream.close()
-            myBitmap
-        } catch (e: Exception) {
-            connection.disconnect()
-            e.printStackTrace()
-            null
-        }
+        return connection
     }
 
     private fun HttpURLConnection.setAuth() {
@@ -97,3 +206,36 @@ class GenericBitmapProviderAuth(override val urlTileBuilder: UrlTileBuilder, pri
     }
 }
 
+/**
+ * Servers sometimes respond with an error page (html, xml) instead of an image.
+ */
+private fun String?.isTextual(): Boolean {
+    if (this == null) return false
+    return startsWith("text/") || contains("xml") || contains("html")
+}
+
+/**
+ * Peek at the first bytes of the stream, and check them against jpeg, png, gif and webp
+ * signatures. The stream is reset afterwards, so nothing is consumed.
+ */
+private fun BufferedInputStream.hasImageSignature(): Boolean {
+    val header = ByteArray(12)
+    mark(header.size)
+    var read = 0
+    while (read < header.size) {
+        val count = read(header, read, header.size - read)
+        if (count == -1) break
+        read += count
+    }
+    reset()
+
+    fun matches(offset: Int, vararg bytes: Int): Boolean {
+        if (read < offset + bytes.size) return false
+        return bytes.withIndex().all { (i, b) -> header[offset + i] == b.toByte() }
+    }
+
+    return matches(0, 0xFF, 0xD8, 0xFF) ||                                  // jpeg
+            matches(0, 0x89, 0x50, 0x4E, 0x47) ||                           // png
+            matches(0, 0x47, 0x49, 0x46, 0x38) ||                           // gif
+            (matches(0, 0x52, 0x49, 0x46, 0x46) && matches(8, 0x57, 0x45, 0x42, 0x50))  // webp
+}
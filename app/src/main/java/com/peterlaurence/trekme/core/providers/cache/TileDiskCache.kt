@@ -0,0 +1,190 @@
+package com.peterlaurence.trekme.core.providers.cache
+
+import android.content.Context
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.metrics.Metrics
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * A disk cache of the tiles fetched from online providers, when the user browses a [MapSource]
+ * to create a map. Tiles are identified by their source, layer, level, row and col. So panning back
+ * over an area, or switching back to a layer, doesn't download the tiles again.
+ *
+ * The total size of the tiles is bounded by [maxSize], in bytes. When it's exceeded, the least
+ * recently used tiles are deleted. A tile older than [maxAge] is stale: it's still used, but
+ * should be fetched again in background (see [revalidate]). In [offlineOnly] mode, providers only
+ * use the tiles of the cache.
+ *
+ * The cache lives in the cache dir of the application, so the system may also delete it. The
+ * order of use of the tiles is kept in memory, and is initialized from the modification dates of
+ * the files. This class is thread-safe.
+ */
+class TileDiskCache(val dir: File, val maxSize: Long, private val maxAge: Long = DEFAULT_MAX_AGE,
+                    private val clock: () -> Long = System::currentTimeMillis) {
+    /* Relative path of each tile to its size, in access order. Loaded on first use */
+    private var index: LinkedHashMap<String, Long>? = null
+
+    var size = 0L
+        @Synchronized get
+        private set
+
+    @Volatile
+    var offlineOnly = false
+
+    private val pendingRevalidations = HashSet<String>()
+    private val revalidationExecutor = ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            LinkedBlockingQueue<Runnable>()) { runnable ->
+        Thread(runnable, "Tile revalidation thread").apply {
+            priority = Thread.MIN_PRIORITY
+            isDaemon = true
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_SIZE = 200L * 1024 * 1024
+        private const val DEFAULT_MAX_AGE = 7L * 24 * 3600 * 1000
+        private const val DIR_NAME = "tiles"
+
+        @Volatile
+        private var instance: TileDiskCache? = null
+
+        /**
+         * The cache shared by the providers and the download service.
+         */
+        @JvmStatic
+        fun getInstance(context: Context): TileDiskCache {
+            return instance ?: synchronized(this) {
+                instance ?: TileDiskCache(File(context.applicationContext.cacheDir, DIR_NAME),
+                        DEFAULT_MAX_SIZE).also { instance = it }
+            }
+        }
+
+        private fun sanitize(name: String): String = name.replace(Regex("[^A-Za-z0-9._-]"), "_")
+    }
+
+    /**
+     * @return the cached tile, or `null` if there is none
+     */
+    fun get(source: MapSource, layer: String, level: Int, row: Int, col: Int): CachedTile? {
+        val path = makePath(source, layer, level, row, col)
+        val file = File(dir, path)
+        synchronized(this) {
+            val index = getIndex()
+            if (index[path] == null) {
+                Metrics.diskCacheMisses.increment()
+                return null
+            }
+
+            /* The tile may have been deleted by the system */
+            if (!file.exists()) {
+                size -= index.remove(path) ?: 0L
+                Metrics.diskCacheMisses.increment()
+                return null
+            }
+        }
+        Metrics.diskCacheHits.increment()
+        return CachedTile(file, clock() - file.lastModified() > maxAge)
+    }
+
+    /**
+     * Add or replace a tile. The least recently used tiles are then deleted if the cache is too
+     * big.
+     */
+    fun put(source: MapSource, layer: String, level: Int, row: Int, col: Int, bytes: ByteArray) {
+        if (bytes.size > maxSize) return
+        val path = makePath(source, layer, level, row, col)
+        val file = File(dir, path)
+        file.parentFile.mkdirs()
+
+        /* The tile file is only created by a rename, once entirely written */
+        val tmpFile = File(file.parentFile, "${file.name}.${Thread.currentThread().id}.tmp")
+        try {
+            tmpFile.writeBytes(bytes)
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete()
+                return
+            }
+        } catch (e: IOException) {
+            tmpFile.delete()
+            return
+        }
+
+        synchronized(this) {
+            val index = getIndex()
+            size -= index.put(path, bytes.size.toLong()) ?: 0L
+            size += bytes.size
+            trimToSize(maxSize)
+        }
+    }
+
+    /**
+     * Fetch a stale tile again, on a background thread. Nothing is done if that tile is already
+     * being fetched. If [fetch] fails, the stale tile is kept.
+     */
+    fun revalidate(source: MapSource, layer: String, level: Int, row: Int, col: Int,
+                   fetch: () -> ByteArray?) {
+        val path = makePath(source, layer, level, row, col)
+        synchronized(pendingRevalidations) {
+            if (!pendingRevalidations.add(path)) return
+        }
+        revalidationExecutor.execute {
+            try {
+                if (!offlineOnly) {
+                    fetch()?.also { put(source, layer, level, row, col, it) }
+                }
+            } finally {
+                synchronized(pendingRevalidations) {
+                    pendingRevalidations.remove(path)
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used tiles, until the total size is at most [targetSize].
+     */
+    @Synchronized
+    fun trimToSize(targetSize: Long) {
+        val iterator = getIndex().entries.iterator()
+        while (size > targetSize && iterator.hasNext()) {
+            val entry = iterator.next()
+            iterator.remove()
+            size -= entry.value
+            File(dir, entry.key).delete()
+        }
+    }
+
+    private fun makePath(source: MapSource, layer: String, level: Int, row: Int, col: Int): String {
+        val layerDir = if (layer.isEmpty()) source.name else source.name + File.separator + sanitize(layer)
+        return layerDir + File.separator + level + File.separator + row + File.separator + col
+    }
+
+    /* Called with the lock held */
+    private fun getIndex(): LinkedHashMap<String, Long> {
+        index?.also { return it }
+
+        val files = dir.walkTopDown().filter { it.isFile }.toMutableList()
+        val tmpFiles = files.filter { it.name.endsWith(".tmp") }
+        tmpFiles.forEach { it.delete() }
+        files.removeAll(tmpFiles)
+
+        val newIndex = LinkedHashMap<String, Long>(Math.max(16, files.size * 2), 0.75f, true)
+        val rootLength = dir.path.length + 1
+        for (file in files.sortedBy { it.lastModified() }) {
+            val length = file.length()
+            newIndex[file.path.substring(rootLength)] = length
+            size += length
+        }
+        index = newIndex
+        return newIndex
+    }
+}
+
+/**
+ * A tile of the [TileDiskCache]. When [isStale], it should be fetched again.
+ */
+class CachedTile(val file: File, val isStale: Boolean)
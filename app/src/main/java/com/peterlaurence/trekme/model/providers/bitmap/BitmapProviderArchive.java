@@ -0,0 +1,112 @@
+package com.peterlaurence.trekme.model.providers.bitmap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.SparseArray;
+
+import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache;
+import com.peterlaurence.trekme.core.map.cache.TileDecoder;
+import com.peterlaurence.trekme.core.map.gson.MapGson;
+import com.peterlaurence.trekme.core.map.maparchiver.MountedArchive;
+import com.peterlaurence.trekme.core.metrics.Metrics;
+import com.qozix.tileview.graphics.BitmapProvider;
+import com.qozix.tileview.tiles.Tile;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An implementation of {@link BitmapProvider}, able to read the tiles of a mounted archive (see
+ * {@link com.peterlaurence.trekme.core.map.maparchiver.MapArchiver#mount}) straight from the zip
+ * file. The archive is opened on the first request, and closed when the map is released. Decoded tiles are kept in the
+ * {@link TileBitmapCache}, and decoded into pooled bitmaps when possible (see {@link TileDecoder}).
+ */
+public class BitmapProviderArchive implements PrefetchableBitmapProvider {
+    private final File mArchiveFile;
+    private final int mMapId;
+    private final SparseArray<MapGson.Level.TileSize> mTileSizes = new SparseArray<>();
+    private volatile MountedArchive mArchive;
+
+    public BitmapProviderArchive(Map map, File archiveFile) {
+        mArchiveFile = archiveFile;
+        mMapId = map.getId();
+        for (MapGson.Level level : map.getLevelList()) {
+            mTileSizes.put(level.level, level.tile_size);
+        }
+    }
+
+    @Override
+    public Bitmap getBitmap(Tile tile, Context context) {
+        Object zoomLvl = tile.getData();
+        if (zoomLvl instanceof Integer) {
+            int level = (Integer) zoomLvl;
+            Bitmap cached = TileBitmapCache.get(mMapId, level, tile.getRow(), tile.getColumn());
+            if (cached != null) return cached;
+
+            Bitmap bitmap = decode(level, tile.getRow(), tile.getColumn());
+            if (bitmap != null) {
+                TileBitmapCache.put(mMapId, level, tile.getRow(), tile.getColumn(), bitmap);
+            }
+            return bitmap;
+        }
+        return null;
+    }
+
+    @Override
+    public void prefetch(int level, int row, int col) {
+        if (TileBitmapCache.contains(mMapId, level, row, col)) return;
+
+        Bitmap bitmap = decode(level, row, col);
+        if (bitmap != null) {
+            TileBitmapCache.put(mMapId, level, row, col, bitmap, false);
+        }
+    }
+
+    /**
+     * Close the archive. It's opened again on the next request.
+     */
+    @Override
+    public synchronized void release() {
+        if (mArchive != null) {
+            mArchive.close();
+            mArchive = null;
+        }
+    }
+
+    private Bitmap decode(int level, int row, int col) {
+        try {
+            MountedArchive archive = getArchive();
+            if (archive == null) return null;
+
+            long start = Metrics.now();
+            byte[] bytes = archive.readTile(level, row, col);
+            Metrics.tileRead.recordSince(start);
+            if (bytes == null) return null;
+            Metrics.bytesRead.add(bytes.length);
+
+            MapGson.Level.TileSize tileSize = mTileSizes.get(level);
+            return tileSize != null ?
+                    TileDecoder.decodeByteArray(bytes, tileSize.x, tileSize.y) :
+                    TileDecoder.decodeByteArray(bytes, 0, 0);
+        } catch (OutOfMemoryError | Exception e) {
+            // same as BitmapProviderLibVips, give up for this tile
+        }
+        return null;
+    }
+
+    private MountedArchive getArchive() {
+        if (mArchive == null) {
+            synchronized (this) {
+                if (mArchive == null) {
+                    try {
+                        mArchive = MountedArchive.open(mArchiveFile);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        return mArchive;
+    }
+}
@@ -3,7 +3,9 @@ package com.peterlaurence.trekme.model.providers.bitmap
 import android.content.Context
 import android.graphics.Bitmap
 import com.peterlaurence.trekme.core.mapsource.IGNCredentials
+import com.peterlaurence.trekme.core.mapsource.MapSource
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
+import com.peterlaurence.trekme.core.providers.cache.TileDiskCache
 import com.peterlaurence.trekme.core.providers.layers.IgnLayers
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgn
 import com.qozix.tileview.graphics.BitmapProvider
@@ -19,7 +21,7 @@ import com.qozix.tileview.tiles.Tile
  *
  * @author peterLaurence on 11/05/18
  */
-class BitmapProviderIgn(credentials: IGNCredentials, layer: String = IgnLayers.ScanExpressStandard.realName) : BitmapProvider {
+class BitmapProviderIgn(credentials: IGNCredentials, private val layer: String = IgnLayers.ScanExpressStandard.realName) : BitmapProvider {
     private val genericProvider: GenericBitmapProvider
 
     init {
@@ -32,6 +34,9 @@ class BitmapProviderIgn(credentials: IGNCredentials, layer: String = IgnLayers.S
     override fun getBitmap(tile: Tile, p1: Context?): Bitmap? {
         val zoomLvl = tile.data as Int
 
-        return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        /* Tiles are kept on disk, so they aren't downloaded again */
+        val cache = p1?.let { TileDiskCache.getInstance(it) }
+                ?: return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        return genericProvider.getCachedBitmap(cache, MapSource.IGN, layer, zoomLvl, tile.row, tile.column)
     }
 }
\ No newline at end of file
@@ -2,9 +2,12 @@ package com.peterlaurence.trekme.model.providers.bitmap;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.util.SparseArray;
 
 import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache;
+import com.peterlaurence.trekme.core.map.cache.TileDecoder;
+import com.peterlaurence.trekme.core.map.gson.MapGson;
 import com.qozix.tileview.graphics.BitmapProvider;
 import com.qozix.tileview.tiles.Tile;
 
@@ -12,22 +15,24 @@ import java.io.File;
 
 /**
  * An implementation of {@link BitmapProvider}, able to read maps generated by LibVips.
+ * Decoded tiles are kept in the {@link TileBitmapCache}, and decoded into pooled bitmaps when
+ * possible (see {@link TileDecoder}).
  */
-public class BitmapProviderLibVips implements BitmapProvider {
+public class BitmapProviderLibVips implements PrefetchableBitmapProvider {
     private final File mDirectory;
+    private final int mMapId;
+    private final SparseArray<MapGson.Level.TileSize> mTileSizes = new SparseArray<>();
 
     public static final String GENERATOR_NAME = "VIPS";
 
     private final String mImageExtension;
 
-    private static final BitmapFactory.Options bitmapLoadingOptions = new BitmapFactory.Options();
-
-    static {
-        bitmapLoadingOptions.inPreferredConfig = Bitmap.Config.RGB_565;
-    }
-
     public BitmapProviderLibVips(Map map){
         mDirectory = map.getDirectory();
+        mMapId = map.getId();
+        for (MapGson.Level level : map.getLevelList()) {
+            mTileSizes.put(level.level, level.tile_size);
+        }
         mImageExtension = map.getImageExtension();
     }
 
@@ -35,17 +40,47 @@ public class BitmapProviderLibVips implements BitmapProvider {
     public Bitmap getBitmap(Tile tile, Context context) {
         Object zoomLvl = tile.getData();
         if(zoomLvl instanceof Integer){
+            int level = (Integer) zoomLvl;
+            Bitmap cached = TileBitmapCache.get(mMapId, level, tile.getRow(), tile.getColumn());
+            if (cached != null) return cached;
 
-            String relativePathString = zoomLvl.toString() + File.separator + tile.getRow() +
-                    File.separator + tile.getColumn() + mImageExtension;
-            try {
-                File tileFile = new File(mDirectory, relativePathString);
-
-                return BitmapFactory.decodeFile(tileFile.getPath(), bitmapLoadingOptions);
-            } catch (OutOfMemoryError | Exception e){
-                // this is probably an out of memory error - we can try sleeping (this method won't
-                // be called in the UI thread) or try again (or give up)
+            Bitmap bitmap = decode(level, tile.getRow(), tile.getColumn());
+            if (bitmap != null) {
+                TileBitmapCache.put(mMapId, level, tile.getRow(), tile.getColumn(), bitmap);
             }
+            return bitmap;
+        }
+        return null;
+    }
+
+    @Override
+    public void prefetch(int level, int row, int col) {
+        if (TileBitmapCache.contains(mMapId, level, row, col)) return;
+
+        Bitmap bitmap = decode(level, row, col);
+        if (bitmap != null) {
+            TileBitmapCache.put(mMapId, level, row, col, bitmap, false);
+        }
+    }
+
+    @Override
+    public void release() {
+        // each tile is a file, opened on each request
+    }
+
+    private Bitmap decode(int level, int row, int col) {
+        String relativePathString = level + File.separator + row + File.separator + col +
+                mImageExtension;
+        try {
+            File tileFile = new File(mDirectory, relativePathString);
+
+            MapGson.Level.TileSize tileSize = mTileSizes.get(level);
+            return tileSize != null ?
+                    TileDecoder.decodeFile(tileFile.getPath(), tileSize.x, tileSize.y) :
+                    TileDecoder.decodeFile(tileFile.getPath(), 0, 0);
+        } catch (OutOfMemoryError | Exception e){
+            // this is probably an out of memory error - we can try sleeping (this method won't
+            // be called in the UI thread) or try again (or give up)
         }
         return null;
     }
@@ -2,7 +2,9 @@ package com.peterlaurence.trekme.model.providers.bitmap
 
 import android.content.Context
 import android.graphics.Bitmap
+import com.peterlaurence.trekme.core.mapsource.MapSource
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
+import com.peterlaurence.trekme.core.providers.cache.TileDiskCache
 import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderUSGS
 import com.qozix.tileview.graphics.BitmapProvider
 import com.qozix.tileview.tiles.Tile
@@ -14,6 +16,9 @@ class BitmapProviderUSGS : BitmapProvider {
     override fun getBitmap(tile: Tile, p1: Context?): Bitmap? {
         val zoomLvl = tile.data as Int
 
-        return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        /* Tiles are kept on disk, so they aren't downloaded again */
+        val cache = p1?.let { TileDiskCache.getInstance(it) }
+                ?: return genericProvider.getBitmap(zoomLvl, tile.row, tile.column)
+        return genericProvider.getCachedBitmap(cache, MapSource.USGS, "", zoomLvl, tile.row, tile.column)
     }
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package com.peterlaurence.trekme.model.providers.bitmap;
+
+import com.qozix.tileview.graphics.BitmapProvider;
+
+/**
+ * A {@link BitmapProvider} which can decode a tile ahead of time, so it's already in memory when
+ * the TileView asks for it. See {@link com.peterlaurence.trekme.core.map.cache.TilePrefetcher}.
+ */
+public interface PrefetchableBitmapProvider extends BitmapProvider {
+    /**
+     * Decode a tile and keep it in memory, unless it's already there. This is called on a
+     * background thread.
+     */
+    void prefetch(int level, int row, int col);
+
+    /**
+     * Close the files the provider keeps open, when its map isn't displayed anymore. They are
+     * opened again on the next request.
+     */
+    void release();
+}
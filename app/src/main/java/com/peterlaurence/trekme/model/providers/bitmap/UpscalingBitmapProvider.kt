@@ -0,0 +1,203 @@
+package com.peterlaurence.trekme.model.providers.bitmap
+
+import android.content.Context
+import android.graphics.*
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache
+import com.peterlaurence.trekme.core.map.cache.TileDecodeScheduler
+import com.qozix.tileview.tiles.Tile
+
+/**
+ * Wraps the [PrefetchableBitmapProvider] of an offline map, so that a tile which isn't decoded yet
+ * is immediately shown as an upscaled crop of its parent tile, when the parent tile is in the
+ * [TileBitmapCache]. When zooming in, the TileView then doesn't show blank cells while the tiles of
+ * the new detail level are decoded.
+ *
+ * The actual tile is decoded by the [scheduler], then drawn into the placeholder bitmap. So the
+ * tile the TileView holds is updated in place, and [onTileReplaced] is called to redraw it. If the
+ * placeholder was released in the meantime, the tile isn't decoded, or isn't drawn. As released
+ * placeholders go to the pool, the placeholder is told apart from the same bitmap given out again
+ * by its generation (see [TileBitmapCache.putDisplayed]).
+ *
+ * It can also provide overzoom levels, deeper than the deepest level of the map. Their tiles are
+ * crops of the tiles of the deepest level, upscaled when they're first requested, and then kept in
+ * the cache like decoded tiles. So the map can be zoomed in beyond its deepest level without
+ * pixelation, and without storing more tiles.
+ *
+ * Detail levels must be added like they are added to the TileView.
+ */
+class UpscalingBitmapProvider(private val provider: PrefetchableBitmapProvider,
+                              private val mapId: Int,
+                              private val scheduler: TileDecodeScheduler) : PrefetchableBitmapProvider {
+    private val levels = mutableListOf<UpscalingLevel>()
+    private val paint by lazy { Paint(Paint.FILTER_BITMAP_FLAG) }
+
+    /**
+     * Called from a background thread, once a placeholder was replaced by the actual tile.
+     */
+    var onTileReplaced: Runnable? = null
+
+    fun addDetailLevel(scale: Float, level: Int, tileWidth: Int, tileHeight: Int) {
+        levels.add(UpscalingLevel(scale, level, tileWidth, tileHeight, false))
+        levels.sortBy { it.scale }
+    }
+
+    /**
+     * Add a level whose tiles are made from those of the deepest level added with [addDetailLevel].
+     */
+    fun addOverzoomLevel(scale: Float, level: Int, tileWidth: Int, tileHeight: Int) {
+        levels.add(UpscalingLevel(scale, level, tileWidth, tileHeight, true))
+        levels.sortBy { it.scale }
+    }
+
+    override fun getBitmap(tile: Tile, context: Context?): Bitmap? {
+        val level = tile.data as? Int ?: return provider.getBitmap(tile, context)
+        if (isOverzoomLevel(level)) {
+            return TileBitmapCache.get(mapId, level, tile.row, tile.column)
+                    ?: makeOverzoomTile(level, tile.row, tile.column, true)
+        }
+        if (TileBitmapCache.contains(mapId, level, tile.row, tile.column)) {
+            return provider.getBitmap(tile, context)
+        }
+
+        val placeholder = makePlaceholder(level, tile.row, tile.column)
+                ?: return provider.getBitmap(tile, context)
+
+        /* If the scheduler doesn't take the tile, it's decoded right away */
+        if (!scheduler.submit(level, tile.row, tile.column, placeholder.generation) { replace(placeholder, tile, context) }) {
+            TileBitmapCache.bitmapRecycler.recycleBitmap(placeholder.bitmap)
+            return provider.getBitmap(tile, context)
+        }
+        return placeholder.bitmap
+    }
+
+    override fun release() = provider.release()
+
+    override fun prefetch(level: Int, row: Int, col: Int) {
+        if (isOverzoomLevel(level)) {
+            if (!TileBitmapCache.contains(mapId, level, row, col)) {
+                makeOverzoomTile(level, row, col, false)
+            }
+        } else {
+            provider.prefetch(level, row, col)
+        }
+    }
+
+    /**
+     * The part of the parent tile which covers a tile, if it's entirely within one parent tile.
+     * The parent tile of an overzoom level is a tile of the deepest level.
+     */
+    internal fun computeCrop(level: Int, row: Int, col: Int): Crop? {
+        val index = levels.indexOfFirst { it.level == level }
+        if (index < 1) return null
+        val current = levels[index]
+        val parent = if (current.overzoom) levels.lastOrNull { !it.overzoom } ?: return null else levels[index - 1]
+        if (parent.tileWidth <= 0 || parent.tileHeight <= 0) return null
+
+        /* The area of the tile, in pixels at the scale of the parent level */
+        val ratio = parent.scale / current.scale
+        val left = col * current.tileWidth * ratio
+        val top = row * current.tileHeight * ratio
+        val parentCol = (left / parent.tileWidth).toInt()
+        val parentRow = (top / parent.tileHeight).toInt()
+        val cropLeft = left - parentCol * parent.tileWidth
+        val cropTop = top - parentRow * parent.tileHeight
+        val cropRight = cropLeft + current.tileWidth * ratio
+        val cropBottom = cropTop + current.tileHeight * ratio
+        if (cropRight > parent.tileWidth || cropBottom > parent.tileHeight) return null
+
+        return Crop(parent.level, parentRow, parentCol, cropLeft, cropTop, cropRight, cropBottom,
+                current.tileWidth, current.tileHeight)
+    }
+
+    private fun makePlaceholder(level: Int, row: Int, col: Int): Placeholder? {
+        val crop = computeCrop(level, row, col) ?: return null
+        if (!TileBitmapCache.contains(mapId, crop.parentLevel, crop.parentRow, crop.parentCol)) return null
+        val parent = TileBitmapCache.get(mapId, crop.parentLevel, crop.parentRow, crop.parentCol)
+                ?: return null
+
+        try {
+            /* An edge tile of the parent level can be smaller */
+            if (crop.right > parent.width || crop.bottom > parent.height) return null
+
+            val placeholder = obtainBitmap(crop.width, crop.height)
+            Canvas(placeholder).drawBitmap(parent,
+                    Rect(crop.left.toInt(), crop.top.toInt(), Math.ceil(crop.right.toDouble()).toInt(),
+                            Math.ceil(crop.bottom.toDouble()).toInt()),
+                    Rect(0, 0, crop.width, crop.height), paint)
+            return Placeholder(placeholder, TileBitmapCache.putDisplayed(placeholder))
+        } finally {
+            TileBitmapCache.bitmapRecycler.recycleBitmap(parent)
+        }
+    }
+
+    /**
+     * Crop and upscale the parent tile, decoding it if needed. The tile is then cached.
+     */
+    private fun makeOverzoomTile(level: Int, row: Int, col: Int, displayed: Boolean): Bitmap? {
+        val crop = computeCrop(level, row, col) ?: return null
+        provider.prefetch(crop.parentLevel, crop.parentRow, crop.parentCol)
+        val parent = TileBitmapCache.get(mapId, crop.parentLevel, crop.parentRow, crop.parentCol)
+                ?: return null
+
+        try {
+            /* An edge tile of the deepest level can be smaller, and so is the tile made from it */
+            val ratio = (crop.right - crop.left) / crop.width
+            val right = Math.min(crop.right, parent.width.toFloat())
+            val bottom = Math.min(crop.bottom, parent.height.toFloat())
+            val width = ((right - crop.left) / ratio).toInt()
+            val height = ((bottom - crop.top) / ratio).toInt()
+            if (width <= 0 || height <= 0) return null
+
+            val bitmap = obtainBitmap(width, height)
+            Canvas(bitmap).drawBitmap(parent,
+                    Rect(crop.left.toInt(), crop.top.toInt(), Math.ceil(right.toDouble()).toInt(),
+                            Math.ceil(bottom.toDouble()).toInt()),
+                    Rect(0, 0, width, height), paint)
+            TileBitmapCache.put(mapId, level, row, col, bitmap, displayed)
+            return bitmap
+        } finally {
+            TileBitmapCache.bitmapRecycler.recycleBitmap(parent)
+        }
+    }
+
+    private fun isOverzoomLevel(level: Int): Boolean {
+        return levels.firstOrNull { it.level == level }?.overzoom ?: false
+    }
+
+    private fun replace(placeholder: Placeholder, tile: Tile, context: Context?) {
+        if (!TileBitmapCache.isDisplayed(placeholder.bitmap, placeholder.generation)) return
+        val bitmap = provider.getBitmap(tile, context) ?: return
+
+        val replaced = TileBitmapCache.ifDisplayed(placeholder.bitmap, placeholder.generation) {
+            Canvas(placeholder.bitmap).drawBitmap(bitmap, 0f, 0f, null)
+        }
+        TileBitmapCache.bitmapRecycler.recycleBitmap(bitmap)
+        if (replaced) onTileReplaced?.run()
+    }
+
+    private fun obtainBitmap(width: Int, height: Int): Bitmap {
+        val pooled = TileBitmapCache.pool.get(width, height, Bitmap.Config.RGB_565)
+        if (pooled != null) {
+            try {
+                pooled.reconfigure(width, height, Bitmap.Config.RGB_565)
+                return pooled
+            } catch (e: IllegalArgumentException) {
+                // not reusable, a new one is allocated
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565)
+    }
+
+    private class Placeholder(val bitmap: Bitmap, val generation: Long)
+
+    private data class UpscalingLevel(val scale: Float, val level: Int, val tileWidth: Int,
+                                      val tileHeight: Int, val overzoom: Boolean)
+
+    /**
+     * The part of the parent tile to upscale, in pixels of the parent tile. [width] and [height]
+     * are the size of the placeholder.
+     */
+    internal data class Crop(val parentLevel: Int, val parentRow: Int, val parentCol: Int,
+                             val left: Float, val top: Float, val right: Float, val bottom: Float,
+                             val width: Int, val height: Int)
+}
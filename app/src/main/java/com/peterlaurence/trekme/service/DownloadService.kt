@@ -17,18 +17,28 @@ import androidx.core.app.NotificationManagerCompat
 import com.peterlaurence.trekme.MainActivity
 import com.peterlaurence.trekme.R
 import com.peterlaurence.trekme.core.TrekMeContext
+import com.peterlaurence.trekme.core.download.AdaptiveConcurrencyController
+import com.peterlaurence.trekme.core.download.DownloadJournal
+import com.peterlaurence.trekme.core.download.DownloadRequest
+import com.peterlaurence.trekme.core.download.FailedTilesManifest
+import com.peterlaurence.trekme.core.download.OverviewLevelBuilder
+import com.peterlaurence.trekme.core.download.RetryQueue
+import com.peterlaurence.trekme.core.download.TileStore
 import com.peterlaurence.trekme.core.map.Map
 import com.peterlaurence.trekme.core.map.mapimporter.MapImporter
 import com.peterlaurence.trekme.core.map.maploader.MapLoader
+import com.peterlaurence.trekme.core.map.tilepack.TilePack
+import com.peterlaurence.trekme.core.map.tilepack.TilePackWriter
 import com.peterlaurence.trekme.core.mapsource.MapSource
-import com.peterlaurence.trekme.core.mapsource.MapSourceCredentials
+import com.peterlaurence.trekme.core.mapsource.wmts.LevelRange
 import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.TileCollection
+import com.peterlaurence.trekme.core.mapsource.wmts.TileList
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRanges
+import com.peterlaurence.trekme.core.metrics.Metrics
 import com.peterlaurence.trekme.core.projection.MercatorProjection
 import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
-import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgn
-import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderIgnSpain
-import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderOSM
-import com.peterlaurence.trekme.core.providers.urltilebuilder.UrlTileBuilderUSGS
+import com.peterlaurence.trekme.core.providers.cache.TileDiskCache
 import com.peterlaurence.trekme.model.providers.layers.LayerForSource
 import com.peterlaurence.trekme.service.event.DownloadServiceStatusEvent
 import com.peterlaurence.trekme.service.event.MapDownloadEvent
@@ -38,9 +48,16 @@ import com.peterlaurence.trekme.ui.mapcreate.views.WmtsLevelsDialog
 import org.greenrobot.eventbus.EventBus
 import org.greenrobot.eventbus.Subscribe
 import java.io.File
+import java.io.FileInputStream
 import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 
 /**
@@ -56,7 +73,8 @@ class DownloadService : Service() {
     private val NOTIFICATION_ID = "peterlaurence.DownloadService"
     private val SERVICE_START_ID = 128565
     private val SERVICE_FINISHED_ID = 128577
-    private val threadCount = 4
+    private val initialConcurrency = 4
+    private val progressUpdatePeriodMs = 500L
     private val STOP_ACTION = "stop"
     private val SHOW_PROGRESS_ACTION = "show-progress"
 
@@ -70,6 +88,18 @@ class DownloadService : Service() {
 
     private val handler = Handler(Looper.getMainLooper())
     private lateinit var destDir: File
+    private var journal: DownloadJournal? = null
+    private var concurrencyController: AdaptiveConcurrencyController? = null
+    private var workQueue: TileWorkQueue? = null
+
+    /* The progress is published at a fixed rate, not each time a tile is downloaded */
+    private val progressUpdater = object : Runnable {
+        override fun run() {
+            val queue = workQueue ?: return
+            onDownloadProgress(queue.progress)
+            handler.postDelayed(this, progressUpdatePeriodMs)
+        }
+    }
 
     private val progressEvent = MapDownloadEvent(Status.PENDING, 0.0)
 
@@ -77,6 +107,21 @@ class DownloadService : Service() {
         @JvmStatic
         @Volatile
         var started = false
+
+        /**
+         * When the service is started with this extra (the path of the folder of a map), it
+         * downloads again the tiles listed in the [FailedTilesManifest] of that map.
+         */
+        const val EXTRA_REPAIR_MAP_DIR = "repair-map-dir"
+
+        /**
+         * When the service is started with this extra (the path of the destination folder of an
+         * interrupted download), it resumes that download from its saved [DownloadRequest].
+         */
+        const val EXTRA_RESUME_MAP_DIR = "resume-map-dir"
+
+        private const val PREFERENCES_NAME = "download_service"
+        private const val KEY_ACTIVE_DIR = "active-dir"
     }
 
     override fun onCreate() {
@@ -104,6 +149,10 @@ class DownloadService : Service() {
 
     override fun onDestroy() {
         EventBus.getDefault().unregister(this)
+        handler.removeCallbacks(progressUpdater)
+
+        /* Keep track of what has been downloaded so far, so the download can be resumed */
+        journal?.close()
         super.onDestroy()
     }
 
@@ -115,16 +164,31 @@ class DownloadService : Service() {
     /**
      * Called when the service is started.
      */
-    override fun onStartCommand(intent: Intent, flags: Int, startId: Int): Int {
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         /* If the user used the notification action-stop button, stop the service */
-        if (intent.action == STOP_ACTION) {
+        if (intent?.action == STOP_ACTION) {
             started = false
+            setActiveDir(null)
             stopForeground(true)
             stopSelf()
             return START_NOT_STICKY
         }
 
-        /* From here, we know that the service is being created by the activity */
+        /* A download is already running, it's not interrupted */
+        if (workQueue != null) return START_STICKY
+
+        /* The system restarts the service without intent after it killed it. Resume the download
+         * which was running then, if there was one */
+        val resumeMapDir = if (intent == null) {
+            getActiveDir() ?: run {
+                stopSelf()
+                return START_NOT_STICKY
+            }
+        } else {
+            intent.getStringExtra(EXTRA_RESUME_MAP_DIR)?.let { File(it) }
+        }
+
+        /* From here, we know that the service is being created by the activity, or restarted */
         notificationBuilder = NotificationCompat.Builder(applicationContext, NOTIFICATION_ID)
                 .setContentTitle(getText(R.string.app_name))
                 .setContentText(getText(R.string.service_download_action))
@@ -152,64 +216,204 @@ class DownloadService : Service() {
         started = true
         sendStartedStatus()
 
-        /* Get ready for download and request download spec */
+        /* Get ready for download and request download spec, unless it's a repair or a resume */
         progressEvent.progress = 0.0
-        requestDownloadSpec()
+        val repairMapDir = intent?.getStringExtra(EXTRA_REPAIR_MAP_DIR)
+        when {
+            repairMapDir != null -> repairMap(File(repairMapDir))
+            resumeMapDir != null -> resume(resumeMapDir)
+            else -> requestDownloadSpec()
+        }
 
-        return Service.START_NOT_STICKY
+        /* If the process is killed during a download, the system restarts the service to resume it */
+        return Service.START_STICKY
     }
 
     @Subscribe
     fun onRequestDownloadMapEvent(event: RequestDownloadMapEvent) {
-        val source = event.source
-        var tileSequence = event.tileSequence
-
-        val threadSafeTileIterator = ThreadSafeTileIterator(tileSequence.iterator(), event.numberOfTiles) { p ->
-            if (started) {
-                handler.post { (this::onDownloadProgress)(p) }
+        val request = DownloadRequest(event.source, LayerForSource.resolveLayerName(event.source),
+                event.tiles, event.calibrationPoints, event.packTiles, event.overviewLevelCount)
+
+        /* Resume an interrupted download of the same tiles if there is one. Otherwise, create the
+         * destination folder along with the saved request and its journal, or else fail-fast */
+        val unfinishedDir = DownloadRequest.findUnfinished(TrekMeContext.defaultMapsDownloadDir)
+                .firstOrNull { it.second.key == request.key }?.first
+        val journalRes = unfinishedDir?.let { openJournal(it, request) }
+                ?: createDestDir()?.let { createJournal(it, request) }
+        if (journalRes == null) {
+            onStorageError()
+            return
+        }
+        download(request, journalRes)
+    }
 
-                /* Post-process if download reaches 100% */
-                if (p == 100.0) {
-                    postProcess(event)
-                }
-            }
+    /**
+     * Resume the interrupted download whose destination folder is [dir].
+     */
+    private fun resume(dir: File) {
+        val request = DownloadRequest.read(dir)
+        val journalRes = request?.let { openJournal(dir, it) }
+        if (journalRes == null) {
+            sendDownloadFinished()
+            stopSelf()
+            return
         }
+        download(request, journalRes)
+    }
+
+    private fun download(request: DownloadRequest, journal: DownloadJournal) {
+        this.journal = journal
+        destDir = journal.dir
+        setActiveDir(destDir)
 
         /* Init the progress bar */
         onDownloadProgress(0.0)
 
-        /* Create the destination folder, or else fail-fast */
-        val destDirRes = createDestDir()
-        if (destDirRes != null) {
-            destDir = destDirRes
-        } else {
-            /* Storage issue, warn and stop the service */
-            notifyDownloadFinished(getText(R.string.service_download_bad_storage))
-            EventBus.getDefault().post(MapDownloadEvent(Status.STORAGE_ERROR))
+        /* The lowest levels may be built from the downloaded ones */
+        val downloadedTiles = TileRanges(request.tiles.levels.drop(request.overviewLevelCount))
+        val overview = if (request.overviewLevelCount > 0) {
+            Overview(request.tiles.levels, request.overviewLevelCount)
+        } else null
+        launchDownloadJob(request.source, request.layer, downloadedTiles, journal, request.packTiles,
+                overview) { workQueue ->
+            postProcess(request, workQueue)
+        }
+    }
+
+    /**
+     * Download again the tiles which failed to be downloaded, in the folder of an existing map.
+     */
+    private fun repairMap(mapDir: File) {
+        onDownloadProgress(0.0)
+
+        val manifest = FailedTilesManifest.read(mapDir)
+        if (manifest == null) {
+            sendDownloadFinished()
+            stopSelf()
+            return
+        }
+
+        destDir = mapDir
+        launchDownloadJob(manifest.source, manifest.layer, TileList(manifest.tiles), null,
+                TilePack.exists(mapDir), null) { workQueue ->
+            writeFailedTilesManifest(manifest.source, manifest.layer, workQueue)
+            onDownloadJobFinished(workQueue)
             stopSelf()
+        }
+    }
+
+    /**
+     * Start the download threads. When they're all done, [onFinished] is called on the main thread.
+     *
+     * @param packTiles whether tiles are written into a tile pack, or as a folder structure
+     * @param overview if not `null`, the levels to build once all tiles are downloaded
+     */
+    private fun launchDownloadJob(source: MapSource, layer: String, tiles: TileCollection,
+                                  journal: DownloadJournal?, packTiles: Boolean, overview: Overview?,
+                                  onFinished: (TileWorkQueue) -> Unit) {
+        /* Tiles already downloaded for another map are taken from the tile store */
+        val tileStore = TileStore(TrekMeContext.tileStoreDir, source, layer)
+
+        /* As are the tiles the user previewed while defining the area, unless they're stale */
+        val previewCache = TileDiskCache.getInstance(this)
+        val previewTiles = { tile: Tile ->
+            previewCache.get(source, layer, tile.level, tile.row, tile.col)?.takeUnless { it.isStale }?.file
+        }
+        val tileWriter = try {
+            if (packTiles) {
+                TilePackTileWriter(destDir, tileStore, previewTiles, TilePackWriter.open(destDir))
+            } else {
+                PassThroughTileWriter(destDir, tileStore, previewTiles, source.imageExtension())
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+            onStorageError()
             return
         }
 
-        /* A writer which has a folder for each level, and a folder for each row. It does that with
-         * using indexes instead of real level, row and col numbers. This greatly simplifies how a
-         * tile is later retrieved from a bitmap provider. */
-        val tileWriter = object : TileWriter(destDir) {
-            override fun write(tile: Tile, bitmap: Bitmap) {
-                val tileDir = File(destDir, tile.indexLevel.toString() + File.separator + tile.indexRow.toString())
-                tileDir.mkdirs()
-                val tileFile = File(tileDir, tile.indexCol.toString() + ".jpg")
-                try {
-                    val out = FileOutputStream(tileFile)
-                    bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out)
-                    out.flush()
-                    out.close()
-                } catch (e: Exception) {
-                    e.printStackTrace()
+        val workQueue = TileWorkQueue(tiles)
+        this.workQueue = workQueue
+        handler.postDelayed(progressUpdater, progressUpdatePeriodMs)
+
+        /* The number of parallel requests adapts to the server, within the limit of the source */
+        val controller = AdaptiveConcurrencyController(source.maxConcurrency(), initialConcurrency)
+        concurrencyController = controller
+
+        launchDownloadTask(source, layer, workQueue, tileWriter, journal, controller) {
+            if (started && overview != null) {
+                val failedCount = OverviewLevelBuilder(tileWriter::read, tileWriter::writeBuilt,
+                        source.compressFormat()).build(overview.levels, overview.overviewLevelCount)
+                workQueue.failedBuiltCount.set(failedCount)
+            }
+            tileWriter.close()
+
+            /* If the service was stopped, the download will be resumed later */
+            if (started) {
+                handler.post {
+                    handler.removeCallbacks(progressUpdater)
+                    onFinished(workQueue)
                 }
             }
         }
+    }
 
-        launchDownloadTask(threadCount, source, threadSafeTileIterator, tileWriter)
+    /**
+     * Storage issue, warn and stop the service.
+     */
+    private fun onStorageError() {
+        setActiveDir(null)
+        notifyDownloadFinished(getText(R.string.service_download_bad_storage))
+        EventBus.getDefault().post(MapDownloadEvent(Status.STORAGE_ERROR))
+        stopSelf()
+    }
+
+    private fun createJournal(dir: File, request: DownloadRequest): DownloadJournal? {
+        return try {
+            request.write(dir)
+            DownloadJournal.create(dir, request.key, downloadedTileCount(request))
+        } catch (e: IOException) {
+            e.printStackTrace()
+            null
+        }
+    }
+
+    /**
+     * @return the journal of the interrupted download of [request] in [dir], or `null` if it
+     * doesn't match the request
+     */
+    private fun openJournal(dir: File, request: DownloadRequest): DownloadJournal? {
+        val journal = DownloadJournal.open(dir) ?: return null
+        if (journal.key == request.key && journal.tileCount == downloadedTileCount(request)) {
+            return journal
+        }
+        journal.close()
+        return null
+    }
+
+    /**
+     * Remember the destination folder of the running download, or forget it with `null`. When the
+     * system restarts the service after it killed it, only that download is resumed: the other
+     * interrupted downloads may have been abandoned by the user.
+     */
+    private fun setActiveDir(dir: File?) {
+        /* Written synchronously, as the process may be killed right after */
+        getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putString(KEY_ACTIVE_DIR, dir?.absolutePath).commit()
+    }
+
+    /**
+     * @return the destination folder of the download which was running when the service was
+     * killed, or `null` if there was none or if it's not resumable anymore
+     */
+    private fun getActiveDir(): File? {
+        val path = getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getString(KEY_ACTIVE_DIR, null) ?: return null
+        val dir = File(path)
+        return if (File(dir, DownloadJournal.FILE_NAME).exists()) dir else null
+    }
+
+    private fun downloadedTileCount(request: DownloadRequest): Long {
+        return TileRanges(request.tiles.levels.drop(request.overviewLevelCount)).tileCount
     }
 
     private fun createDestDir(): File? {
@@ -228,32 +432,58 @@ class DownloadService : Service() {
 
     private fun onDownloadProgress(progress: Double) {
         progressEvent.progress = progress
+        concurrencyController?.also {
+            progressEvent.concurrency = it.concurrency
+            progressEvent.tilesPerSecond = it.tilesPerSecond
+        }
+        workQueue?.also {
+            progressEvent.localTiles = it.localCount.get()
+        }
         EventBus.getDefault().post(progressEvent)
     }
 
-    private fun postProcess(event: RequestDownloadMapEvent) {
+    private fun postProcess(request: DownloadRequest, workQueue: TileWorkQueue) {
+        /* Keep track of the tiles which couldn't be downloaded, so the map can be repaired */
+        writeFailedTilesManifest(request.source, request.layer, workQueue)
+
+        /* The download is complete, it shouldn't be resumed */
+        journal?.finish()
+        DownloadRequest.delete(destDir)
+        setActiveDir(null)
+
         /* Calibrate */
         fun calibrate(map: Map) {
             map.projection = MercatorProjection()
             map.mapGson.calibration.calibration_method = MapLoader.CALIBRATION_METHOD.SIMPLE_2_POINTS.name
-            map.mapGson.calibration.calibration_points = event.calibrationPoints.toList()
+            map.mapGson.calibration.calibration_points = request.calibrationPoints.toList()
+
+            /* Tiles outside of a corridor aren't downloaded, so the size isn't deduced from the
+             * tiles on disk but from the deepest level */
+            val deepestLevel = request.tiles.levels.last()
+            val tileSize = map.mapGson.levels.lastOrNull()?.tile_size
+            if (deepestLevel.spans != null && tileSize != null) {
+                map.mapGson.size.x = (deepestLevel.colCount * tileSize.x).toInt()
+                map.mapGson.size.y = ((deepestLevel.rowBottom - deepestLevel.rowTop + 1) * tileSize.y)
+            }
             map.calibrate()
             MapLoader.getInstance().saveMap(map)
         }
 
         /* Import, and when we're done, calibrate the map */
-        MapImporter.importFromFile(destDir, MapImporter.MapProvider.LIBVIPS,
+        val mapProvider = if (request.packTiles) {
+            MapImporter.MapProvider.TILEPACK
+        } else {
+            MapImporter.MapProvider.LIBVIPS
+        }
+        MapImporter.importFromFile(destDir, mapProvider,
                 object : MapImporter.MapImportListener {
-                    val okMsg = getText(R.string.service_download_finished)
                     val koMsg = getText(R.string.map_download_dialog_error)
 
-                    override fun onMapImported(map: Map, status: MapImporter.MapParserStatus) {
+                    override fun onMapImported(map: Map?, status: MapImporter.MapParserStatus) {
                         handler.post {
-                            calibrate(map)
-                            sendDownloadFinished()
-
-                            /* Notify that the download is finished correctly*/
-                            notifyDownloadFinished(okMsg)
+                            /* A resumed download may already have a map.json file */
+                            if (map != null) calibrate(map)
+                            onDownloadJobFinished(workQueue)
                         }
                     }
 
@@ -302,94 +532,464 @@ class DownloadService : Service() {
         EventBus.getDefault().post(WmtsLevelsDialog.DownloadSpecRequest())
     }
 
-    private fun sendDownloadFinished() {
-        EventBus.getDefault().post(MapDownloadEvent(Status.FINISHED))
+    private fun sendDownloadFinished(localTiles: Int = 0, retriedTiles: Int = 0, failedTiles: Int = 0,
+                                     failedBuiltTiles: Int = 0) {
+        EventBus.getDefault().post(MapDownloadEvent(Status.FINISHED, localTiles = localTiles,
+                retriedTiles = retriedTiles, failedTiles = failedTiles, failedBuiltTiles = failedBuiltTiles))
+    }
+
+    private fun onDownloadJobFinished(workQueue: TileWorkQueue) {
+        val failedCount = workQueue.failedTiles.size
+        val failedBuiltCount = workQueue.failedBuiltCount.get()
+        sendDownloadFinished(workQueue.localCount.get(), workQueue.retriedCount.get(), failedCount,
+                failedBuiltCount)
+
+        /* Notify that the download is finished, and whether some tiles are missing */
+        val message = StringBuilder(if (failedCount == 0) {
+            getText(R.string.service_download_finished)
+        } else {
+            getString(R.string.service_download_finished_with_failures, failedCount)
+        })
+        if (failedBuiltCount > 0) {
+            message.append('\n').append(getString(R.string.service_download_build_failures, failedBuiltCount))
+        }
+        notifyDownloadFinished(message)
+    }
+
+    private fun writeFailedTilesManifest(source: MapSource, layer: String, workQueue: TileWorkQueue) {
+        if (workQueue.failedTiles.isEmpty()) {
+            FailedTilesManifest.delete(destDir)
+            return
+        }
+        try {
+            FailedTilesManifest(source, layer, workQueue.failedTiles.toList()).write(destDir)
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
     }
 }
 
-private fun launchDownloadTask(threadCount: Int, source: MapSource, tileIterator: ThreadSafeTileIterator,
-                               tileWriter: TileWriter) {
-    for (i in 0 until threadCount) {
-        when (source) {
-            MapSource.IGN -> {
-                val ignCredentials = MapSourceCredentials.getIGNCredentials()!!
-
-                val layerRealName = LayerForSource.resolveLayerName(source)
-                val urlTileBuilder = UrlTileBuilderIgn(ignCredentials.api ?: "", layerRealName)
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderIgn(urlTileBuilder, ignCredentials.user
-                        ?: "", ignCredentials.pwd ?: "")
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
-            }
-            MapSource.USGS -> {
-                val urlTileBuilder = UrlTileBuilderUSGS()
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderUSGS(urlTileBuilder)
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
-            }
-            MapSource.OPEN_STREET_MAP -> {
-                val urlTileBuilder = UrlTileBuilderOSM()
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderOSM(urlTileBuilder)
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
-            }
-            MapSource.IGN_SPAIN -> {
-                val urlTileBuilder = UrlTileBuilderIgnSpain()
-                val bitmapProvider = GenericBitmapProvider.getBitmapProviderIgnSpain(urlTileBuilder)
-                val downloadThread = TileDownloadThread(tileIterator, bitmapProvider, tileWriter)
-                downloadThread.start()
-            }
+/**
+ * As many threads as the maximum concurrency of the [source] are started. But the actual number of
+ * in-flight requests is decided by the [AdaptiveConcurrencyController].
+ * The last thread to stop calls [onFinished].
+ */
+private fun launchDownloadTask(source: MapSource, layerRealName: String, workQueue: TileWorkQueue,
+                               tileWriter: TileWriter, journal: DownloadJournal?,
+                               controller: AdaptiveConcurrencyController, onFinished: () -> Unit) {
+    val threadCount = source.maxConcurrency()
+    val runningThreads = AtomicInteger(threadCount)
+    val onThreadStop = {
+        if (runningThreads.decrementAndGet() == 0) {
+            onFinished()
         }
     }
+
+    for (i in 0 until threadCount) {
+        val bitmapProvider = GenericBitmapProvider.getBitmapProvider(source, layerRealName)!!
+        val downloadThread = TileDownloadThread(workQueue, bitmapProvider, tileWriter, journal,
+                controller, onThreadStop)
+        downloadThread.start()
+    }
 }
 
+/**
+ * All the [levels] of a map, the [overviewLevelCount] lowest ones being built by an
+ * [OverviewLevelBuilder].
+ */
+private class Overview(val levels: List<LevelRange>, val overviewLevelCount: Int)
 
-private class TileDownloadThread(private val tileIterator: ThreadSafeTileIterator,
-                                 private val bitmapProvider: GenericBitmapProvider,
-                                 private val tileWriter: TileWriter) : Thread() {
-    val bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565)
+/**
+ * Built tiles have the same format as the downloaded ones.
+ */
+private fun MapSource.compressFormat(): Bitmap.CompressFormat {
+    return when (this) {
+        MapSource.OPEN_STREET_MAP -> Bitmap.CompressFormat.PNG
+        else -> Bitmap.CompressFormat.JPEG
+    }
+}
+
+/**
+ * Tiles are written as they are sent by the server. So the file extension depends on the format
+ * the [MapSource] serves.
+ */
+private fun MapSource.imageExtension(): String {
+    return when (this) {
+        MapSource.OPEN_STREET_MAP -> ".png"
+        else -> ".jpg"
+    }
+}
 
-    init {
-        val options = BitmapFactory.Options()
-        options.inBitmap = bitmap
-        options.inPreferredConfig = Bitmap.Config.RGB_565
-        bitmapProvider.setBitmapOptions(options)
+/**
+ * The maximum number of parallel requests made to the server of a [MapSource].
+ * OpenStreetMap's tile usage policy asks for no more than two.
+ */
+private fun MapSource.maxConcurrency(): Int {
+    return when (this) {
+        MapSource.IGN -> 8
+        MapSource.USGS -> 6
+        MapSource.OPEN_STREET_MAP -> 2
+        MapSource.IGN_SPAIN -> 4
     }
+}
+
+/**
+ * Tiles aren't decoded: the body of each HTTP response is streamed to the tile file by the
+ * [TileWriter].
+ * Each written tile is recorded in the [DownloadJournal], using its index in the tile collection.
+ * Tiles already recorded and present on disk (from an interrupted download) are skipped. Tiles
+ * present in the tile store are taken from it, without network I/O.
+ * Requests are only made when the [AdaptiveConcurrencyController] allows it, and their outcome is
+ * reported back to it. Failed tiles are given back to the [TileWorkQueue], to be retried.
+ *
+ * Tiles are taken by chunks from the [TileWorkQueue]. Within a chunk, the thread doesn't need to
+ * synchronize with other threads.
+ */
+private class TileDownloadThread(private val workQueue: TileWorkQueue,
+                                 private val bitmapProvider: GenericBitmapProvider,
+                                 private val tileWriter: TileWriter,
+                                 private val journal: DownloadJournal?,
+                                 private val controller: AdaptiveConcurrencyController,
+                                 private val onStop: () -> Unit) : Thread() {
+    private val acquireTimeoutMs = 500L
+    private val retryPollTimeoutMs = 500L
+
+    /* The current chunk: from chunkNext (included) to chunkEnd (excluded) */
+    private var chunkNext = 0L
+    private var chunkEnd = 0L
 
     override fun run() {
+        try {
+            while (DownloadService.started) {
+                /* Tiles due for a retry come first */
+                val retry = workQueue.pollRetry()
+                if (retry != null) {
+                    if (!download(retry.index, retry.tile, retry.failedAttempts)) break
+                    continue
+                }
+
+                if (chunkNext < chunkEnd) {
+                    val index = chunkNext++
+                    if (!download(index, workQueue.tiles.tileAt(index), 0)) break
+                    continue
+                }
+
+                val chunkStart = workQueue.claimChunk()
+                if (chunkStart >= 0) {
+                    chunkNext = chunkStart
+                    chunkEnd = Math.min(chunkStart + TileWorkQueue.CHUNK_SIZE, workQueue.tiles.tileCount)
+                    continue
+                }
+
+                /* All tiles were handed out. Wait for those which may be retried, if any */
+                if (!workQueue.hasPendingTiles()) break
+                val delayedRetry = workQueue.pollRetry(retryPollTimeoutMs) ?: continue
+                if (!download(delayedRetry.index, delayedRetry.tile, delayedRetry.failedAttempts)) break
+            }
+        } finally {
+            onStop()
+        }
+    }
+
+    /**
+     * @return `false` if the service was stopped before the tile could be downloaded
+     */
+    private fun download(index: Long, tile: Tile, failedAttempts: Int): Boolean {
+        if (journal?.isDone(index) == true && tileWriter.exists(tile)) {
+            workQueue.onSuccess()
+            return true
+        }
+
+        if (tileWriter.writeFromStore(tile)) {
+            journal?.markDone(index)
+            workQueue.onLocalSuccess()
+            return true
+        }
+
+        if (!acquire()) return false
+        val start = System.nanoTime()
+        val result = bitmapProvider.getTileStream(tile.level, tile.row, tile.col)
+        val written = result.inputStream?.use {
+            val writeStart = Metrics.now()
+            tileWriter.write(tile, it, result.contentLength).also { Metrics.tileWrite.recordSince(writeStart) }
+        } ?: false
+
+        if (written) {
+            controller.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+            journal?.markDone(index)
+            workQueue.onSuccess()
+        } else {
+            controller.onFailure(result.responseCode)
+            workQueue.onFailure(index, tile, failedAttempts)
+        }
+        return true
+    }
+
+    /**
+     * Wait for the controller to allow a new request, unless the service is stopped meanwhile.
+     */
+    private fun acquire(): Boolean {
         while (DownloadService.started) {
-            val tile = tileIterator.next() ?: break
-            bitmapProvider.getBitmap(tile.level, tile.row, tile.col)
-            tileWriter.write(tile, bitmap)
+            if (controller.acquire(acquireTimeoutMs)) return true
         }
+        return false
     }
 }
 
-private class ThreadSafeTileIterator(private val tileIterator: Iterator<Tile>, val totalSize: Long,
-                                     val progressListener: (Double) -> Unit) {
+private class TileWork(val index: Long, val tile: Tile, val failedAttempts: Int)
+
+/**
+ * Distributes the tiles of a [TileCollection] to the [TileDownloadThread]s. A thread claims a chunk
+ * of [CHUNK_SIZE] consecutive positions with a single atomic increment, so there is neither lock
+ * nor allocation per tile when distributing the work, even for millions of tiles.
+ *
+ * A failed tile is retried with an exponential backoff, up to [MAX_ATTEMPTS] times. After that, it
+ * is added to [failedTiles].
+ */
+private class TileWorkQueue(val tiles: TileCollection) {
+    private val nextChunkStart = AtomicLong(0)
+    private val retryQueue = RetryQueue<TileWork>(MAX_ATTEMPTS, RETRY_BASE_DELAY_MS)
+
+    /* The number of tiles handed out, which are neither written nor given up */
+    private val pending = AtomicLong(0)
+    private val completed = AtomicLong(0)
+
+    val retriedCount = AtomicInteger(0)
+    val localCount = AtomicInteger(0)
+    val failedTiles = ConcurrentLinkedQueue<Tile>()
+
+    /* The tiles of the lowest levels which couldn't be built, once all tiles are downloaded */
+    val failedBuiltCount = AtomicInteger(0)
+
     /* Progress in percent */
-    var progress = 0.0
-    private var tileIndex: Long = 0
-
-    fun next(): Tile? {
-        return synchronized(this) {
-            if (tileIterator.hasNext()) {
-                updateProgress()
-                tileIterator.next()
+    val progress: Double
+        get() = if (tiles.tileCount > 0) completed.get() * 100.0 / tiles.tileCount else 100.0
+
+    companion object {
+        /* A multiple of 64, so that threads rarely update the same word of the journal */
+        const val CHUNK_SIZE = 64L
+        private const val MAX_ATTEMPTS = 5
+        private const val RETRY_BASE_DELAY_MS = 1000L
+    }
+
+    /**
+     * @return the position of the first tile of the claimed chunk, or -1 if all tiles were handed out
+     */
+    fun claimChunk(): Long {
+        val start = nextChunkStart.getAndAdd(CHUNK_SIZE)
+        if (start >= tiles.tileCount) return -1
+        pending.addAndGet(Math.min(CHUNK_SIZE, tiles.tileCount - start))
+        return start
+    }
+
+    fun hasPendingTiles(): Boolean = pending.get() > 0
+
+    fun pollRetry(): TileWork? = retryQueue.poll()
+
+    fun pollRetry(timeoutMs: Long): TileWork? = retryQueue.poll(timeoutMs)
+
+    fun onSuccess() {
+        pending.decrementAndGet()
+        completed.incrementAndGet()
+    }
+
+    /**
+     * The tile was taken from the tile store.
+     */
+    fun onLocalSuccess() {
+        localCount.incrementAndGet()
+        onSuccess()
+    }
+
+    fun onFailure(index: Long, tile: Tile, failedAttempts: Int) {
+        val attempts = failedAttempts + 1
+        if (retryQueue.offer(TileWork(index, tile, attempts), attempts)) {
+            retriedCount.incrementAndGet()
+        } else {
+            failedTiles.add(tile)
+            pending.decrementAndGet()
+            completed.incrementAndGet()
+        }
+    }
+}
+
+/**
+ * Each tile written to a tile file after being downloaded is also added to the [tileStore]. A tile
+ * pack can't be linked to, so its tiles aren't: they would take space twice.
+ *
+ * @param previewTiles gives the file of a tile the user previewed, if it's in the disk cache
+ */
+private abstract class TileWriter(val destDir: File, val tileStore: TileStore,
+                                  private val previewTiles: (Tile) -> File?) {
+    /**
+     * @param expectedLength the number of bytes announced by the server, or -1 if unknown
+     * @return `true` if the tile was entirely written
+     */
+    abstract fun write(tile: Tile, inputStream: InputStream, expectedLength: Long): Boolean
+
+    abstract fun exists(tile: Tile): Boolean
+
+    /**
+     * @return `true` if the tile was taken from the [tileStore], or from the previewed tiles
+     */
+    abstract fun writeFromStore(tile: Tile): Boolean
+
+    /**
+     * Write a tile which wasn't downloaded but built on the device. So it isn't added to the
+     * [tileStore].
+     */
+    abstract fun writeBuilt(tile: Tile, bytes: ByteArray): Boolean
+
+    /**
+     * @return the bytes of a tile which was written, or `null` if there is none
+     */
+    abstract fun read(tile: Tile): ByteArray?
+
+    /**
+     * Called once all download threads are stopped.
+     */
+    open fun close() {}
+
+    /**
+     * A previewed tile is written as if it were downloaded.
+     */
+    protected fun writeFromPreview(tile: Tile): Boolean {
+        val file = previewTiles(tile) ?: return false
+        return try {
+            FileInputStream(file).use { write(tile, it, file.length()) }
+        } catch (e: IOException) {
+            false
+        }
+    }
+}
+
+/**
+ * A writer which has a folder for each level, and a folder for each row. It does that with
+ * using indexes instead of real level, row and col numbers. This greatly simplifies how a
+ * tile is later retrieved from a bitmap provider.
+ *
+ * The stream is first copied to a temporary file, which is then renamed. This way, an interrupted
+ * download never leaves a truncated tile behind.
+ */
+private class PassThroughTileWriter(destDir: File, tileStore: TileStore, previewTiles: (Tile) -> File?,
+                                    private val imageExtension: String) : TileWriter(destDir, tileStore, previewTiles) {
+    override fun write(tile: Tile, inputStream: InputStream, expectedLength: Long): Boolean {
+        val tileFile = getTileFile(tile)
+        tileFile.parentFile.mkdirs()
+        val tmpFile = File(tileFile.parentFile, tileFile.name + ".tmp")
+        return try {
+            val length = FileOutputStream(tmpFile).use {
+                inputStream.copyTo(it)
+            }
+
+            /* A truncated body isn't a valid tile */
+            if (expectedLength >= 0 && length != expectedLength) {
+                tmpFile.delete()
+                return false
+            }
+
+            if (tmpFile.renameTo(tileFile)) {
+                tileStore.add(tile, tileFile)
+                Metrics.bytesWritten.add(length)
+                true
             } else {
-                progress = 100.0
-                null
+                tmpFile.delete()
+                false
             }
+        } catch (e: Exception) {
+            tmpFile.delete()
+            e.printStackTrace()
+            false
         }
     }
 
-    private fun updateProgress() {
-        tileIndex++
-        progress = tileIndex * 100.0 / totalSize
-        progressListener(progress)
+    /**
+     * A tile file is only created by a rename, once it was entirely written. So a non-empty file
+     * is a valid tile.
+     */
+    override fun exists(tile: Tile): Boolean {
+        return getTileFile(tile).length() > 0
+    }
+
+    override fun writeFromStore(tile: Tile): Boolean {
+        return tileStore.copyTo(tile, getTileFile(tile)) || writeFromPreview(tile)
+    }
+
+    override fun writeBuilt(tile: Tile, bytes: ByteArray): Boolean {
+        val tileFile = getTileFile(tile)
+        tileFile.parentFile.mkdirs()
+        val tmpFile = File(tileFile.parentFile, tileFile.name + ".tmp")
+        return try {
+            tmpFile.writeBytes(bytes)
+            tmpFile.renameTo(tileFile)
+        } catch (e: IOException) {
+            tmpFile.delete()
+            false
+        }
+    }
+
+    override fun read(tile: Tile): ByteArray? {
+        return try {
+            getTileFile(tile).readBytes()
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun getTileFile(tile: Tile): File {
+        val tileDir = File(destDir, tile.indexLevel.toString() + File.separator + tile.indexRow.toString())
+        return File(tileDir, tile.indexCol.toString() + imageExtension)
     }
 }
 
-private abstract class TileWriter(val destDir: File) {
-    abstract fun write(tile: Tile, bitmap: Bitmap)
+/**
+ * A writer which appends the tiles to a tile pack. As for the [PassThroughTileWriter], tiles are
+ * identified by their indexes.
+ */
+private class TilePackTileWriter(destDir: File, tileStore: TileStore, previewTiles: (Tile) -> File?,
+                                 private val writer: TilePackWriter) : TileWriter(destDir, tileStore, previewTiles) {
+    override fun write(tile: Tile, inputStream: InputStream, expectedLength: Long): Boolean {
+        val bytes = try {
+            inputStream.readBytes()
+        } catch (e: IOException) {
+            return false
+        }
+
+        /* A truncated body isn't a valid tile */
+        if (bytes.isEmpty() || (expectedLength >= 0 && bytes.size.toLong() != expectedLength)) {
+            return false
+        }
+        if (!writer.write(tile.indexLevel, tile.indexRow, tile.indexCol, bytes)) return false
+        Metrics.bytesWritten.add(bytes.size.toLong())
+        return true
+    }
+
+    override fun exists(tile: Tile): Boolean {
+        return writer.contains(tile.indexLevel, tile.indexRow, tile.indexCol)
+    }
+
+    override fun writeFromStore(tile: Tile): Boolean {
+        val bytes = try {
+            tileStore.find(tile)?.readBytes()
+        } catch (e: IOException) {
+            null
+        } ?: return writeFromPreview(tile)
+        return writer.write(tile.indexLevel, tile.indexRow, tile.indexCol, bytes)
+    }
+
+    override fun writeBuilt(tile: Tile, bytes: ByteArray): Boolean {
+        return writer.write(tile.indexLevel, tile.indexRow, tile.indexCol, bytes)
+    }
+
+    override fun read(tile: Tile): ByteArray? {
+        return writer.read(tile.indexLevel, tile.indexRow, tile.indexCol)
+    }
+
+    override fun close() {
+        try {
+            writer.close()
+        } catch (e: IOException) {
+            e.printStackTrace()
+        }
+    }
 }
@@ -1,6 +1,17 @@
 package com.peterlaurence.trekme.service.event;
 
-data class MapDownloadEvent(val status: Status, var progress: Double = 100.0)
+/**
+ * The [concurrency] (number of parallel requests) and [tilesPerSecond] are those of the adaptive
+ * concurrency controller of the download service, at the time the progress was updated.
+ * [localTiles] is the number of tiles taken from the tile store instead of being downloaded.
+ * When the download is [Status.FINISHED], [retriedTiles] is the number of tiles which had to be
+ * downloaded more than once, [failedTiles] the number of tiles which couldn't be downloaded, and
+ * [failedBuiltTiles] the number of tiles of the lowest levels which couldn't be built.
+ */
+data class MapDownloadEvent(val status: Status, var progress: Double = 100.0, var concurrency: Int = 0,
+                            var tilesPerSecond: Double = 0.0, var localTiles: Int = 0,
+                            val retriedTiles: Int = 0, val failedTiles: Int = 0,
+                            val failedBuiltTiles: Int = 0)
 
 enum class Status {
     FINISHED, PENDING, IMPORT_ERROR, STORAGE_ERROR
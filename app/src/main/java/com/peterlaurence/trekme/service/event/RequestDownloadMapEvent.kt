@@ -2,11 +2,16 @@ package com.peterlaurence.trekme.service.event
 
 import com.peterlaurence.trekme.core.map.gson.MapGson.Calibration.CalibrationPoint
 import com.peterlaurence.trekme.core.mapsource.MapSource
-import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRanges
 
 /**
  * This event is sent by entities to have a map downloaded.
+ * When [packTiles] is `true`, the tiles are stored in a single tile pack instead of a folder
+ * structure.
+ * The [overviewLevelCount] lowest levels of [tiles] aren't downloaded, but built from the levels
+ * above them.
  */
-class RequestDownloadMapEvent(val source: MapSource, val tileSequence: Sequence<Tile>,
+class RequestDownloadMapEvent(val source: MapSource, val tiles: TileRanges,
                               val calibrationPoints: Pair<CalibrationPoint, CalibrationPoint>,
-                              val numberOfTiles: Long)
\ No newline at end of file
+                              val packTiles: Boolean = false,
+                              val overviewLevelCount: Int = 0)
\ No newline at end of file
@@ -32,7 +32,19 @@ class MapDownloadDialog : DialogFragment() {
     @Subscribe
     fun onProgressEvent(event: MapDownloadEvent) {
         when (event.status) {
-            Status.PENDING -> progressBar.progress = event.progress.toInt()
+            Status.PENDING -> {
+                progressBar.progress = event.progress.toInt()
+                if (event.concurrency > 0) {
+                    downloadStats.visibility = View.VISIBLE
+                    downloadStats.text = getString(R.string.map_download_dialog_stats,
+                            event.concurrency, event.tilesPerSecond)
+                }
+                if (event.localTiles > 0) {
+                    localTiles.visibility = View.VISIBLE
+                    localTiles.text = getString(R.string.map_download_dialog_local_tiles,
+                            event.localTiles)
+                }
+            }
             Status.FINISHED -> {
                 dismiss()
             }
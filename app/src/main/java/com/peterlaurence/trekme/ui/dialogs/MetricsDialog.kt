@@ -0,0 +1,73 @@
+package com.peterlaurence.trekme.ui.dialogs
+
+import android.app.Dialog
+import android.os.Build
+import android.os.Bundle
+import android.widget.Toast
+import androidx.appcompat.app.AlertDialog
+import androidx.fragment.app.DialogFragment
+import com.peterlaurence.trekme.R
+import com.peterlaurence.trekme.core.TrekMeContext
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache
+import com.peterlaurence.trekme.core.metrics.Metrics
+import com.peterlaurence.trekme.model.map.MapProvider
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import java.io.IOException
+
+/**
+ * A debug screen which shows the metrics of the tile pipeline, and can save them to a file of
+ * [TrekMeContext.metricsDir] so that devices and maps can be compared. It's opened with a long
+ * press on the version of the app, in the navigation drawer.
+ */
+class MetricsDialog : DialogFragment() {
+
+    override fun onCreateDialog(savedInstanceState: Bundle?): Dialog {
+        val builder = AlertDialog.Builder(activity!!)
+        builder.setTitle(getString(R.string.metrics_dialog_title))
+        builder.setMessage(makeHeader() + "\n" + Metrics.report())
+        builder.setPositiveButton(getString(R.string.metrics_dialog_save)) { _, _ -> save() }
+        builder.setNeutralButton(getString(R.string.metrics_dialog_reset)) { _, _ -> Metrics.reset() }
+        builder.setNegativeButton(getString(R.string.ok_dialog), null)
+
+        return builder.create()
+    }
+
+    /**
+     * The file is written in background. The dialog is closed by then, so the result is shown with
+     * the application context.
+     */
+    private fun save() {
+        val context = context?.applicationContext ?: return
+        val header = makeHeader()
+        GlobalScope.launch(Dispatchers.Main) {
+            val message = async(Dispatchers.IO) {
+                try {
+                    val file = Metrics.dump(TrekMeContext.metricsDir, header)
+                    context.getString(R.string.metrics_dialog_saved, file.path)
+                } catch (e: IOException) {
+                    context.getString(R.string.metrics_dialog_save_error)
+                }
+            }.await()
+            Toast.makeText(context, message, Toast.LENGTH_LONG).show()
+        }
+    }
+
+    private fun makeHeader(): String {
+        return "device: ${Build.MANUFACTURER} ${Build.MODEL}, Android ${Build.VERSION.RELEASE}\n" +
+                "map: ${describeMap()}\n" +
+                "memory cache: ${TileBitmapCache.stats}\n"
+    }
+
+    /**
+     * The map last opened, as the metrics mostly come from it
+     */
+    private fun describeMap(): String {
+        val map = MapProvider.getCurrentMap() ?: return "none"
+        val provider = map.bitmapProvider?.javaClass?.simpleName ?: "none"
+        return "${map.name}, ${map.widthPx}x${map.heightPx} px, ${map.levelList.size} levels, " +
+                "provider $provider (${map.origin})"
+    }
+}
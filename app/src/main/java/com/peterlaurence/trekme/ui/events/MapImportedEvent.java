@@ -13,9 +13,12 @@ import com.peterlaurence.trekme.core.map.mapimporter.MapImporter;
 public class MapImportedEvent {
     public Map map;
     public MapImporter.MapParserStatus status;
+    /* The id of the archive the map was imported from */
+    public int archiveId;
 
-    public MapImportedEvent(Map map, MapImporter.MapParserStatus status) {
+    public MapImportedEvent(Map map, MapImporter.MapParserStatus status, int archiveId) {
         this.map = map;
         this.status = status;
+        this.archiveId = archiveId;
     }
 }
@@ -10,6 +10,7 @@ import android.view.ViewGroup;
 
 import com.peterlaurence.trekme.R;
 import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache;
 import com.peterlaurence.trekme.core.map.gson.MapGson;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
 import com.peterlaurence.trekme.core.projection.Projection;
@@ -144,8 +145,9 @@ public class MapCalibrationFragment extends Fragment implements CalibrationModel
         mCalibrationMarker.setOnTouchListener(new MarkerTouchMoveListener(tileView, callback));
         tileView.addMarker(mCalibrationMarker, 0.5, 0.5, -0.5f, -0.5f);
 
-        /* The BitmapProvider */
+        /* The BitmapProvider, and bitmaps which may be cached must not be recycled */
         tileView.setBitmapProvider(map.getBitmapProvider());
+        tileView.setBitmapRecycler(TileBitmapCache.INSTANCE.getBitmapRecycler());
 
         /* Add the TileView to the root view */
         setTileView(tileView);
@@ -17,6 +17,7 @@ import com.peterlaurence.trekme.core.providers.bitmap.checkIgnProvider
 import com.peterlaurence.trekme.core.providers.bitmap.checkIgnSpainProvider
 import com.peterlaurence.trekme.core.providers.bitmap.checkOSMProvider
 import com.peterlaurence.trekme.core.providers.bitmap.checkUSGSProvider
+import com.peterlaurence.trekme.core.providers.cache.TileDiskCache
 import com.peterlaurence.trekme.core.providers.layers.IgnLayers
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderIgn
 import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderIgnSpain
@@ -152,6 +153,10 @@ class GoogleMapWmtsViewFragment : Fragment(), CoroutineScope {
             else -> false
         }
 
+        context?.also {
+            menu.findItem(R.id.map_offline_only_id).isChecked = TileDiskCache.getInstance(it).offlineOnly
+        }
+
         super.onCreateOptionsMenu(menu, inflater)
     }
 
@@ -173,6 +178,13 @@ class GoogleMapWmtsViewFragment : Fragment(), CoroutineScope {
                 val layerSelectDialog = SelectDialog.newInstance(title, values, layerPublicName, event)
                 layerSelectDialog.show(activity!!.supportFragmentManager, "SelectDialog-${event.javaClass.canonicalName}")
             }
+            R.id.map_offline_only_id -> {
+                /* Only show the tiles already in the disk cache */
+                item.isChecked = !item.isChecked
+                context?.also { TileDiskCache.getInstance(it).offlineOnly = item.isChecked }
+                removeTileView()
+                createTileView()
+            }
         }
         return super.onOptionsItemSelected(item)
     }
@@ -217,7 +229,12 @@ class GoogleMapWmtsViewFragment : Fragment(), CoroutineScope {
     }
 
     private fun createTileView() {
-        checkTileAccessibility()
+        val offlineOnly = context?.let { TileDiskCache.getInstance(it).offlineOnly } ?: false
+        if (offlineOnly) {
+            hideWarningMessage()
+        } else {
+            checkTileAccessibility()
+        }
         val layerRealName = LayerForSource.resolveLayerName(mapSource)
         val bitmapProvider = createBitmapProvider(layerRealName)
         addTileView(bitmapProvider)
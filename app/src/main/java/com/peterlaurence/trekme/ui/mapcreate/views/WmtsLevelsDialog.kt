@@ -1,26 +1,44 @@
 package com.peterlaurence.trekme.ui.mapcreate.views
 
+import android.app.Activity
 import android.app.Dialog
 import android.content.Intent
+import android.net.Uri
 import android.os.Bundle
+import android.os.Handler
 import androidx.fragment.app.DialogFragment
 import androidx.core.os.ConfigurationCompat
 import androidx.appcompat.app.AlertDialog
 import android.view.LayoutInflater
 import android.view.View
+import android.widget.Button
+import android.widget.CheckBox
 import android.widget.ImageButton
 import android.widget.SeekBar
 import android.widget.TextView
+import android.widget.Toast
 import com.peterlaurence.trekme.R
+import com.peterlaurence.trekme.core.TrekMeContext
+import com.peterlaurence.trekme.core.download.SizeEstimate
+import com.peterlaurence.trekme.core.download.TileSizeEstimator
+import com.peterlaurence.trekme.core.download.TileSizeSamples
+import com.peterlaurence.trekme.core.download.TileStore
 import com.peterlaurence.trekme.core.mapsource.MapSource
 import com.peterlaurence.trekme.core.mapsource.MapSourceBundle
 import com.peterlaurence.trekme.core.mapsource.wmts.*
+import com.peterlaurence.trekme.core.providers.bitmap.GenericBitmapProvider
+import com.peterlaurence.trekme.core.providers.cache.TileDiskCache
+import com.peterlaurence.trekme.model.providers.layers.LayerForSource
 import com.peterlaurence.trekme.ui.mapcreate.components.Area
 import com.peterlaurence.trekme.service.DownloadService
 import com.peterlaurence.trekme.service.event.RequestDownloadMapEvent
+import com.peterlaurence.trekme.util.FileUtils
+import com.peterlaurence.trekme.util.gpx.GPXParser
 import org.greenrobot.eventbus.EventBus
 import org.greenrobot.eventbus.Subscribe
+import java.io.IOException
 import java.text.NumberFormat
+import java.util.concurrent.Executors
 
 
 /**
@@ -39,13 +57,57 @@ class WmtsLevelsDialog : DialogFragment() {
     private var currentMinLevel = startMinLevel
     private var currentMaxLevel = startMaxLevel
 
+    /* When the lowest levels are built on the device, only this number of levels is downloaded.
+     * At least one level is built */
+    private var downloadedLevelCount = 1
+
+    /* The distance to the track of a corridor, in meters */
+    private val corridorWidthStep = 100
+    private val corridorWidthMax = 2000
+    private var corridorWidth = 500
+
+    /* When a track is chosen, only the tiles along the track are downloaded */
+    private var corridorTrack: List<List<Point>>? = null
+    private var corridorTrackUri: Uri? = null
+
     private lateinit var transactionsTextView: TextView
     private lateinit var mapSizeTextView: TextView
+    private lateinit var packTilesCheckBox: CheckBox
+    private lateinit var overviewLevelsCheckBox: CheckBox
+    private lateinit var downloadedLevelsTextView: TextView
+    private lateinit var downloadedLevelsBar: SeekBar
+    private lateinit var corridorTrackButton: Button
+    private lateinit var corridorWidthTextView: TextView
+    private lateinit var corridorWidthBar: SeekBar
     private var mapSource: MapSource? = null
 
+    /* The size of the map is estimated in the background, a bit after the last change */
+    private val estimateDelayMs = 500L
+    private val estimateExecutor = Executors.newSingleThreadExecutor()
+    private val handler = Handler()
+    private var estimateGeneration = 0
+    private var sizeEstimate: SizeEstimate? = null
+    private var tileCount = 0L
+
+    /* The tiles of the last count, which the size is estimated from */
+    private var tileRanges: TileRanges? = null
+
+    /* The size of the tile store, read along with the first estimate */
+    @Volatile
+    private var tileStoreBytes: Long? = null
+
+    /* Kept for the whole dialog, so that tiles are fetched once per level at most. Only used by
+     * the thread of the estimateExecutor */
+    private var sizeEstimator: TileSizeEstimator? = null
+    private val estimateRunnable = Runnable { estimateSize() }
+
     companion object {
         private const val ARG_AREA = "WmtsLevelsDialog_area"
         private const val ARG_MAP_SOURCE = "WmtsLevelsDialog_mapSource"
+        private const val TRACK_REQUEST_CODE = 1337
+
+        /* Shared by all dialogs, and written after each estimate */
+        private val tileSizeSamples by lazy { TileSizeSamples(TrekMeContext.tileSizesFile) }
 
         fun newInstance(area: Area, mapSourceBundle: MapSourceBundle): WmtsLevelsDialog {
             val f = WmtsLevelsDialog()
@@ -67,13 +129,18 @@ class WmtsLevelsDialog : DialogFragment() {
 
         configureComponents(view)
 
-        return AlertDialog.Builder(context!!)
+        val dialog = AlertDialog.Builder(context!!)
                 .setTitle(R.string.wmts_settings_dialog)
                 .setView(view)
-                .setPositiveButton(R.string.download
-                ) { _, _ -> onDownloadFormConfirmed() }
+                .setPositiveButton(R.string.download, null)
                 .setNegativeButton(R.string.cancel_dialog_string) { _, _ -> dismiss() }
                 .create()
+
+        /* The dialog stays open when the user is warned about the free space */
+        dialog.setOnShowListener {
+            dialog.getButton(AlertDialog.BUTTON_POSITIVE).setOnClickListener { checkFreeSpace() }
+        }
+        return dialog
     }
 
     private fun configureComponents(view: View) {
@@ -155,18 +222,126 @@ class WmtsLevelsDialog : DialogFragment() {
 
         transactionsTextView = view.findViewById(R.id.transactions_text_view)
         mapSizeTextView = view.findViewById(R.id.map_size_text_view)
+        packTilesCheckBox = view.findViewById(R.id.pack_tiles_checkbox)
+        overviewLevelsCheckBox = view.findViewById(R.id.overview_levels_checkbox)
+        overviewLevelsCheckBox.setOnCheckedChangeListener { _, _ -> updateTransactionCount() }
+
+        downloadedLevelsTextView = view.findViewById(R.id.downloaded_levels_text_view)
+        downloadedLevelsBar = view.findViewById(R.id.seekBarDownloadedLevels)
+        downloadedLevelsBar.setOnSeekBarChangeListener(object : SeekBar.OnSeekBarChangeListener {
+            override fun onProgressChanged(seekBar: SeekBar, i: Int, fromUser: Boolean) {
+                /* The bar is also moved when the levels change */
+                if (!fromUser) return
+                downloadedLevelCount = i + 1
+                updateTransactionCount()
+            }
+
+            override fun onStartTrackingTouch(seekBar: SeekBar) {
+            }
+
+            override fun onStopTrackingTouch(seekBar: SeekBar) {
+            }
+        })
+
+        corridorTrackButton = view.findViewById(R.id.corridor_track_btn)
+        corridorTrackButton.setOnClickListener {
+            val intent = Intent(Intent.ACTION_OPEN_DOCUMENT)
+            intent.addCategory(Intent.CATEGORY_OPENABLE)
+            intent.type = "*/*"
+            startActivityForResult(intent, TRACK_REQUEST_CODE)
+        }
+
+        corridorWidthTextView = view.findViewById(R.id.corridor_width_text_view)
+        corridorWidthBar = view.findViewById(R.id.seekBarCorridorWidth)
+        corridorWidthBar.max = corridorWidthMax / corridorWidthStep - 1
+        corridorWidthBar.progress = corridorWidth / corridorWidthStep - 1
+        corridorWidthBar.setOnSeekBarChangeListener(object : SeekBar.OnSeekBarChangeListener {
+            override fun onProgressChanged(seekBar: SeekBar, i: Int, b: Boolean) {
+                corridorWidth = (i + 1) * corridorWidthStep
+                updateCorridorViews()
+                updateTransactionCount()
+            }
+
+            override fun onStartTrackingTouch(seekBar: SeekBar) {
+            }
+
+            override fun onStopTrackingTouch(seekBar: SeekBar) {
+            }
+        })
+    }
+
+    override fun onActivityResult(requestCode: Int, resultCode: Int, data: Intent?) {
+        if (requestCode != TRACK_REQUEST_CODE || resultCode != Activity.RESULT_OK) return
+        val uri = data?.data ?: return
+        val contentResolver = activity?.contentResolver ?: return
+
+        /* The track is read off the UI thread, as it can be a large file */
+        Thread {
+            val track: List<List<Point>>? = try {
+                contentResolver.openInputStream(uri)?.let { stream ->
+                    GPXParser.parse(stream).tracks.flatMap { it.trackSegments }.map {
+                        CorridorArea.projectTrackPoints(it.trackPoints)
+                    }.filter { it.isNotEmpty() }
+                }
+            } catch (e: Exception) {
+                null
+            }
+
+            activity?.runOnUiThread {
+                if (track == null || track.isEmpty()) {
+                    Toast.makeText(context, R.string.wmts_corridor_track_error, Toast.LENGTH_SHORT).show()
+                } else {
+                    corridorTrack = track
+                    corridorTrackUri = uri
+                    updateCorridorViews()
+                    updateTransactionCount()
+                }
+            }
+        }.start()
+    }
+
+    private fun updateCorridorViews() {
+        val uri = corridorTrackUri ?: return
+        corridorTrackButton.text = getString(R.string.wmts_corridor_track_loaded,
+                FileUtils.getFileRealPathFromURI(activity?.contentResolver, uri) ?: "")
+        corridorWidthTextView.text = getString(R.string.wmts_corridor_width, corridorWidth)
+        corridorWidthTextView.visibility = View.VISIBLE
+        corridorWidthBar.visibility = View.VISIBLE
     }
 
     /**
-     * This can be done in UI thread as even for billions of tiles the calculation is almost
-     * instantly done.
+     * Tiles are counted on the thread of the estimateExecutor: with a corridor, the tiles of each
+     * row of each level are computed along the track, which takes longer as the track gets longer.
+     * Only the result of the last count is shown, then the size is estimated from those tiles.
      */
     fun updateTransactionCount() {
-        val (p1, p2) = getPointsOfArea()
+        updateDownloadedLevelsViews()
 
-        val tileCount = getNumberOfTiles(currentMinLevel, currentMaxLevel, p1, p2)
+        estimateGeneration++
+        sizeEstimate = null
+        handler.removeCallbacks(estimateRunnable)
+        val generation = estimateGeneration
+        val makeMetadata = makeIgnMetadataTask()
+        val overviewLevelCount = getOverviewLevelCount()
 
-        val numberOfTransactions = tileCount.toTransactionsNumber()
+        estimateExecutor.execute {
+            val tileRanges = makeMetadata().tileRanges
+
+            /* Built levels don't cost any transaction */
+            val downloadedTileCount = TileRanges(tileRanges.levels.drop(overviewLevelCount)).tileCount
+
+            activity?.runOnUiThread {
+                if (generation == estimateGeneration && isAdded) {
+                    onTilesCounted(tileRanges, downloadedTileCount)
+                }
+            }
+        }
+    }
+
+    private fun onTilesCounted(tileRanges: TileRanges, downloadedTileCount: Long) {
+        this.tileRanges = tileRanges
+        tileCount = tileRanges.tileCount
+        val numberOfTransactions = downloadedTileCount.toTransactionsNumber()
 
         /* Format the number of transactions according to the current locale */
         val currentLocale = ConfigurationCompat.getLocales(resources.configuration).get(0)
@@ -174,11 +349,121 @@ class WmtsLevelsDialog : DialogFragment() {
         val formattedNumber = numberFormat.format(numberOfTransactions)
         transactionsTextView.text = formattedNumber
 
-        /* Show the map size in Mo */
-        val mapSizeInMo = "${numberFormat.format(tileCount.toSizeInMo())} Mo"
+        /* Show the map size in Mo, until it's estimated from actual tiles */
+        val mapSizeInMo = "${numberFormat.format(getAverageSize().toMo())} Mo"
         mapSizeTextView.text = mapSizeInMo
+        scheduleSizeEstimate()
+    }
+
+    private fun scheduleSizeEstimate() {
+        estimateGeneration++
+        sizeEstimate = null
+        handler.removeCallbacks(estimateRunnable)
+        handler.postDelayed(estimateRunnable, estimateDelayMs)
     }
 
+    /**
+     * Some tiles are fetched to estimate the size, so this is done off the UI thread. Tiles the user
+     * previewed aren't fetched. Fetched tiles are put in the tile store, so they aren't downloaded
+     * twice.
+     * Only the result of the last estimate is shown.
+     */
+    private fun estimateSize() {
+        val source = mapSource ?: return
+        val generation = estimateGeneration
+        val tileRanges = tileRanges ?: return
+        val layer = LayerForSource.resolveLayerName(source)
+        val previewCache = context?.let { TileDiskCache.getInstance(it) }
+
+        estimateExecutor.execute {
+            val estimator = sizeEstimator ?: makeSizeEstimator(source, layer, previewCache).also {
+                sizeEstimator = it
+            }
+            val estimate = estimator.estimate(tileRanges)
+            tileSizeSamples.save()
+            if (tileStoreBytes == null) tileStoreBytes = TileStore.getSize(TrekMeContext.tileStoreDir)
+
+            activity?.runOnUiThread {
+                if (generation == estimateGeneration && isAdded) onSizeEstimated(estimate)
+            }
+        }
+    }
+
+    private fun makeSizeEstimator(source: MapSource, layer: String,
+                                  previewCache: TileDiskCache?): TileSizeEstimator {
+        val bitmapProvider = GenericBitmapProvider.getBitmapProvider(source, layer)
+        val tileStore = TileStore(TrekMeContext.tileStoreDir, source, layer)
+        return TileSizeEstimator(tileSizeSamples, TileSizeSamples.makeKey(source, layer), { tile ->
+            tileStore.find(tile)?.length()
+                    ?: previewCache?.get(source, layer, tile.level, tile.row, tile.col)?.file?.length()
+                    ?: try {
+                bitmapProvider?.getTileStream(tile.level, tile.row, tile.col)?.inputStream?.use {
+                    val bytes = it.readBytes()
+                    tileStore.add(tile, bytes)
+                    bytes.size.toLong()
+                }
+            } catch (e: IOException) {
+                null
+            }
+        }, defaultTileSize = TileSizeEstimator.averageTileSize(source))
+    }
+
+    /**
+     * The size of the map with tiles of an average size for the image format of the source.
+     */
+    private fun getAverageSize(): Long {
+        val averageTileSize = mapSource?.let { TileSizeEstimator.averageTileSize(it) }
+                ?: TileSizeEstimator.AVERAGE_JPEG_TILE_SIZE
+        return tileCount * averageTileSize
+    }
+
+    private fun onSizeEstimated(estimate: SizeEstimate) {
+        sizeEstimate = estimate
+        val currentLocale = ConfigurationCompat.getLocales(resources.configuration).get(0)
+        val numberFormat = NumberFormat.getNumberInstance(currentLocale)
+        mapSizeTextView.text = getString(R.string.wmts_size_estimate,
+                numberFormat.format(estimate.bytes.toMo()), numberFormat.format(estimate.lowBytes.toMo()),
+                numberFormat.format(estimate.highBytes.toMo()))
+    }
+
+    /**
+     * Warn the user before the download starts, if the map may not fit in the free space. The
+     * upper bound of the estimate is used, or the average size of tiles if there is no estimate.
+     * Unless tiles are packed, they are also added to the [TileStore], which may grow up to its
+     * limit.
+     */
+    private fun checkFreeSpace() {
+        val mapBytes = sizeEstimate?.highBytes ?: getAverageSize()
+        val tileStoreGrowth = if (packTilesCheckBox.isChecked) {
+            0L
+        } else {
+            val tileStoreRoom = TileStore.MAX_BYTES - (tileStoreBytes ?: 0L)
+            Math.min(mapBytes, Math.max(0L, tileStoreRoom))
+        }
+        val neededBytes = mapBytes + tileStoreGrowth
+        val availableBytes = TrekMeContext.defaultMapsDownloadDir.usableSpace
+        if (neededBytes <= availableBytes) {
+            onDownloadFormConfirmed()
+            dismiss()
+            return
+        }
+
+        val currentLocale = ConfigurationCompat.getLocales(resources.configuration).get(0)
+        val numberFormat = NumberFormat.getNumberInstance(currentLocale)
+        AlertDialog.Builder(context!!)
+                .setTitle(R.string.wmts_not_enough_space_title)
+                .setMessage(getString(R.string.wmts_not_enough_space,
+                        numberFormat.format(neededBytes.toMo()), numberFormat.format(availableBytes.toMo())))
+                .setPositiveButton(R.string.wmts_download_anyway) { _, _ ->
+                    onDownloadFormConfirmed()
+                    dismiss()
+                }
+                .setNegativeButton(R.string.cancel_dialog_string, null)
+                .show()
+    }
+
+    private fun Long.toMo(): Long = this / 1000000
+
     override fun onStart() {
         super.onStart()
         EventBus.getDefault().register(this)
@@ -190,6 +475,12 @@ class WmtsLevelsDialog : DialogFragment() {
         super.onStop()
     }
 
+    override fun onDestroy() {
+        handler.removeCallbacks(estimateRunnable)
+        estimateExecutor.shutdown()
+        super.onDestroy()
+    }
+
     /**
      * We will start the download with the [DownloadService]
      *
@@ -209,16 +500,68 @@ class WmtsLevelsDialog : DialogFragment() {
 
     @Subscribe
     fun onDownloadSpecRequest(event: DownloadSpecRequest) {
-        val (p1, p2) = getPointsOfArea()
-        val tileSequenceAndCalibration = getTileSequenceAndCalibration(currentMinLevel, currentMaxLevel, p1, p2)
-        val tileCount = getNumberOfTiles(currentMinLevel, currentMaxLevel, p1, p2)
+        val tileSequenceAndCalibration = makeIgnMetadata()
 
         mapSource?.let {
-            EventBus.getDefault().post(RequestDownloadMapEvent(it, tileSequenceAndCalibration.tileSequence,
-                    tileSequenceAndCalibration.calibrationPoints, tileCount))
+            EventBus.getDefault().post(RequestDownloadMapEvent(it, tileSequenceAndCalibration.tileRanges,
+                    tileSequenceAndCalibration.calibrationPoints, packTilesCheckBox.isChecked,
+                    getOverviewLevelCount()))
+        }
+    }
+
+    private fun makeIgnMetadata(): IgnMetadata = makeIgnMetadataTask()()
+
+    /**
+     * The choices of the user are read when this is called, so that the returned task can run off
+     * the UI thread.
+     */
+    private fun makeIgnMetadataTask(): () -> IgnMetadata {
+        val levelMin = currentMinLevel
+        val levelMax = currentMaxLevel
+        val corridor = getCorridorArea()
+        val (p1, p2) = getPointsOfArea()
+        return {
+            if (corridor != null) {
+                getTileSequenceAndCalibration(levelMin, levelMax, corridor)
+            } else {
+                getTileSequenceAndCalibration(levelMin, levelMax, p1, p2)
+            }
         }
     }
 
+    /**
+     * The area around the chosen track, or `null` if there is none. It replaces the selected area.
+     */
+    private fun getCorridorArea(): DownloadArea? {
+        val track = corridorTrack ?: return null
+        return UnionArea(track.map { CorridorArea(it, corridorWidth.toDouble()) })
+    }
+
+    /**
+     * The number of downloaded levels can be chosen when the lowest levels are built, as long as
+     * one level at least is built.
+     */
+    private fun updateDownloadedLevelsViews() {
+        val levelCount = currentMaxLevel - currentMinLevel + 1
+        if (!overviewLevelsCheckBox.isChecked || levelCount < 2) {
+            downloadedLevelsTextView.visibility = View.GONE
+            downloadedLevelsBar.visibility = View.GONE
+            return
+        }
+
+        downloadedLevelCount = Math.min(downloadedLevelCount, levelCount - 1)
+        downloadedLevelsBar.max = levelCount - 2
+        downloadedLevelsBar.progress = downloadedLevelCount - 1
+        downloadedLevelsTextView.text = getString(R.string.wmts_downloaded_levels, downloadedLevelCount)
+        downloadedLevelsTextView.visibility = View.VISIBLE
+        downloadedLevelsBar.visibility = View.VISIBLE
+    }
+
+    private fun getOverviewLevelCount(): Int {
+        if (!overviewLevelsCheckBox.isChecked) return 0
+        return Math.max(0, currentMaxLevel - currentMinLevel + 1 - downloadedLevelCount)
+    }
+
     private fun getPointsOfArea(): Pair<Point, Point> {
         val area = arguments?.get(ARG_AREA) as Area
         val p1 = Point(area.relativeX1, area.relativeY1)
@@ -93,11 +93,12 @@ public class MapArchiveViewHolder extends RecyclerView.ViewHolder {
 
             /* Import the extracted map */
             // TODO : for instance we only import LIBVIPS maps
+            final int archiveId = event.archiveId;
             MapImporter.importFromFile(event.outputFolder, MapImporter.MapProvider.LIBVIPS,
                     new MapImporter.MapImportListener() {
                         @Override
                         public void onMapImported(Map map, MapImporter.MapParserStatus status) {
-                            EventBus.getDefault().post(new MapImportedEvent(map, status));
+                            EventBus.getDefault().post(new MapImportedEvent(map, status, archiveId));
                         }
 
                         @Override
@@ -121,6 +122,8 @@ public class MapArchiveViewHolder extends RecyclerView.ViewHolder {
 
     @Subscribe(threadMode = ThreadMode.MAIN)
     public void onMapImported(MapImportedEvent event) {
+        if (event.archiveId != mArchiveId) return;
+
         if (event.status == MapImporter.MapParserStatus.EXISTING_MAP) {
             mapCreationLabel.setText(R.string.imported_untouched);
         }
@@ -14,6 +14,8 @@ import com.peterlaurence.trekme.R
 import com.peterlaurence.trekme.core.TrekMeContext
 import com.peterlaurence.trekme.core.map.MapArchive
 import com.peterlaurence.trekme.core.map.maparchiver.MapArchiver
+import com.peterlaurence.trekme.core.map.mapimporter.MapImporter
+import com.peterlaurence.trekme.core.map.maploader.MapLoader
 import com.peterlaurence.trekme.core.map.maploader.tasks.MapArchiveSearchTask
 import com.peterlaurence.trekme.ui.events.MapImportedEvent
 import com.peterlaurence.trekme.ui.events.RequestImportMapEvent
@@ -151,18 +153,18 @@ class MapImportFragment : Fragment(), CoroutineScope {
 
             fab.setOnClickListener {
                 mapArchiveSelected?.let { mapArchive ->
-                    MapArchiver.unarchive(mapArchive, object : UnzipTask.UnzipProgressionListener {
-
-                        override fun onProgress(p: Int) {
-                            EventBus.getDefault().post(UnzipProgressionEvent(mapArchive.id, p))
-                        }
-
-                        override fun onUnzipFinished(outputDirectory: File) {
-                            EventBus.getDefault().post(UnzipFinishedEvent(mapArchive.id, outputDirectory))
+                    /* The archive is mounted when possible, otherwise it's extracted */
+                    MapArchiver.mount(mapArchive, object : MapArchiver.MountListener {
+                        override fun onMounted(mapDirectory: File) {
+                            MapLoader.getInstance().generateMaps(mapDirectory) { maps ->
+                                val map = maps.firstOrNull()
+                                val status = if (map != null) MapImporter.MapParserStatus.NEW_MAP else MapImporter.MapParserStatus.NO_MAP
+                                EventBus.getDefault().post(MapImportedEvent(map, status, mapArchive.id))
+                            }
                         }
 
-                        override fun onUnzipError() {
-                            EventBus.getDefault().post(UnzipErrorEvent(mapArchive.id))
+                        override fun onMountError() {
+                            unarchive(mapArchive)
                         }
                     })
                 }
@@ -170,6 +172,23 @@ class MapImportFragment : Fragment(), CoroutineScope {
         }
     }
 
+    private fun unarchive(mapArchive: MapArchive) {
+        MapArchiver.unarchive(mapArchive, object : UnzipTask.UnzipProgressionListener {
+
+            override fun onProgress(p: Int) {
+                EventBus.getDefault().post(UnzipProgressionEvent(mapArchive.id, p))
+            }
+
+            override fun onUnzipFinished(outputDirectory: File) {
+                EventBus.getDefault().post(UnzipFinishedEvent(mapArchive.id, outputDirectory))
+            }
+
+            override fun onUnzipError() {
+                EventBus.getDefault().post(UnzipErrorEvent(mapArchive.id))
+            }
+        })
+    }
+
     @Subscribe(threadMode = ThreadMode.MAIN)
     fun onMapImported(event: MapImportedEvent) {
         val snackbar = Snackbar.make(view!!, R.string.snack_msg_show_map_list, Snackbar.LENGTH_LONG)
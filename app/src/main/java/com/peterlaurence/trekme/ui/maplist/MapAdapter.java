@@ -1,6 +1,7 @@
 package com.peterlaurence.trekme.ui.maplist;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import androidx.annotation.Nullable;
 import androidx.cardview.widget.CardView;
@@ -15,18 +16,25 @@ import android.widget.TextView;
 
 import com.peterlaurence.trekme.R;
 import com.peterlaurence.trekme.core.map.Map;
-import com.peterlaurence.trekme.core.map.maploader.MapLoader;
+import com.peterlaurence.trekme.core.map.cache.ThumbnailCache;
+import com.peterlaurence.trekme.core.map.maploader.MapListChange;
+import com.peterlaurence.trekme.core.map.maploader.MapRepository;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.List;
 
 /**
  * Adapter to provide access to the data set (here a list of {@link Map}).
  * <p/>
+ * Thumbnails are decoded in background when a row is bound, through the {@link ThumbnailCache}.
+ * <p/>
+ * As a {@link MapRepository.MapListListener}, only the rows which changed are updated.
  *
  * @author peterLaurence on 26/12/15.
  */
-public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder> {
+public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder>
+        implements MapRepository.MapListListener {
     private List<Map> maps;
     private MapSelectionListener mMapSelectionListener;
     private MapSettingsListener mMapSettingsListener;
@@ -38,6 +46,8 @@ public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder> {
     private int mColorAccent;
     private int mColorWhiteText;
     private int mColorBlackText;
+    /* The size of the thumbnail view, in pixels */
+    private int mThumbnailSize;
 
     MapAdapter(@Nullable List<Map> maps, MapSelectionListener mapSelectionListener,
                MapSettingsListener mapSettingsListener, MapDeleteListener mapDeleteListener,
@@ -53,10 +63,48 @@ public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder> {
         mColorBlackText = blackTextColor;
     }
 
-    void onMapListUpdate(boolean mapsFound) {
-        if (mapsFound) {
-            maps = MapLoader.getInstance().getMaps();
-            notifyDataSetChanged();
+    /**
+     * Replace the whole list, e.g when the changes of the list weren't followed.
+     */
+    void setMaps(List<Map> maps) {
+        this.maps = maps;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public void onMapListChanged(List<Map> maps, List<MapListChange> changes) {
+        this.maps = maps;
+        for (MapListChange change : changes) {
+            int position = change.getPosition();
+            switch (change.getType()) {
+                case INSERTED:
+                    notifyItemInserted(position);
+                    break;
+                case REMOVED:
+                    notifyItemRemoved(position);
+                    break;
+                case CHANGED:
+                    notifyItemChanged(position);
+                    break;
+            }
+            selectedMapIndex = shiftIndex(selectedMapIndex, change);
+            previousSelectedMapIndex = shiftIndex(previousSelectedMapIndex, change);
+        }
+    }
+
+    /**
+     * @return the position of a row after a change, or -1 if the row was removed
+     */
+    private static int shiftIndex(int index, MapListChange change) {
+        if (index == -1) return index;
+        switch (change.getType()) {
+            case INSERTED:
+                return index >= change.getPosition() ? index + 1 : index;
+            case REMOVED:
+                if (index == change.getPosition()) return -1;
+                return index > change.getPosition() ? index - 1 : index;
+            default:
+                return index;
         }
     }
 
@@ -80,6 +128,7 @@ public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder> {
     public MapViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         Context ctx = parent.getContext();
         View v = LayoutInflater.from(ctx).inflate(R.layout.map_row, parent, false);
+        mThumbnailSize = ctx.getResources().getDimensionPixelSize(R.dimen.map_thumbnail_size);
 
         return new MapViewHolder(v);
     }
@@ -87,7 +136,7 @@ public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder> {
     @Override
     public void onBindViewHolder(MapViewHolder holder, int position) {
         final Map map = maps.get(position);
-        holder.mapImage.setImageBitmap(map.getImage());
+        bindThumbnail(holder, map.getImageFile());
         holder.mapName.setText(map.getName());
         holder.calibrationStatus.setText(map.getDescription());
 
@@ -121,6 +170,23 @@ public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder> {
         holder.deleteButton.setOnClickListener(new DeleteButtonClickListener(holder, this));
     }
 
+    /**
+     * Show the thumbnail right away if it's in memory, otherwise once it's decoded. By then, the
+     * view may show another map.
+     */
+    private void bindThumbnail(MapViewHolder holder, @Nullable File imageFile) {
+        holder.imageFile = imageFile;
+        Bitmap thumbnail = imageFile != null ? ThumbnailCache.get(imageFile, mThumbnailSize) : null;
+        holder.mapImage.setImageBitmap(thumbnail);
+        if (imageFile == null || thumbnail != null) return;
+
+        ThumbnailCache.load(imageFile, mThumbnailSize, bitmap -> {
+            if (imageFile.equals(holder.imageFile)) {
+                holder.mapImage.setImageBitmap(bitmap);
+            }
+        });
+    }
+
     @Override
     public int getItemCount() {
         return maps == null ? 0 : maps.size();
@@ -160,6 +226,8 @@ public class MapAdapter extends RecyclerView.Adapter<MapAdapter.MapViewHolder> {
         ImageView mapImage;
         Button editButton;
         ImageButton deleteButton;
+        /* The thumbnail shown, or being decoded */
+        File imageFile;
 
         public MapViewHolder(View itemView) {
             super(itemView);
@@ -105,11 +105,13 @@ public class MapListFragment extends Fragment implements
         super.onStart();
         EventBus.getDefault().register(this);
 
-        if (recyclerView != null) {
-            return;
+        if (recyclerView == null) {
+            generateMapList();
         }
 
-        generateMapList();
+        /* The adapter is told of the rows which change while this fragment is started */
+        adapter.setMaps(MapLoader.getInstance().getMaps());
+        MapLoader.getInstance().addMapListListener(adapter);
     }
 
     private void generateMapList() {
@@ -141,12 +143,12 @@ public class MapListFragment extends Fragment implements
     }
 
     /**
-     * This fragment and its {@link MapAdapter} are interested by the map list update event.
+     * This fragment is interested by the map list update event. The rows of the {@link MapAdapter}
+     * are updated separately, as a {@link com.peterlaurence.trekme.core.map.maploader.MapRepository.MapListListener}.
      */
     @Subscribe
     public void onMapListUpdate(MapListUpdateEvent event) {
         rootView.findViewById(R.id.loadingPanel).setVisibility(View.GONE);
-        adapter.onMapListUpdate(event.mapsFound);
 
         /* If no maps found, suggest to navigate to map creation */
         if (!event.mapsFound) {
@@ -161,6 +163,7 @@ public class MapListFragment extends Fragment implements
     @Override
     public void onStop() {
         EventBus.getDefault().unregister(this);
+        MapLoader.getInstance().removeMapListListener(adapter);
         super.onStop();
     }
 
@@ -193,7 +196,7 @@ public class MapListFragment extends Fragment implements
 
     @Override
     public void onMapDeleted() {
-        adapter.notifyDataSetChanged();
+        /* The row of the map was already removed from the adapter */
     }
 
     /**
@@ -7,6 +7,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import androidx.fragment.app.DialogFragment;
 import androidx.appcompat.app.AlertDialog;
@@ -17,10 +18,16 @@ import androidx.preference.PreferenceFragmentCompat;
 import android.widget.Toast;
 
 import com.peterlaurence.trekme.R;
+import com.peterlaurence.trekme.core.download.FailedTilesManifest;
 import com.peterlaurence.trekme.core.map.Map;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
+import com.peterlaurence.trekme.core.map.tilepack.TilePackConverter;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderLibVips;
+import com.peterlaurence.trekme.model.providers.bitmap.BitmapProviderTilePack;
+import com.peterlaurence.trekme.service.DownloadService;
 import com.peterlaurence.trekme.ui.maplist.dialogs.ArchiveMapDialog;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 
 /**
@@ -36,6 +43,8 @@ import java.lang.ref.WeakReference;
  * <ul>
  * <li>Change the map name</li>
  * <li>Delete the map</li>
+ * <li>Download the tiles which are missing, if the download of the map partially failed</li>
+ * <li>Pack the tiles of the map into a single file</li>
  * </ul>
  * </ul>
  * The activity that holds this fragment must implement {@code MapCalibrationRequestListener}
@@ -134,6 +143,10 @@ public class MapSettingsFragment extends PreferenceFragmentCompat implements Sha
 
         Preference saveButton = getPreferenceManager().findPreference(
                 getString(R.string.preference_save_button_key));
+        Preference repairButton = getPreferenceManager().findPreference(
+                getString(R.string.preference_repair_button_key));
+        Preference packButton = getPreferenceManager().findPreference(
+                getString(R.string.preference_pack_button_key));
 
         changeImageButton.setOnPreferenceClickListener(preference -> {
             Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
@@ -186,7 +199,14 @@ public class MapSettingsFragment extends PreferenceFragmentCompat implements Sha
 
         mapNamePreference.setOnPreferenceChangeListener((preference, newValue) -> {
             try {
-                mMapWeakReference.get().setName((String) newValue);
+                String newName = (String) newValue;
+                MapLoader.getInstance().renameMap(mMapWeakReference.get(), newName);
+
+                /* So that the map is found again if this fragment is re-created */
+                Bundle args = getArguments();
+                if (args != null) {
+                    args.putString(ARG_MAP_NAME, newName);
+                }
                 return true;
             } catch (Exception e) {
                 return false;
@@ -219,6 +239,82 @@ public class MapSettingsFragment extends PreferenceFragmentCompat implements Sha
             archiveMapDialog.show(getFragmentManager(), "ArchiveMapDialog");
             return true;
         });
+
+        /* Only a map whose download partially failed can be repaired */
+        if (map != null && FailedTilesManifest.exists(map.getDirectory())) {
+            repairButton.setOnPreferenceClickListener(preference -> {
+                repairMap(map);
+                return true;
+            });
+        } else {
+            repairButton.setVisible(false);
+        }
+
+        /* Only a map made of a folder structure can be packed */
+        if (map != null && BitmapProviderLibVips.GENERATOR_NAME.equals(map.getOrigin())) {
+            packButton.setOnPreferenceClickListener(preference -> {
+                packButton.setEnabled(false);
+                Toast.makeText(getContext(), R.string.map_pack_in_progress, Toast.LENGTH_SHORT).show();
+                new TilePackTask(map, getContext()).execute();
+                return true;
+            });
+        } else {
+            packButton.setVisible(false);
+        }
+    }
+
+    /**
+     * Start the {@link DownloadService}, so that it downloads the tiles which are missing.
+     */
+    private void repairMap(Map map) {
+        Context context = getContext();
+        if (context == null) return;
+
+        if (DownloadService.getStarted()) {
+            Toast.makeText(context, R.string.map_repair_already_downloading, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.putExtra(DownloadService.EXTRA_REPAIR_MAP_DIR, map.getDirectory().getAbsolutePath());
+        context.startService(intent);
+        Toast.makeText(context, R.string.download_confirm, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Packs the tiles of a {@link Map} in a background thread. Once the pack is complete, the map
+     * switches to a {@link BitmapProviderTilePack}, and only then the tile folders are deleted.
+     */
+    private static class TilePackTask extends AsyncTask<Void, Void, Boolean> {
+        private final Map mMap;
+        private final Context mContext;
+
+        TilePackTask(Map map, Context context) {
+            mMap = map;
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            return TilePackConverter.convert(mMap.getDirectory(), mMap.getImageExtension());
+        }
+
+        @Override
+        protected void onPostExecute(Boolean packed) {
+            if (!packed) {
+                Toast.makeText(mContext, R.string.map_pack_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            mMap.getMapGson().provider.generated_by = BitmapProviderTilePack.GENERATOR_NAME;
+            MapLoader.releaseBitmapProvider(mMap);
+            mMap.setBitmapProvider(MapLoader.makeBitmapProvider(mMap));
+            MapLoader.getInstance().saveMap(mMap);
+
+            File mapDir = mMap.getDirectory();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> TilePackConverter.deleteTileFolders(mapDir));
+            Toast.makeText(mContext, R.string.map_pack_done, Toast.LENGTH_SHORT).show();
+        }
     }
 
     @Override
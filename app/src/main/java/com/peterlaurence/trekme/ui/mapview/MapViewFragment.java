@@ -3,6 +3,7 @@ package com.peterlaurence.trekme.ui.mapview;
 import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.location.Location;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -17,6 +18,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.Toast;
 
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.FusedLocationProviderClient;
@@ -28,8 +31,15 @@ import com.google.android.gms.location.LocationServices;
 import com.peterlaurence.trekme.R;
 import com.peterlaurence.trekme.core.events.OrientationEventManager;
 import com.peterlaurence.trekme.core.map.Map;
+import com.peterlaurence.trekme.core.map.MapOverview;
+import com.peterlaurence.trekme.core.map.MapViewport;
+import com.peterlaurence.trekme.core.map.MapViewportStore;
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache;
+import com.peterlaurence.trekme.core.map.cache.TileDecodeScheduler;
+import com.peterlaurence.trekme.core.map.cache.TilePrefetcher;
 import com.peterlaurence.trekme.core.map.gson.MapGson;
 import com.peterlaurence.trekme.core.map.gson.MarkerGson;
+import com.peterlaurence.trekme.core.map.maparchiver.MapArchiver;
 import com.peterlaurence.trekme.core.map.maploader.MapLoader;
 import com.peterlaurence.trekme.core.projection.Projection;
 import com.peterlaurence.trekme.core.projection.ProjectionTask;
@@ -37,13 +47,17 @@ import com.peterlaurence.trekme.ui.mapview.components.tracksmanage.TracksManageF
 import com.peterlaurence.trekme.ui.mapview.events.TrackChangedEvent;
 import com.peterlaurence.trekme.ui.mapview.events.TrackVisibilityChangedEvent;
 import com.peterlaurence.trekme.model.map.MapProvider;
+import com.peterlaurence.trekme.model.providers.bitmap.PrefetchableBitmapProvider;
+import com.peterlaurence.trekme.model.providers.bitmap.UpscalingBitmapProvider;
 import com.qozix.tileview.TileView;
 import com.qozix.tileview.geom.CoordinateTranslater;
+import com.qozix.tileview.graphics.BitmapProvider;
 import com.qozix.tileview.widgets.ZoomPanLayout;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 
+import java.io.File;
 import java.util.List;
 
 /**
@@ -64,6 +78,8 @@ public class MapViewFragment extends Fragment implements
 
     public static final String TAG = "MapViewFragment";
     private static final String WAS_DISPLAYING_ORIENTATION = "wasDisplayingOrientation";
+    /* The number of levels made of upscaled tiles, beyond the deepest level of a map */
+    private static final int OVERZOOM_LEVEL_COUNT = 2;
     private FrameLayoutMapView rootView;
     private TileViewExtended mTileView;
     private Map mMap;
@@ -80,6 +96,7 @@ public class MapViewFragment extends Fragment implements
     private DistanceLayer.DistanceListener mDistanceListener;
     private FusedLocationProviderClient mFusedLocationClient;
     private LocationCallback mLocationCallback;
+    private MapViewportStore mViewportStore;
 
     public MapViewFragment() {
     }
@@ -100,6 +117,7 @@ public class MapViewFragment extends Fragment implements
          * a retained fragment.
          */
         mFusedLocationClient = LocationServices.getFusedLocationProviderClient(this.getActivity().getApplicationContext());
+        mViewportStore = new MapViewportStore(context.getApplicationContext());
         mLocationRequest = new LocationRequest();
         mLocationRequest.setInterval(1000);
         mLocationRequest.setFastestInterval(1000);
@@ -293,6 +311,7 @@ public class MapViewFragment extends Fragment implements
     public void onHiddenChanged(boolean hidden) {
         super.onHiddenChanged(hidden);
         if (hidden) {
+            saveViewport();
             mSpeedListener.hideSpeed();
             mDistanceLayer.hide();
             mOrientationEventManager.stop();
@@ -352,6 +371,7 @@ public class MapViewFragment extends Fragment implements
     @Override
     public void onStop() {
         super.onStop();
+        saveViewport();
         EventBus.getDefault().unregister(this);
     }
 
@@ -361,6 +381,11 @@ public class MapViewFragment extends Fragment implements
 
         MapLoader.getInstance().clearMapMarkerUpdateListener();
         MapLoader.getInstance().clearMapRouteUpdateListener();
+
+        if (mMap != null) {
+            MapLoader.releaseBitmapProvider(mMap);
+            mMap.releaseDownSample();
+        }
     }
 
     @Override
@@ -457,9 +482,21 @@ public class MapViewFragment extends Fragment implements
      * @param map The new {@link Map} object
      */
     private void setMap(Map map) {
+        saveViewport();
+        if (mMap != null && mMap != map) {
+            MapLoader.releaseBitmapProvider(mMap);
+            mMap.releaseDownSample();
+        }
         mMap = map;
         TileViewExtended tileView = new TileViewExtended(this.getContext());
 
+        /* The tiles of a mounted archive can't be read once the archive is moved or deleted */
+        File archiveFile = MapArchiver.getMountedArchive(map.getDirectory());
+        if (archiveFile != null && !archiveFile.exists()) {
+            Toast.makeText(getContext(), getString(R.string.mounted_archive_missing,
+                    archiveFile.getPath()), Toast.LENGTH_LONG).show();
+        }
+
         /* Set the size of the view in px at scale 1 */
         tileView.setSize(map.getWidthPx(), map.getHeightPx());
 
@@ -467,11 +504,21 @@ public class MapViewFragment extends Fragment implements
         List<MapGson.Level> levelList = map.getLevelList();
         float minScale = 1 / (float) Math.pow(2, levelList.size() - 1);
 
-        /* Scale limits */
-        tileView.setScaleLimits(minScale, 2);
-
-        /* Starting scale */
-        tileView.setScale(minScale);
+        /* Tiles are prefetched when the provider supports it. Until a tile is decoded, its
+         * parent tile is upscaled. Both go through a scheduler, which decodes the tiles closest to
+         * the viewport first */
+        BitmapProvider bitmapProvider = map.getBitmapProvider();
+        TilePrefetcher tilePrefetcher = null;
+        UpscalingBitmapProvider upscalingProvider = null;
+        if (bitmapProvider instanceof PrefetchableBitmapProvider) {
+            TileDecodeScheduler scheduler = new TileDecodeScheduler();
+            upscalingProvider = new UpscalingBitmapProvider((PrefetchableBitmapProvider) bitmapProvider,
+                    map.getId(), scheduler);
+            tilePrefetcher = new TilePrefetcher(upscalingProvider, scheduler, map.getWidthPx(),
+                    map.getHeightPx());
+            upscalingProvider.setOnTileReplaced(() -> tileView.getTileCanvasViewGroup().postInvalidate());
+            bitmapProvider = upscalingProvider;
+        }
 
         /* DetailLevel definition */
         for (MapGson.Level level : levelList) {
@@ -479,6 +526,42 @@ public class MapViewFragment extends Fragment implements
             float scale = 1 / (float) Math.pow(2, levelList.size() - level.level - 1);
 
             tileView.addDetailLevel(scale, level.level, level.tile_size.x, level.tile_size.y);
+            if (tilePrefetcher != null) {
+                tilePrefetcher.addDetailLevel(scale, level.level, level.tile_size.x, level.tile_size.y);
+            }
+            if (upscalingProvider != null) {
+                upscalingProvider.addDetailLevel(scale, level.level, level.tile_size.x, level.tile_size.y);
+            }
+        }
+
+        /* Beyond the deepest level, tiles are upscaled when the provider supports it. Otherwise,
+         * the deepest level is only scaled up to twice its size */
+        float maxScale = 2;
+        if (upscalingProvider != null && !levelList.isEmpty()) {
+            MapGson.Level deepestLevel = levelList.get(levelList.size() - 1);
+            for (int i = 1; i <= OVERZOOM_LEVEL_COUNT; i++) {
+                float scale = (float) Math.pow(2, i);
+                int level = deepestLevel.level + i;
+                int tileWidth = deepestLevel.tile_size.x;
+                int tileHeight = deepestLevel.tile_size.y;
+
+                tileView.addDetailLevel(scale, level, tileWidth, tileHeight);
+                tilePrefetcher.addDetailLevel(scale, level, tileWidth, tileHeight);
+                upscalingProvider.addOverzoomLevel(scale, level, tileWidth, tileHeight);
+            }
+            maxScale = (float) Math.pow(2, OVERZOOM_LEVEL_COUNT);
+        }
+
+        /* Scale limits */
+        tileView.setScaleLimits(minScale, maxScale);
+
+        /* Starting scale, and position. The map is reopened where it was left */
+        MapViewport viewport = mViewportStore.get(map.getId());
+        if (viewport != null) {
+            tileView.setScale(Math.max(minScale, Math.min(viewport.getScale(), maxScale)));
+            scrollOnLayout(tileView, viewport);
+        } else {
+            tileView.setScale(minScale);
         }
 
         /* Allow the scale to be no less to see the entire map */
@@ -490,8 +573,22 @@ public class MapViewFragment extends Fragment implements
         /* Map calibration */
         setTileViewBounds(tileView, map);
 
-        /* The BitmapProvider */
-        tileView.setBitmapProvider(map.getBitmapProvider());
+        /* The BitmapProvider, and bitmaps which may be cached must not be recycled */
+        tileView.setBitmapProvider(bitmapProvider);
+        tileView.setBitmapRecycler(TileBitmapCache.INSTANCE.getBitmapRecycler());
+        tileView.setTilePrefetcher(tilePrefetcher);
+
+        /* The overview of the map is shown under the tiles, until they are decoded. If the map
+         * has none yet, it's made for the next time the map is opened */
+        Bitmap downSample = map.getDownSample();
+        if (downSample != null) {
+            ImageView overview = new ImageView(getContext());
+            overview.setScaleType(ImageView.ScaleType.FIT_XY);
+            overview.setImageBitmap(downSample);
+            tileView.addView(overview, 0);
+        } else if (bitmapProvider instanceof PrefetchableBitmapProvider) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> MapOverview.makeIfMissing(map));
+        }
 
         /* The position + orientation reticule */
         try {
@@ -507,6 +604,37 @@ public class MapViewFragment extends Fragment implements
         setTileView(tileView);
     }
 
+    /**
+     * The TileView can only be scrolled once it's laid out, since the scroll is constrained by its
+     * size.
+     */
+    private void scrollOnLayout(TileView tileView, MapViewport viewport) {
+        tileView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                if (right - left <= 0 || bottom - top <= 0) return;
+                tileView.removeOnLayoutChangeListener(this);
+                tileView.scrollToAndCenter((int) (viewport.getCenterX() * tileView.getScaledWidth()),
+                        (int) (viewport.getCenterY() * tileView.getScaledHeight()));
+            }
+        });
+    }
+
+    /**
+     * Save the scale and the center of the current map, see {@link MapViewportStore}.
+     */
+    private void saveViewport() {
+        if (mMap == null || mTileView == null || mViewportStore == null) return;
+        int scaledWidth = mTileView.getScaledWidth();
+        int scaledHeight = mTileView.getScaledHeight();
+        if (scaledWidth <= 0 || scaledHeight <= 0 || mTileView.getWidth() <= 0) return;
+
+        float centerX = (mTileView.getScrollX() + mTileView.getWidth() / 2f) / scaledWidth;
+        float centerY = (mTileView.getScrollY() + mTileView.getHeight() / 2f) / scaledHeight;
+        mViewportStore.put(mMap.getId(), new MapViewport(mTileView.getScale(), centerX, centerY));
+    }
+
     public void centerOnPosition() {
         if (mTileView != null) {
             mTileView.moveToMarker(mPositionMarker, true);
@@ -4,6 +4,7 @@ import android.content.Context;
 import androidx.annotation.Nullable;
 import android.view.MotionEvent;
 
+import com.peterlaurence.trekme.core.map.cache.TilePrefetcher;
 import com.peterlaurence.trekme.core.map.gson.RouteGson;
 import com.peterlaurence.trekme.ui.mapview.components.PathView;
 import com.qozix.tileview.TileView;
@@ -14,6 +15,11 @@ import java.util.List;
 
 /**
  * Specialization of TileView to allow custom custom control of touch events.
+ * <p>
+ * When a {@link TilePrefetcher} is set, the position of the viewport in a few hundred milliseconds
+ * is predicted from the scroll, fling and scale gestures, and its tiles are prefetched. The
+ * prefetcher is also told where the viewport is, so tiles which aren't seen anymore aren't decoded.
+ * </p>
  *
  * @author peterLaurence on 28/03/16.
  */
@@ -26,6 +32,15 @@ public class TileViewExtended extends TileView {
     private List<ScaleChangeListener> mScaleChangeListeners;
     private PathView mPathView;
 
+    /* How far ahead the position of the viewport is predicted, in ms */
+    private static final int PREDICTION_HORIZON = 300;
+    /* Beyond that delay between two scroll events, the velocity isn't known */
+    private static final int MAX_SCROLL_EVENT_INTERVAL = 100;
+
+    private TilePrefetcher mTilePrefetcher;
+    private long mLastScrollEventTime;
+    private boolean mZoomingIn = true;
+
     public TileViewExtended(Context context) {
         super(context);
 
@@ -60,7 +75,38 @@ public class TileViewExtended extends TileView {
             }
         }
 
-        return super.onScroll(motionEvent, motionEvent1, v, v1);
+        boolean consumed = super.onScroll(motionEvent, motionEvent1, v, v1);
+
+        if (mTilePrefetcher != null) {
+            long interval = motionEvent1.getEventTime() - mLastScrollEventTime;
+            mLastScrollEventTime = motionEvent1.getEventTime();
+            if (interval > 0 && interval <= MAX_SCROLL_EVENT_INTERVAL) {
+                /* The distances are those scrolled since the last event */
+                float factor = PREDICTION_HORIZON / (float) interval;
+                prefetchViewportAt(getScrollX() + (int) (v * factor), getScrollY() + (int) (v1 * factor));
+            }
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean onFling(MotionEvent motionEvent, MotionEvent motionEvent1, float v, float v1) {
+        boolean consumed = super.onFling(motionEvent, motionEvent1, v, v1);
+
+        /* The scroller knows where the fling ends */
+        if (mTilePrefetcher != null) {
+            prefetchViewportAt(getScroller().getFinalX(), getScroller().getFinalY());
+        }
+        return consumed;
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+
+        if (mTilePrefetcher != null) {
+            mTilePrefetcher.onViewportChanged(l, t, l + getWidth(), t + getHeight(), getScale());
+        }
     }
 
     public void setSingleTapListener(SingleTapStaticListener listener) {
@@ -71,6 +117,17 @@ public class TileViewExtended extends TileView {
         mScrollListenerWeakReference = new WeakReference<>(listener);
     }
 
+    /**
+     * Set the {@link TilePrefetcher}, which must be configured with the same detail levels as this
+     * TileView. The previous one is shut down.
+     */
+    public void setTilePrefetcher(@Nullable TilePrefetcher tilePrefetcher) {
+        if (mTilePrefetcher != null) {
+            mTilePrefetcher.shutdown();
+        }
+        mTilePrefetcher = tilePrefetcher;
+    }
+
     @Nullable
     public PathView getPathView() {
         return mPathView;
@@ -91,6 +148,13 @@ public class TileViewExtended extends TileView {
     public void onScaleChanged(float scale, float previous) {
         super.onScaleChanged(scale, previous);
 
+        if (mTilePrefetcher != null && scale != previous) {
+            mZoomingIn = scale > previous;
+            mTilePrefetcher.onViewportChanged(getScrollX(), getScrollY(), getScrollX() + getWidth(),
+                    getScrollY() + getHeight(), scale);
+            prefetchViewportAt(getScrollX(), getScrollY());
+        }
+
         for (ScaleChangeListener listener : mScaleChangeListeners) {
             listener.onScaleChanged(scale);
         }
@@ -108,6 +172,16 @@ public class TileViewExtended extends TileView {
         void onScaleChanged(float scale);
     }
 
+    @Override
+    public void destroy() {
+        setTilePrefetcher(null);
+        super.destroy();
+    }
+
+    private void prefetchViewportAt(int x, int y) {
+        mTilePrefetcher.prefetch(x, y, x + getWidth(), y + getHeight(), getScale(), mZoomingIn);
+    }
+
     private void createPathView() {
         mPathView = new PathView(getContext());
         addView(mPathView, getChildCount() - 1);
@@ -10,7 +10,8 @@ import java.util.zip.ZipFile
 import java.util.zip.ZipInputStream
 
 /**
- * Utility class used to unzip any zip file.
+ * Utility class used to unzip any zip file. While it runs, the output folder holds an
+ * [IN_PROGRESS_FILE_NAME] file, so that it isn't taken for a complete map.
  *
  * @author peterLaurence on 12/06/16.
  */
@@ -25,6 +26,7 @@ class UnzipTask(private val mZipFile: File, private val mOutputFolder: File, pri
             if (!mOutputFolder.exists()) {
                 mOutputFolder.mkdirs()
             }
+            File(mOutputFolder, IN_PROGRESS_FILE_NAME).createNewFile()
 
             val zip = ZipFile(mZipFile)
             val totalEntries = zip.size().toLong()
@@ -75,6 +77,7 @@ class UnzipTask(private val mZipFile: File, private val mOutputFolder: File, pri
             result = false
         }
 
+        File(mOutputFolder, IN_PROGRESS_FILE_NAME).delete()
         if (result) {
             mUnzipProgressionListener.onUnzipFinished(mOutputFolder)
         } else {
@@ -101,5 +104,6 @@ class UnzipTask(private val mZipFile: File, private val mOutputFolder: File, pri
 
     companion object {
         private val TAG = "UnzipTask"
+        const val IN_PROGRESS_FILE_NAME = ".extracting"
     }
 }
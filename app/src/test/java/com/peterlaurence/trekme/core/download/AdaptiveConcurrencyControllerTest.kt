@@ -0,0 +1,66 @@
+package com.peterlaurence.trekme.core.download
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class AdaptiveConcurrencyControllerTest {
+    private fun AdaptiveConcurrencyController.succeed(count: Int, latencyMs: Long = 100) {
+        repeat(count) {
+            assertTrue(acquire(0))
+            onSuccess(latencyMs)
+        }
+    }
+
+    @Test
+    fun additiveIncreaseTest() {
+        val controller = AdaptiveConcurrencyController(8, 2)
+
+        /* A full window of successes adds one request */
+        controller.succeed(2)
+        assertEquals(3, controller.concurrency)
+        controller.succeed(3)
+        assertEquals(4, controller.concurrency)
+
+        /* Never above the cap */
+        controller.succeed(100)
+        assertEquals(8, controller.concurrency)
+    }
+
+    @Test
+    fun multiplicativeDecreaseTest() {
+        val controller = AdaptiveConcurrencyController(8, 8)
+
+        repeat(8) { assertTrue(controller.acquire(0)) }
+        assertFalse(controller.acquire(0))
+
+        /* A burst of throttled requests only halves the limit once */
+        repeat(8) { controller.onFailure(429) }
+        assertEquals(4, controller.concurrency)
+        assertEquals(8, controller.throttledCount)
+
+        /* Once the requests in flight at the time of the decrease are done, it can decrease again */
+        assertTrue(controller.acquire(0))
+        controller.onFailure(503)
+        assertEquals(2, controller.concurrency)
+    }
+
+    @Test
+    fun clientErrorTest() {
+        val controller = AdaptiveConcurrencyController(8, 4)
+        assertTrue(controller.acquire(0))
+        controller.onFailure(404)
+        assertEquals(4, controller.concurrency)
+        assertEquals(1, controller.errorCount)
+    }
+
+    @Test
+    fun latencyTest() {
+        val controller = AdaptiveConcurrencyController(8, 1)
+        controller.succeed(1, 100)
+        assertEquals(2, controller.concurrency)
+
+        /* The server slows down: the limit holds */
+        controller.succeed(20, 1000)
+        assertEquals(2, controller.concurrency)
+    }
+}
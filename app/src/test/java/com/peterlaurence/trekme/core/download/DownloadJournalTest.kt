@@ -0,0 +1,55 @@
+package com.peterlaurence.trekme.core.download
+
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+
+class DownloadJournalTest {
+    private lateinit var parentDir: File
+    private lateinit var jobDir: File
+
+    @Before
+    fun init() {
+        parentDir = createTempDir()
+        jobDir = File(parentDir, "map-job")
+        jobDir.mkdir()
+    }
+
+    @After
+    fun cleanup() {
+        parentDir.deleteRecursively()
+    }
+
+    @Test
+    fun resumeTest() {
+        val journal = DownloadJournal.create(jobDir, "key", 1000)
+        listOf(0L, 63L, 64L, 500L, 999L).forEach { journal.markDone(it) }
+        journal.close()
+
+        val resumed = DownloadJournal.open(jobDir)
+        assertNotNull(resumed)
+        resumed!!
+        assertEquals(jobDir, resumed.dir)
+        assertEquals("key", resumed.key)
+        assertEquals(1000L, resumed.tileCount)
+        assertTrue(resumed.isDone(0))
+        assertTrue(resumed.isDone(63))
+        assertTrue(resumed.isDone(64))
+        assertTrue(resumed.isDone(500))
+        assertTrue(resumed.isDone(999))
+        assertFalse(resumed.isDone(1))
+        assertFalse(resumed.isDone(501))
+        resumed.close()
+    }
+
+    @Test
+    fun finishedJobTest() {
+        val journal = DownloadJournal.create(jobDir, "key", 10)
+        journal.markDone(3)
+        journal.finish()
+
+        assertNull(DownloadJournal.open(jobDir))
+    }
+}
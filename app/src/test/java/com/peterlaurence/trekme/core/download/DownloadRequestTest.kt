@@ -0,0 +1,81 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.map.gson.MapGson.Calibration.CalibrationPoint
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.wmts.LevelRange
+import com.peterlaurence.trekme.core.mapsource.wmts.RowSpans
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRanges
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+
+class DownloadRequestTest {
+    private lateinit var parentDir: File
+    private lateinit var jobDir: File
+
+    @Before
+    fun init() {
+        parentDir = createTempDir()
+        jobDir = File(parentDir, "map-job")
+        jobDir.mkdir()
+    }
+
+    @After
+    fun cleanup() {
+        parentDir.deleteRecursively()
+    }
+
+    @Test
+    fun savedRequestTest() {
+        val request = makeRequest(0.0)
+        request.write(jobDir)
+
+        val read = DownloadRequest.read(jobDir)
+        assertNotNull(read!!)
+        assertEquals(request.key, read.key)
+        assertEquals(request.layer, read.layer)
+        assertEquals(request.tiles.tileCount, read.tiles.tileCount)
+        assertEquals(request.tiles.levels.last().spans!!.tileCount, read.tiles.levels.last().spans!!.tileCount)
+        assertEquals(1.5, read.calibrationPoints.second.proj_x, 0.0)
+        assertTrue(read.packTiles)
+        assertEquals(1, read.overviewLevelCount)
+
+        /* Only a folder with a journal holds an interrupted download */
+        assertTrue(DownloadRequest.findUnfinished(parentDir).isEmpty())
+        DownloadJournal.create(jobDir, request.key, 10).close()
+        assertEquals(listOf(jobDir), DownloadRequest.findUnfinished(parentDir).map { it.first })
+    }
+
+    @Test
+    fun keyTest() {
+        /* The calibration depends on the area drawn, not the tiles */
+        assertEquals(makeRequest(0.0).key, makeRequest(0.3).key)
+
+        val otherTiles = DownloadRequest(MapSource.IGN, "layer",
+                TileRanges(listOf(LevelRange(3, 0, 1, 2, 1, 2))), makeCalibration(0.0), true, 1)
+        assertNotEquals(makeRequest(0.0).key, otherTiles.key)
+    }
+
+    @Test
+    fun corruptedRequestTest() {
+        File(jobDir, DownloadRequest.FILE_NAME).writeText("{\"layer\": ")
+        assertNull(DownloadRequest.read(jobDir))
+    }
+
+    private fun makeRequest(offset: Double): DownloadRequest {
+        val spans = RowSpans(arrayOf(intArrayOf(4, 5), intArrayOf(4, 4, 6, 7)))
+        val tiles = TileRanges(listOf(LevelRange(3, 0, 1, 2, 1, 2),
+                LevelRange(4, 1, 2, 3, 4, 7, spans)))
+        return DownloadRequest(MapSource.IGN, "layer", tiles, makeCalibration(offset), true, 1)
+    }
+
+    private fun makeCalibration(offset: Double): Pair<CalibrationPoint, CalibrationPoint> {
+        val p1 = CalibrationPoint()
+        p1.proj_x = offset
+        val p2 = CalibrationPoint()
+        p2.proj_x = 1.5 + offset
+        return p1 to p2
+    }
+}
@@ -0,0 +1,70 @@
+package com.peterlaurence.trekme.core.download
+
+import android.graphics.Bitmap
+import com.peterlaurence.trekme.BuildConfig
+import com.peterlaurence.trekme.core.mapsource.wmts.LevelRange
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import org.junit.Assert.*
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.ConcurrentHashMap
+
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class OverviewLevelBuilderTest {
+    /* A tile of level 10, and its 4 children in level 11 */
+    private val levels = listOf(LevelRange(10, 0, 5, 5, 7, 7), LevelRange(11, 1, 10, 11, 14, 15))
+    private val tileBytes = "tile".toByteArray()
+
+    @Test
+    fun tileIsBuiltFromItsFourChildren() {
+        val readTiles = ConcurrentHashMap.newKeySet<Tile>()
+        val written = ConcurrentHashMap<Tile, ByteArray>()
+        val builder = OverviewLevelBuilder({ tile -> readTiles.add(tile); tileBytes },
+                { tile, bytes -> written[tile] = bytes; true }, Bitmap.CompressFormat.PNG, 1)
+
+        assertEquals(0, builder.build(levels, 1))
+
+        val children = setOf(Tile(11, 10, 14, 1, 0, 0), Tile(11, 10, 15, 1, 0, 1),
+                Tile(11, 11, 14, 1, 1, 0), Tile(11, 11, 15, 1, 1, 1))
+        assertEquals(children, readTiles)
+        assertEquals(setOf(Tile(10, 5, 7, 0, 0, 0)), written.keys)
+        assertTrue(written.values.first().isNotEmpty())
+    }
+
+    @Test
+    fun missingChildrenLeaveBlankQuarters() {
+        val written = ConcurrentHashMap<Tile, ByteArray>()
+        val builder = OverviewLevelBuilder({ tile -> if (tile.indexRow == 0 && tile.indexCol == 0) tileBytes else null },
+                { tile, bytes -> written[tile] = bytes; true }, Bitmap.CompressFormat.JPEG, 1)
+
+        assertEquals(0, builder.build(levels, 1))
+        assertEquals(setOf(Tile(10, 5, 7, 0, 0, 0)), written.keys)
+    }
+
+    @Test
+    fun tileWithoutChildrenFails() {
+        val written = ConcurrentHashMap<Tile, ByteArray>()
+        val builder = OverviewLevelBuilder({ null }, { tile, bytes -> written[tile] = bytes; true },
+                Bitmap.CompressFormat.PNG, 1)
+
+        assertEquals(1, builder.build(levels, 1))
+        assertTrue(written.isEmpty())
+    }
+
+    @Test
+    fun levelsAreBuiltFromTheHighest() {
+        /* Level 9 is built from level 10, which is built first */
+        val threeLevels = listOf(LevelRange(9, 0, 2, 2, 3, 3), LevelRange(10, 1, 4, 5, 6, 7),
+                LevelRange(11, 2, 8, 11, 12, 15))
+        val written = ConcurrentHashMap<Tile, ByteArray>()
+        val builder = OverviewLevelBuilder({ tile -> if (tile.level == 11) tileBytes else written[tile] },
+                { tile, bytes -> written[tile] = bytes; true }, Bitmap.CompressFormat.PNG, 2)
+
+        assertEquals(0, builder.build(threeLevels, 2))
+        assertEquals(4, written.keys.count { it.level == 10 })
+        assertTrue(written.containsKey(Tile(9, 2, 3, 0, 0, 0)))
+    }
+}
@@ -0,0 +1,28 @@
+package com.peterlaurence.trekme.core.download
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class RetryQueueTest {
+    @Test
+    fun backoffTest() {
+        val retryQueue = RetryQueue<String>(3, 50)
+
+        assertTrue(retryQueue.offer("tile", 1))
+        assertNull(retryQueue.poll())
+        assertEquals("tile", retryQueue.poll(1000))
+
+        /* The second retry is delayed twice as much */
+        val start = System.nanoTime()
+        assertTrue(retryQueue.offer("tile", 2))
+        assertEquals("tile", retryQueue.poll(1000))
+        assertTrue(System.nanoTime() - start >= 100_000_000)
+    }
+
+    @Test
+    fun maxAttemptsTest() {
+        val retryQueue = RetryQueue<String>(3, 50)
+        assertFalse(retryQueue.offer("tile", 3))
+        assertEquals(0, retryQueue.size)
+    }
+}
@@ -0,0 +1,101 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.wmts.LevelRange
+import com.peterlaurence.trekme.core.mapsource.wmts.TileRanges
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.*
+
+class TileSizeEstimatorTest {
+    private lateinit var dir: File
+    private val tiles = TileRanges(listOf(
+            LevelRange(15, 0, 10, 19, 30, 39),
+            LevelRange(16, 1, 20, 39, 60, 79)))
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("tilesizes").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun sameSizeTilesAreExact() {
+        val samples = TileSizeSamples(File(dir, "sizes"))
+        val estimator = TileSizeEstimator(samples, "source|layer", { tile ->
+            if (tile.level == 15) 10000L else 20000L
+        })
+
+        val estimate = estimator.estimate(tiles)
+        Assert.assertEquals(100 * 10000L + 400 * 20000L, estimate.bytes)
+        Assert.assertEquals(estimate.bytes, estimate.lowBytes)
+        Assert.assertEquals(estimate.bytes, estimate.highBytes)
+        Assert.assertEquals(12, estimate.sampleCount)
+    }
+
+    @Test
+    fun intervalContainsTheTotal() {
+        val samples = TileSizeSamples(File(dir, "sizes"))
+        val size = { row: Int, col: Int -> 5000L + ((row * 31 + col * 17) % 10) * 1000 }
+        val estimator = TileSizeEstimator(samples, "source|layer", { size(it.row, it.col) }, 20, Random(42))
+
+        val total = tiles.asSequence().sumBy { size(it.row, it.col).toInt() }.toLong()
+        val estimate = estimator.estimate(tiles)
+        Assert.assertTrue(estimate.lowBytes < estimate.highBytes)
+        Assert.assertTrue(total in estimate.lowBytes..estimate.highBytes)
+    }
+
+    @Test
+    fun knownSizesAreReused() {
+        val file = File(dir, "sizes")
+        val samples = TileSizeSamples(file)
+        TileSizeEstimator(samples, "source|layer", { 10000L }).estimate(tiles)
+        samples.save()
+
+        /* Nothing is fetched from now on, even after a reload */
+        var fetchCount = 0
+        val estimator = TileSizeEstimator(TileSizeSamples(file), "source|layer", {
+            fetchCount++
+            null
+        })
+        Assert.assertEquals(500 * 10000L, estimator.estimate(tiles).bytes)
+        Assert.assertEquals(0, fetchCount)
+    }
+
+    @Test
+    fun unknownLevelIsLikeTheNearestOne() {
+        val samples = TileSizeSamples(File(dir, "sizes"))
+        val estimator = TileSizeEstimator(samples, "source|layer", { tile ->
+            if (tile.level == 15) null else 20000L
+        })
+
+        val estimate = estimator.estimate(tiles)
+        Assert.assertEquals(500 * 20000L, estimate.bytes)
+        Assert.assertEquals(6, estimate.sampleCount)
+    }
+
+    @Test
+    fun levelsAreFetchedOnce() {
+        val samples = TileSizeSamples(File(dir, "sizes"))
+        var fetchCount = 0
+        val estimator = TileSizeEstimator(samples, "source|layer", {
+            fetchCount++
+            null
+        }, defaultTileSize = 30000L)
+
+        /* Offline: the first tile of each level fails, then the average size is used */
+        Assert.assertEquals(500 * 30000L, estimator.estimate(tiles).bytes)
+        Assert.assertEquals(2, fetchCount)
+
+        /* The same levels again, e.g after the area changed */
+        estimator.estimate(tiles)
+        Assert.assertEquals(2, fetchCount)
+    }
+}
@@ -0,0 +1,123 @@
+package com.peterlaurence.trekme.core.download
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import com.peterlaurence.trekme.core.mapsource.wmts.Tile
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class TileStoreTest {
+    private lateinit var dir: File
+    private val tile = Tile(17, 45000, 66000, 2, 10, 12)
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("tilestore").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    private fun linkCount(file: File): Int = Files.getAttribute(file.toPath(), "unix:nlink") as Int
+
+    private fun link(src: File, dst: File): Boolean {
+        Files.createLink(dst.toPath(), src.toPath())
+        return true
+    }
+
+    @Test
+    fun addAndCopyWithHardLinks() {
+        val store = TileStore(File(dir, "store"), MapSource.IGN, "GEOGRAPHICALGRIDSYSTEMS.MAPS",
+                linkCount = ::linkCount, hardLink = ::link)
+        val tileFile = File(dir, "map1/2/10/12.jpg")
+        tileFile.parentFile.mkdirs()
+        tileFile.writeText("tile")
+
+        Assert.assertNull(store.find(tile))
+        store.add(tile, tileFile)
+        Assert.assertNotNull(store.find(tile))
+
+        val otherTileFile = File(dir, "map2/0/3/4.jpg")
+        Assert.assertTrue(store.copyTo(tile, otherTileFile))
+        Assert.assertEquals("tile", otherTileFile.readText())
+        Assert.assertEquals(3, Files.getAttribute(otherTileFile.toPath(), "unix:nlink"))
+    }
+
+    @Test
+    fun copyWhenHardLinksAreNotSupported() {
+        val store = TileStore(File(dir, "store"), MapSource.OPEN_STREET_MAP, "", linkCount = ::linkCount) { _, _ -> false }
+        store.add(tile, "tile".toByteArray())
+
+        val tileFile = File(dir, "map/2/10/12.png")
+        Assert.assertTrue(store.copyTo(tile, tileFile))
+        Assert.assertEquals("tile", tileFile.readText())
+    }
+
+    @Test
+    fun layersAreSeparated() {
+        val store1 = TileStore(dir, MapSource.IGN, "layer/1", linkCount = ::linkCount) { _, _ -> false }
+        val store2 = TileStore(dir, MapSource.IGN, "layer 2", linkCount = ::linkCount) { _, _ -> false }
+        store1.add(tile, "tile".toByteArray())
+
+        Assert.assertNull(store2.find(tile))
+        Assert.assertFalse(store2.copyTo(tile, File(dir, "map/2/10/12.jpg")))
+    }
+
+    @Test
+    fun leastRecentlyUsedTilesAreRemovedOverTheLimit() {
+        val store = TileStore(dir, MapSource.IGN, "layer", 10, ::linkCount) { _, _ -> false }
+        val tile2 = Tile(17, 45000, 66001, 2, 10, 13)
+        val tile3 = Tile(17, 45001, 66000, 2, 11, 12)
+        store.add(tile, "tile".toByteArray())
+        store.add(tile2, "tile".toByteArray())
+        TileStore.awaitTrims()
+        store.find(tile)!!.setLastModified(2000)
+        store.find(tile2)!!.setLastModified(1000)
+        Assert.assertEquals(8, TileStore.getSize(dir))
+
+        /* Over the limit, the least recently used tile is removed */
+        store.add(tile3, "tile".toByteArray())
+        TileStore.awaitTrims()
+        Assert.assertNull(store.find(tile2))
+        Assert.assertNotNull(store.find(tile))
+        Assert.assertNotNull(store.find(tile3))
+        Assert.assertEquals(8, TileStore.getSize(dir))
+    }
+
+    @Test
+    fun linkedTilesAreNotCountedNorRemoved() {
+        val store = TileStore(dir, MapSource.IGN, "layer", 10, ::linkCount, ::link)
+        val tile2 = Tile(17, 45000, 66001, 2, 10, 13)
+        val tile3 = Tile(17, 45001, 66000, 2, 11, 12)
+        val mapTileFile = File(dir.parentFile, "${dir.name}-map/2/10/12.jpg")
+        mapTileFile.parentFile.mkdirs()
+        mapTileFile.writeText("tile")
+        try {
+            store.add(tile, mapTileFile)
+            store.add(tile2, "tile".toByteArray())
+            TileStore.awaitTrims()
+            mapTileFile.setLastModified(1000)
+            store.find(tile2)!!.setLastModified(2000)
+            Assert.assertEquals(4, TileStore.getSize(dir))
+
+            /* Using the linked tile doesn't change the tile of the map */
+            Assert.assertNotNull(store.find(tile))
+            Assert.assertEquals(1000, mapTileFile.lastModified())
+
+            /* Over the limit, only the tile the store alone holds is removed */
+            store.add(tile3, "tile333".toByteArray())
+            TileStore.awaitTrims()
+            Assert.assertNotNull(store.find(tile))
+            Assert.assertNull(store.find(tile2))
+            Assert.assertNotNull(store.find(tile3))
+            Assert.assertEquals(7, TileStore.getSize(dir))
+        } finally {
+            mapTileFile.parentFile.parentFile.parentFile.deleteRecursively()
+        }
+    }
+}
@@ -59,7 +59,7 @@ public class MapImporterTest {
                         assertEquals(4, map.getMapGson().levels.size());
                         assertEquals(100, map.getMapGson().levels.get(0).tile_size.x);
                         assertEquals(".jpg", map.getImageExtension());
-                        assertNull(map.getImage());
+                        assertNull(map.getImageFile());
                     }
 
                     @Override
@@ -0,0 +1,27 @@
+package com.peterlaurence.trekme.core.map
+
+import org.junit.Assert
+import org.junit.Test
+
+class MapOverviewTest {
+    @Test
+    fun deepestLevelWhichFits() {
+        /* Levels are 512, 1024, 2048, 4096 and 8192 px wide */
+        Assert.assertEquals(1, MapOverview.chooseLevel(5, 8192, 6000))
+
+        /* The whole map fits */
+        Assert.assertEquals(2, MapOverview.chooseLevel(3, 800, 600))
+
+        /* Even the first level is too big */
+        Assert.assertEquals(0, MapOverview.chooseLevel(2, 8192, 8192))
+
+        Assert.assertEquals(-1, MapOverview.chooseLevel(0, 8192, 8192))
+    }
+
+    @Test
+    fun overviewIsDownsampled() {
+        Assert.assertEquals(1, MapOverview.computeSampleSize(1024, 700))
+        Assert.assertEquals(2, MapOverview.computeSampleSize(1500, 2048))
+        Assert.assertEquals(4, MapOverview.computeSampleSize(4000, 100))
+    }
+}
@@ -0,0 +1,14 @@
+package com.peterlaurence.trekme.core.map
+
+import org.junit.Assert
+import org.junit.Test
+
+class MapViewportTest {
+    @Test
+    fun viewportIsSerialized() {
+        val viewport = MapViewport(0.25f, 0.5f, 0.125f)
+        Assert.assertEquals(viewport, MapViewport.parse(viewport.serialize()))
+        Assert.assertNull(MapViewport.parse("0.25;0.5"))
+        Assert.assertNull(MapViewport.parse("0.25;a;0.125"))
+    }
+}
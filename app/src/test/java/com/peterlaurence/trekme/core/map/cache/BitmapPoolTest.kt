@@ -0,0 +1,70 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import android.graphics.Bitmap
+import com.peterlaurence.trekme.BuildConfig
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class BitmapPoolTest {
+    private val config = Bitmap.Config.RGB_565
+
+    @Before
+    fun init() {
+        TileBitmapCache.evictAll()
+        TileBitmapCache.pool.clear()
+    }
+
+    @Test
+    fun onlyBigEnoughBitmapsAreTaken() {
+        val pool = BitmapPool(1_000_000)
+        val small = Bitmap.createBitmap(128, 128, config)
+        val other = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888)
+        pool.put(small)
+        pool.put(other)
+
+        assertNull(pool.get(256, 256, config))
+        assertSame(small, pool.get(100, 128, config))
+        assertEquals(other.allocationByteCount.toLong(), pool.size)
+    }
+
+    @Test
+    fun poolIsBounded() {
+        val first = Bitmap.createBitmap(256, 256, config)
+        val pool = BitmapPool(first.allocationByteCount.toLong())
+
+        /* An immutable bitmap can't be decoded into */
+        pool.put(first.copy(config, false))
+        pool.put(first)
+        pool.put(Bitmap.createBitmap(256, 256, config))
+
+        assertSame(first, pool.get(256, 256, config))
+        assertNull(pool.get(256, 256, config))
+    }
+
+    @Test
+    fun sizeMismatchFallsBackToAllocation() {
+        val pool = TileBitmapCache.pool
+        val pooled = Bitmap.createBitmap(256, 256, config)
+        pool.put(pooled)
+        val allocations = pool.allocationCount
+        val reuses = pool.reuseCount
+
+        /* The image turns out bigger than the tiles of its level */
+        val bitmap = TileDecoder.decode(256, 256) { options ->
+            if (options.inBitmap != null) throw IllegalArgumentException("Problem decoding into existing bitmap")
+            Bitmap.createBitmap(512, 512, config)
+        }
+
+        assertNotNull(bitmap)
+        assertNotSame(pooled, bitmap)
+        assertEquals(allocations + 1, pool.allocationCount)
+        assertEquals(reuses, pool.reuseCount)
+        assertSame(pooled, pool.get(256, 256, config))
+    }
+}
@@ -0,0 +1,81 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import org.junit.Assert
+import org.junit.Test
+
+class SizedLruCacheTest {
+    @Test
+    fun leastRecentlyUsedIsEvicted() {
+        val evicted = mutableListOf<String>()
+        val cache = SizedLruCache<String, ByteArray>(100, { it.size.toLong() }, { key, _ -> evicted.add(key) })
+        cache.put("a", ByteArray(40))
+        cache.put("b", ByteArray(40))
+
+        /* "a" becomes the most recently used */
+        Assert.assertNotNull(cache.get("a"))
+        cache.put("c", ByteArray(40))
+
+        Assert.assertEquals(listOf("b"), evicted)
+        Assert.assertNull(cache.get("b"))
+        Assert.assertEquals(80, cache.size)
+        Assert.assertEquals(1, cache.hitCount)
+        Assert.assertEquals(1, cache.missCount)
+        Assert.assertEquals(1, cache.evictionCount)
+    }
+
+    @Test
+    fun replaceAndTrim() {
+        val cache = SizedLruCache<String, ByteArray>(100, { it.size.toLong() })
+        cache.put("a", ByteArray(40))
+        cache.put("a", ByteArray(10))
+        Assert.assertEquals(10, cache.size)
+
+        /* Too big to be kept */
+        cache.put("b", ByteArray(101))
+        Assert.assertNull(cache.get("b"))
+
+        cache.put("c", ByteArray(50))
+        cache.resize(50)
+        Assert.assertNull(cache.get("a"))
+        Assert.assertNotNull(cache.get("c"))
+
+        cache.evictAll()
+        Assert.assertEquals(0, cache.size)
+        Assert.assertEquals(2, cache.evictionCount)
+    }
+
+    @Test
+    fun replacedAndRemovedValuesAreNotified() {
+        val removed = mutableListOf<ByteArray>()
+        val cache = SizedLruCache<String, ByteArray>(100, { it.size.toLong() }, { _, value -> removed.add(value) })
+        val first = ByteArray(10)
+        val second = ByteArray(20)
+        cache.put("a", first)
+
+        /* Putting the same value again isn't a removal */
+        cache.put("a", first)
+        Assert.assertTrue(removed.isEmpty())
+
+        cache.put("a", second)
+        Assert.assertSame(first, removed.single())
+
+        cache.remove("a")
+        Assert.assertSame(second, removed.last())
+        Assert.assertEquals(0, cache.size)
+        Assert.assertEquals(0, cache.evictionCount)
+    }
+
+    @Test
+    fun removeMatchingKeys() {
+        val removed = mutableListOf<String>()
+        val cache = SizedLruCache<String, ByteArray>(100, { it.size.toLong() }, { key, _ -> removed.add(key) })
+        cache.put("a1", ByteArray(10))
+        cache.put("b1", ByteArray(20))
+        cache.put("a2", ByteArray(30))
+
+        cache.removeAll { it.startsWith("a") }
+        Assert.assertEquals(listOf("a1", "a2"), removed)
+        Assert.assertEquals(20, cache.size)
+        Assert.assertNotNull(cache.get("b1"))
+    }
+}
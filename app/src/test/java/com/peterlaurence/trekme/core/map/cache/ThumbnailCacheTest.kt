@@ -0,0 +1,16 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import org.junit.Assert
+import org.junit.Test
+
+class ThumbnailCacheTest {
+    @Test
+    fun thumbnailIsNotSmallerThanTheView() {
+        Assert.assertEquals(1, ThumbnailCache.computeSampleSize(256, 256, 252))
+        Assert.assertEquals(2, ThumbnailCache.computeSampleSize(256, 256, 126))
+        Assert.assertEquals(4, ThumbnailCache.computeSampleSize(1024, 600, 252))
+
+        /* The size of the view isn't known */
+        Assert.assertEquals(1, ThumbnailCache.computeSampleSize(1024, 600, 0))
+    }
+}
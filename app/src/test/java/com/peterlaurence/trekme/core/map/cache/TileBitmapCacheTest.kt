@@ -0,0 +1,106 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import android.graphics.Bitmap
+import com.peterlaurence.trekme.BuildConfig
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class TileBitmapCacheTest {
+    private val pool = TileBitmapCache.pool
+    private val recycler = TileBitmapCache.bitmapRecycler
+
+    @Before
+    fun init() {
+        TileBitmapCache.evictAll()
+        pool.clear()
+    }
+
+    @Test
+    fun evictedWhileDisplayed() {
+        val bitmap = makeBitmap()
+        TileBitmapCache.put(1, 0, 0, 0, bitmap)
+
+        /* Out of the cache, but still on screen: it can't be reused yet */
+        TileBitmapCache.evictAll()
+        assertTrue(TileBitmapCache.isDisplayed(bitmap))
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+
+        recycler.recycleBitmap(bitmap)
+        assertFalse(TileBitmapCache.isDisplayed(bitmap))
+        assertSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+    }
+
+    @Test
+    fun releasedWhileCached() {
+        val bitmap = makeBitmap()
+        TileBitmapCache.put(2, 0, 0, 0, bitmap)
+
+        /* Off screen, but still in the cache */
+        recycler.recycleBitmap(bitmap)
+        assertFalse(TileBitmapCache.isDisplayed(bitmap))
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+        assertTrue(TileBitmapCache.contains(2, 0, 0, 0))
+
+        TileBitmapCache.evictAll()
+        assertSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+    }
+
+    @Test
+    fun releasedTwice() {
+        val bitmap = makeBitmap()
+        TileBitmapCache.put(3, 0, 0, 0, bitmap)
+        recycler.recycleBitmap(bitmap)
+        recycler.recycleBitmap(bitmap)
+
+        /* Displayed again: the second release mustn't make it look off screen */
+        assertSame(bitmap, TileBitmapCache.get(3, 0, 0, 0))
+        assertTrue(TileBitmapCache.isDisplayed(bitmap))
+        TileBitmapCache.evictAll()
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+
+        /* Once out of the cache, it's pooled only once */
+        recycler.recycleBitmap(bitmap)
+        recycler.recycleBitmap(bitmap)
+        assertSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+        assertNull(pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+    }
+
+    @Test
+    fun prefetchedTileIsNotDisplayed() {
+        val bitmap = makeBitmap()
+        TileBitmapCache.put(4, 0, 0, 0, bitmap, false)
+        assertFalse(TileBitmapCache.isDisplayed(bitmap))
+
+        TileBitmapCache.evictAll()
+        assertSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+    }
+
+    @Test
+    fun reusedBitmapIsAnotherGeneration() {
+        val bitmap = makeBitmap()
+        val generation = TileBitmapCache.putDisplayed(bitmap)
+        recycler.recycleBitmap(bitmap)
+
+        /* Taken from the pool, and given out again */
+        assertSame(bitmap, pool.get(TILE_SIZE, TILE_SIZE, CONFIG))
+        val newGeneration = TileBitmapCache.putDisplayed(bitmap)
+        assertTrue(TileBitmapCache.isDisplayed(bitmap))
+        assertFalse(TileBitmapCache.isDisplayed(bitmap, generation))
+        assertFalse(TileBitmapCache.ifDisplayed(bitmap, generation) { fail() })
+        assertTrue(TileBitmapCache.ifDisplayed(bitmap, newGeneration) {})
+        recycler.recycleBitmap(bitmap)
+    }
+
+    private fun makeBitmap() = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, CONFIG)
+
+    companion object {
+        private const val TILE_SIZE = 256
+        private val CONFIG = Bitmap.Config.RGB_565
+    }
+}
@@ -0,0 +1,68 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import com.peterlaurence.trekme.core.map.cache.TilePrefetcher.TileRange
+import com.peterlaurence.trekme.core.metrics.Metrics
+import org.junit.After
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class TileDecodeSchedulerTest {
+    private val scheduler = TileDecodeScheduler(1)
+
+    @After
+    fun tearDown() {
+        scheduler.shutdown()
+    }
+
+    @Test
+    fun closestTilesOfTheFirstTargetFirst() {
+        scheduler.setTargets(listOf(TileRange(2, 0, 4, 0, 4), TileRange(3, 0, 9, 0, 9)))
+        val order = mutableListOf<String>()
+        val done = CountDownLatch(4)
+        val waitCount = Metrics.decodeWait.count
+
+        /* The thread is kept busy while the other requests are queued */
+        val blocker = CountDownLatch(1)
+        scheduler.submit(2, 0, 0, this) { blocker.await() }
+        for ((level, row, col) in listOf(Triple(3, 4, 4), Triple(2, 0, 4), Triple(2, 2, 2), Triple(2, 1, 2))) {
+            Assert.assertTrue(scheduler.submit(level, row, col, this) {
+                order.add("$level/$row/$col")
+                done.countDown()
+            })
+        }
+        blocker.countDown()
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS))
+        Assert.assertEquals(listOf("2/2/2", "2/1/2", "2/0/4", "3/4/4"), order)
+        Assert.assertEquals(waitCount + 5, Metrics.decodeWait.count)
+    }
+
+    @Test
+    fun untargetedTilesAreDropped() {
+        val droppedCount = Metrics.decodeDropped.count
+        val blocker = CountDownLatch(1)
+        scheduler.submit(0, 0, 0, this) { blocker.await() }
+        Assert.assertTrue(scheduler.submit(2, 1, 1, this) {})
+        Assert.assertTrue(scheduler.submit(2, 7, 7, this) {})
+
+        scheduler.setTargets(listOf(TileRange(2, 0, 4, 0, 4)))
+        Assert.assertFalse(scheduler.submit(2, 8, 8, this) {})
+        Assert.assertEquals(1, scheduler.queueDepth)
+        Assert.assertEquals(droppedCount + 1, Metrics.decodeDropped.count)
+        blocker.countDown()
+    }
+
+    @Test
+    fun sameRequestIsQueuedOnce() {
+        val blocker = CountDownLatch(1)
+        scheduler.submit(0, 0, 0, this) { blocker.await() }
+        scheduler.submit(2, 1, 1, this) {}
+        scheduler.submit(2, 1, 1, this) {}
+        scheduler.submit(2, 1, 1, "other") {}
+
+        Assert.assertEquals(2, scheduler.queueDepth)
+        blocker.countDown()
+    }
+}
@@ -0,0 +1,58 @@
+package com.peterlaurence.trekme.core.map.cache
+
+import android.content.Context
+import android.graphics.Bitmap
+import com.peterlaurence.trekme.core.map.cache.TilePrefetcher.TileRange
+import com.peterlaurence.trekme.model.providers.bitmap.PrefetchableBitmapProvider
+import com.qozix.tileview.tiles.Tile
+import org.junit.After
+import org.junit.Assert
+import org.junit.Test
+
+class TilePrefetcherTest {
+    private val provider = object : PrefetchableBitmapProvider {
+        override fun getBitmap(tile: Tile?, context: Context?): Bitmap? = null
+        override fun prefetch(level: Int, row: Int, col: Int) {}
+        override fun release() {}
+    }
+
+    /* A map of 4096x2048 px at scale 1, with three levels of 256px tiles */
+    private val prefetcher = TilePrefetcher(provider, TileDecodeScheduler(1), 4096, 2048).apply {
+        addDetailLevel(1f, 2, 256, 256)
+        addDetailLevel(0.25f, 0, 256, 256)
+        addDetailLevel(0.5f, 1, 256, 256)
+    }
+
+    @After
+    fun tearDown() {
+        prefetcher.shutdown()
+    }
+
+    @Test
+    fun currentAndDeeperLevel() {
+        /* At scale 0.5, a viewport of 512x256 px at (256, 256). Once zoomed in, half of it is seen */
+        val ranges = prefetcher.computeRanges(256, 256, 768, 512, 0.5f, true)
+        Assert.assertEquals(listOf(
+                TileRange(1, 1, 1, 1, 2),
+                TileRange(2, 2, 3, 3, 4)), ranges)
+    }
+
+    @Test
+    fun coarserLevelAndClamping() {
+        /* Partly outside of the map, which is 1024x512 px at scale 0.25 */
+        val ranges = prefetcher.computeRanges(768, 256, 1280, 768, 0.25f, false)
+        Assert.assertEquals(listOf(TileRange(0, 1, 1, 3, 3)), ranges)
+
+        /* Between two levels, the current one is the deeper one */
+        val between = prefetcher.computeRanges(0, 0, 300, 300, 0.3f, false)
+        Assert.assertEquals(TileRange(1, 0, 1, 0, 1), between[0])
+        Assert.assertEquals(0, between[1].level)
+    }
+
+    @Test
+    fun visibleRangeHasAMargin() {
+        /* At scale 0.5, tiles 1..2 x 1 are visible, and one more tile around them */
+        val range = prefetcher.computeVisibleRange(256, 256, 768, 512, 0.5f)
+        Assert.assertEquals(TileRange(1, 0, 2, 0, 3), range)
+    }
+}
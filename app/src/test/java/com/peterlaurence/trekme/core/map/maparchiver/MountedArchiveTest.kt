@@ -0,0 +1,81 @@
+package com.peterlaurence.trekme.core.map.maparchiver
+
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+class MountedArchiveTest {
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("archive").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun readTilesAndEntries() {
+        val tile = ByteArray(3000) { (it % 7).toByte() }
+        val storedTile = ByteArray(500) { it.toByte() }
+        val archiveFile = File(dir, "map.zip")
+        ZipOutputStream(FileOutputStream(archiveFile)).use { zos ->
+            zos.putEntry("mymap/map.json", "{}".toByteArray())
+            zos.putEntry("mymap/0/", ByteArray(0))
+            zos.putEntry("mymap/0/0/1.jpg", tile)
+            zos.putEntry("mymap/1/2/3.jpg", storedTile, stored = true)
+            zos.putEntry("mymap/thumbnail.jpg", ByteArray(10))
+            zos.putEntry("other/2/0/0.jpg", tile)
+        }
+
+        MountedArchive.open(archiveFile).use { archive ->
+            Assert.assertEquals(2, archive.tileCount)
+            Assert.assertArrayEquals(tile, archive.readTile(0, 0, 1))
+            Assert.assertArrayEquals(storedTile, archive.readTile(1, 2, 3))
+            Assert.assertNull(archive.readTile(2, 0, 0))
+
+            Assert.assertEquals(setOf("map.json", "thumbnail.jpg"), archive.entryNames)
+            Assert.assertEquals("{}", String(archive.readEntry("map.json")!!))
+        }
+    }
+
+    @Test(expected = IOException::class)
+    fun archiveWithoutMap() {
+        val archiveFile = File(dir, "tiles.zip")
+        ZipOutputStream(FileOutputStream(archiveFile)).use { zos ->
+            zos.putEntry("0/0/0.jpg", ByteArray(10))
+        }
+        MountedArchive.open(archiveFile)
+    }
+
+    @Test
+    fun tileNames() {
+        Assert.assertNotNull(MountedArchive.parseTileKey("12/3/45.png"))
+        Assert.assertNull(MountedArchive.parseTileKey("12/3/45"))
+        Assert.assertNull(MountedArchive.parseTileKey("12/a/45.jpg"))
+        Assert.assertNull(MountedArchive.parseTileKey("3/45.jpg"))
+    }
+
+    private fun ZipOutputStream.putEntry(name: String, bytes: ByteArray, stored: Boolean = false) {
+        val entry = ZipEntry(name)
+        if (stored) {
+            entry.method = ZipEntry.STORED
+            entry.size = bytes.size.toLong()
+            entry.crc = CRC32().apply { update(bytes) }.value
+        }
+        putNextEntry(entry)
+        write(bytes)
+        closeEntry()
+    }
+}
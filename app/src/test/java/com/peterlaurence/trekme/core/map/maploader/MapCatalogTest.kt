@@ -0,0 +1,91 @@
+package com.peterlaurence.trekme.core.map.maploader
+
+import com.google.gson.Gson
+import com.peterlaurence.trekme.core.map.gson.MapGson
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class MapCatalogTest {
+    private lateinit var dir: File
+    private lateinit var catalogFile: File
+    private val gson = Gson()
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("mapcatalog").toFile()
+        catalogFile = File(dir, ".map_catalog.json")
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun changedJsonFileIsNotUpToDate() {
+        val configFile = writeMap("map1", "First map")
+        val catalog = MapCatalog(catalogFile, gson)
+        Assert.assertFalse(catalog.isUpToDate(configFile))
+
+        catalog.put(configFile, makeMapGson("First map"))
+        Assert.assertTrue(catalog.isUpToDate(configFile))
+
+        configFile.appendText(" ")
+        Assert.assertFalse(catalog.isUpToDate(configFile))
+    }
+
+    @Test
+    fun catalogIsReloaded() {
+        val configFile1 = writeMap("map1", "First map")
+        val configFile2 = writeMap("map2", "Second map")
+        val catalog = MapCatalog(catalogFile, gson)
+        catalog.put(configFile1, makeMapGson("First map"))
+        catalog.put(configFile2, makeMapGson("Second map"))
+        catalog.save()
+        waitForFile()
+
+        val reloaded = MapCatalog(catalogFile, gson)
+        val maps = reloaded.getAll(dir)
+        Assert.assertEquals(listOf(configFile1, configFile2), maps.keys.toList())
+        Assert.assertEquals("Second map", maps[configFile2]?.name)
+        Assert.assertTrue(reloaded.isUpToDate(configFile1))
+
+        /* Only the entries of the given directory are returned */
+        Assert.assertEquals(listOf(configFile1), reloaded.getAll(configFile1.parentFile).keys.toList())
+    }
+
+    @Test
+    fun missingMapsAreRemoved() {
+        val configFile1 = writeMap("map1", "First map")
+        val configFile2 = writeMap("map2", "Second map")
+        val catalog = MapCatalog(catalogFile, gson)
+        catalog.put(configFile1, makeMapGson("First map"))
+        catalog.put(configFile2, makeMapGson("Second map"))
+
+        catalog.retain(arrayOf(dir), setOf(configFile2))
+        Assert.assertEquals(listOf(configFile2), catalog.getAll(dir).keys.toList())
+    }
+
+    private fun writeMap(dirName: String, name: String): File {
+        val mapDir = File(dir, dirName).apply { mkdirs() }
+        return File(mapDir, MapLoader.MAP_FILE_NAME).apply {
+            writeText(gson.toJson(makeMapGson(name)))
+        }
+    }
+
+    private fun makeMapGson(name: String): MapGson {
+        return MapGson().apply { this.name = name }
+    }
+
+    /* The catalog is written in background */
+    private fun waitForFile() {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!catalogFile.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.peterlaurence.trekme.core.map.maploader
+
+import com.peterlaurence.trekme.core.map.Map
+import com.peterlaurence.trekme.core.map.gson.MapGson
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+
+class MapRepositoryTest {
+    private val repository = MapRepository()
+
+    @Test
+    fun mapsAreIndexed() {
+        val first = makeMap("a", "First map")
+        val second = makeMap("b", "Second map")
+        repository.update(transform { it.addAll(listOf(first, second)) })
+
+        Assert.assertSame(second, repository.getMap(second.id))
+        Assert.assertSame(first, repository.getMap("FIRST MAP"))
+        Assert.assertNull(repository.getMap("Third map"))
+
+        repository.update(transform { it.remove(first) })
+        Assert.assertNull(repository.getMap(first.id))
+        Assert.assertEquals(listOf(second), repository.maps)
+    }
+
+    @Test
+    fun listenersAreToldOfChangedRows() {
+        val first = makeMap("a", "First map")
+        val second = makeMap("b", "Second map")
+        repository.update(transform { it.addAll(listOf(first, second)) })
+
+        val received = mutableListOf<MapListChange>()
+        repository.addListener(object : MapRepository.MapListListener {
+            override fun onMapListChanged(maps: List<Map>, changes: List<MapListChange>) {
+                received.addAll(changes)
+            }
+        })
+
+        /* The same instances: nothing changed */
+        repository.update(transform { })
+        Assert.assertTrue(received.isEmpty())
+
+        /* Another instance for the same json file */
+        val secondReloaded = makeMap("b", "Second map")
+        repository.update(transform { it[1] = secondReloaded })
+        Assert.assertEquals(listOf(MapListChange(MapListChange.Type.CHANGED, 1)), received)
+    }
+
+    @Test
+    fun renamedMapIsFoundByItsNewName() {
+        val first = makeMap("a", "First map")
+        val second = makeMap("b", "Second map")
+        repository.update(transform { it.addAll(listOf(first, second)) })
+
+        val received = mutableListOf<MapListChange>()
+        repository.addListener(object : MapRepository.MapListListener {
+            override fun onMapListChanged(maps: List<Map>, changes: List<MapListChange>) {
+                received.addAll(changes)
+            }
+        })
+
+        repository.rename(second, "Renamed map")
+        Assert.assertSame(second, repository.getMap("renamed map"))
+        Assert.assertNull(repository.getMap("Second map"))
+        Assert.assertSame(first, repository.getMap("First map"))
+        Assert.assertEquals(listOf(MapListChange(MapListChange.Type.CHANGED, 1)), received)
+    }
+
+    @Test
+    fun diffTurnsTheOldListIntoTheNewOne() {
+        val a = makeMap("a")
+        val b = makeMap("b")
+        val c = makeMap("c")
+        val d = makeMap("d")
+        val bReloaded = makeMap("b")
+
+        checkDiff(listOf(), listOf(a, b))
+        checkDiff(listOf(a, b, c), listOf(a, c))
+        checkDiff(listOf(a, b, c), listOf(d, a, bReloaded, c))
+        checkDiff(listOf(a, b, c), listOf(c, a, b))
+        checkDiff(listOf(a, b, c, d), listOf(d, bReloaded))
+        checkDiff(listOf(a, b), listOf())
+    }
+
+    private fun checkDiff(oldMaps: List<Map>, newMaps: List<Map>) {
+        val rows = oldMaps.toMutableList()
+        for (change in repository.diff(oldMaps, newMaps)) {
+            when (change.type) {
+                MapListChange.Type.INSERTED -> rows.add(change.position, newMaps[change.position])
+                MapListChange.Type.REMOVED -> rows.removeAt(change.position)
+                MapListChange.Type.CHANGED -> rows[change.position] = newMaps[change.position]
+            }
+        }
+        Assert.assertEquals(newMaps.map { it.configFile }, rows.map { it.configFile })
+        for (i in rows.indices) Assert.assertSame(newMaps[i], rows[i])
+    }
+
+    private fun makeMap(dirName: String, name: String = dirName): Map {
+        val mapGson = MapGson()
+        mapGson.name = name
+        return Map(mapGson, File(File("maps", dirName), MapLoader.MAP_FILE_NAME), null)
+    }
+
+    private fun transform(block: (MutableList<Map>) -> Unit) = object : MapRepository.MapListTransform {
+        override fun apply(maps: MutableList<Map>) = block(maps)
+    }
+}
@@ -0,0 +1,76 @@
+package com.peterlaurence.trekme.core.map.maploader
+
+import com.peterlaurence.trekme.core.download.DownloadJournal
+import com.peterlaurence.trekme.util.UnzipTask
+import org.junit.Assert
+import org.junit.Test
+import java.io.File
+
+class MapWatcherTest {
+    private val mapDir = File(File("maps"), "map1")
+    private val otherMapDir = File(File("maps"), "map2")
+
+    @Test
+    fun pollsReportTheJsonFilesWhichChanged() {
+        val configFile = File(mapDir, MapLoader.MAP_FILE_NAME).path
+        val markerFile = File(mapDir, MapLoader.MAP_MARKER_FILE_NAME).path
+        val otherConfigFile = File(otherMapDir, MapLoader.MAP_FILE_NAME).path
+
+        val previous = mapOf(configFile to MapWatcher.FileStamp(1, 100),
+                markerFile to MapWatcher.FileStamp(1, 10))
+        val current = mapOf(configFile to MapWatcher.FileStamp(1, 100),
+                markerFile to MapWatcher.FileStamp(2, 12),
+                otherConfigFile to MapWatcher.FileStamp(1, 80))
+
+        val changes = MapWatcher.diffPolls(previous, current)
+        Assert.assertEquals(setOf(MapLoader.MAP_MARKER_FILE_NAME), changes[mapDir])
+        Assert.assertEquals(setOf(MapLoader.MAP_FILE_NAME), changes[otherMapDir])
+
+        /* A map removed */
+        val removed = MapWatcher.diffPolls(current, mapOf(configFile to MapWatcher.FileStamp(1, 100)))
+        Assert.assertEquals(setOf(mapDir, otherMapDir), removed.keys)
+    }
+
+    @Test
+    fun directoriesUnderAnotherOneAreDropped() {
+        val parent = File("maps")
+        val changes = mapOf(parent to emptySet(),
+                mapDir to setOf(MapLoader.MAP_FILE_NAME),
+                File("maps2") to setOf(MapLoader.MAP_ROUTE_FILE_NAME))
+
+        val pruned = MapWatcher.prune(changes)
+        Assert.assertEquals(setOf(parent, File("maps2")), pruned.keys)
+    }
+
+    @Test
+    fun tileDirectoriesAndDirectoriesBeingWrittenAreNotSearched() {
+        val root = createTempDir()
+        try {
+            val map = makeDir(root, "map1")
+            File(map, MapLoader.MAP_FILE_NAME).writeText("{}")
+            makeDir(map, "0/0")
+            val download = makeDir(root, "download")
+            File(download, DownloadJournal.FILE_NAME).writeText("")
+            makeDir(download, "12/2048")
+            val extraction = makeDir(root, "archive")
+            File(extraction, UnzipTask.IN_PROGRESS_FILE_NAME).writeText("")
+            File(makeDir(extraction, "map2"), MapLoader.MAP_FILE_NAME).writeText("{}")
+            val group = makeDir(root, "group")
+            File(makeDir(group, "map3"), MapLoader.MAP_FILE_NAME).writeText("{}")
+            makeDir(group, "map3/1/1")
+            makeDir(root, ".tiles/osm")
+
+            /* The root, map1, download, archive, group and map3 */
+            val files = HashMap<String, MapWatcher.FileStamp>()
+            Assert.assertEquals(6, MapWatcher.findJsonFiles(root, 1, files))
+            Assert.assertEquals(setOf(File(map, MapLoader.MAP_FILE_NAME).path,
+                    File(File(group, "map3"), MapLoader.MAP_FILE_NAME).path), files.keys)
+        } finally {
+            root.deleteRecursively()
+        }
+    }
+
+    private fun makeDir(parent: File, path: String): File {
+        return File(parent, path).apply { mkdirs() }
+    }
+}
@@ -0,0 +1,92 @@
+package com.peterlaurence.trekme.core.map.tilepack
+
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.file.Files
+
+class TilePackTest {
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("tilepack").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun writeAndRead() {
+        val writer = TilePackWriter.open(dir)
+        for (row in 0 until 3) {
+            for (col in 0 until 4) {
+                Assert.assertTrue(writer.write(1, row, col, tileBytes(1, row, col)))
+            }
+        }
+        Assert.assertTrue(writer.write(0, 0, 0, tileBytes(0, 0, 0)))
+        Assert.assertArrayEquals(tileBytes(1, 1, 2), writer.read(1, 1, 2))
+        Assert.assertNull(writer.read(1, 5, 0))
+        writer.close()
+
+        TilePackReader.open(dir).use { reader ->
+            Assert.assertEquals(13, reader.tileCount)
+            Assert.assertArrayEquals(tileBytes(1, 2, 3), reader.readTile(1, 2, 3))
+            Assert.assertArrayEquals(tileBytes(0, 0, 0), reader.readTile(0, 0, 0))
+            Assert.assertNull(reader.readTile(1, 3, 0))
+            Assert.assertNull(reader.readTile(2, 0, 0))
+
+            Assert.assertEquals(listOf(TilePackLevel(0, 1, 1), TilePackLevel(1, 3, 4)), reader.getLevels())
+        }
+    }
+
+    @Test
+    fun resumeAfterInterruption() {
+        /* The writer isn't closed, so there is no index, and the last record is truncated */
+        val writer = TilePackWriter.open(dir)
+        writer.write(2, 5, 7, tileBytes(2, 5, 7))
+        writer.write(2, 5, 8, tileBytes(2, 5, 8))
+        val dataFile = File(dir, TilePack.DATA_FILE_NAME)
+        RandomAccessFile(dataFile, "rw").use { it.setLength(it.length() - 3) }
+
+        val resumedWriter = TilePackWriter.open(dir)
+        Assert.assertTrue(resumedWriter.contains(2, 5, 7))
+        Assert.assertFalse(resumedWriter.contains(2, 5, 8))
+        resumedWriter.write(2, 5, 8, tileBytes(2, 5, 8))
+        resumedWriter.close()
+
+        TilePackReader.open(dir).use { reader ->
+            Assert.assertArrayEquals(tileBytes(2, 5, 7), reader.readTile(2, 5, 7))
+            Assert.assertArrayEquals(tileBytes(2, 5, 8), reader.readTile(2, 5, 8))
+        }
+    }
+
+    @Test
+    fun convertFolders() {
+        for (row in 0 until 2) {
+            val rowDir = File(dir, "3${File.separator}$row")
+            rowDir.mkdirs()
+            for (col in 0 until 2) {
+                File(rowDir, "$col.jpg").writeBytes(tileBytes(3, row, col))
+            }
+        }
+
+        Assert.assertTrue(TilePackConverter.convert(dir, ".jpg"))
+        TilePackConverter.deleteTileFolders(dir)
+        Assert.assertFalse(File(dir, "3").exists())
+
+        TilePackReader.open(dir).use { reader ->
+            Assert.assertEquals(4, reader.tileCount)
+            Assert.assertArrayEquals(tileBytes(3, 1, 0), reader.readTile(3, 1, 0))
+        }
+    }
+
+    private fun tileBytes(level: Int, row: Int, col: Int): ByteArray {
+        return "tile $level $row $col".toByteArray()
+    }
+}
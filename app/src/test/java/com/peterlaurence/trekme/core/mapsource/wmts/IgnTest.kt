@@ -18,4 +18,66 @@ class IgnTest {
         Assert.assertEquals(132884, lastTile.col)
         Assert.assertEquals(90248, lastTile.row)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun tileRangesTest() {
+        val p1 = Point(275951.78, 6241946.52)
+        val p2 = Point(276951.78, 6240946.52)
+        val tileRanges = getTileSequenceAndCalibration(16, 18, p1, p2).tileRanges
+
+        Assert.assertEquals(getNumberOfTiles(16, 18, p1, p2), tileRanges.tileCount)
+        tileRanges.asSequence().forEachIndexed { index, tile ->
+            Assert.assertEquals(tile, tileRanges.tileAt(index.toLong()))
+        }
+    }
+
+    @Test
+    fun corridorTest() {
+        val start = Point(275951.78, 6241946.52)
+        val end = Point(285951.78, 6231946.52)
+        val corridor = CorridorArea(listOf(start, end), 200.0)
+        val tileRanges = getTileSequenceAndCalibration(14, 17, corridor).tileRanges
+        val boundingBoxCount = getNumberOfTiles(14, 17, Point(corridor.XLeft, corridor.YTop),
+                Point(corridor.XRight, corridor.YBottom))
+
+        /* Along a diagonal, most tiles of the bounding box are left out */
+        Assert.assertEquals(getNumberOfTiles(14, 17, corridor), tileRanges.tileCount)
+        Assert.assertTrue(tileRanges.tileCount * 4 < boundingBoxCount)
+
+        /* The positions of tiles match the tiles of the spans */
+        val expected = tileRanges.levels.flatMap { range ->
+            (range.rowTop..range.rowBottom).flatMap { row ->
+                (range.colLeft..range.colRight).filter { range.contains(row, it) }.map { col ->
+                    Tile(range.level, row, col, range.indexLevel, row - range.rowTop, col - range.colLeft)
+                }
+            }
+        }
+        Assert.assertEquals(expected, tileRanges.asSequence().toList())
+
+        /* The tiles of the track itself are there */
+        for (level in 14..17) {
+            val range = tileRanges.levels[level - 14]
+            val tileSize = 2 * Math.abs(X0) / Math.pow(2.0, level.toDouble())
+            for (i in 0..10) {
+                val x = start.X + (end.X - start.X) * i / 10
+                val y = start.Y + (end.Y - start.Y) * i / 10
+                val row = Math.floor((Y0 - y) / tileSize).toInt()
+                val col = Math.floor((x - X0) / tileSize).toInt()
+                Assert.assertTrue(range.contains(row, col))
+            }
+        }
+    }
+
+    @Test
+    fun polygonTest() {
+        /* A triangle whose right angle is at the top left corner */
+        val polygon = PolygonArea(listOf(Point(275951.78, 6241946.52), Point(285951.78, 6241946.52),
+                Point(275951.78, 6231946.52)))
+        val range = getTileSequenceAndCalibration(16, 16, polygon).tileRanges.levels.first()
+
+        Assert.assertTrue(range.contains(range.rowTop, range.colLeft))
+        Assert.assertTrue(range.contains(range.rowBottom - 1, range.colLeft))
+        Assert.assertFalse(range.contains(range.rowBottom, range.colRight))
+        Assert.assertTrue(range.tileCount < (range.rowBottom - range.rowTop + 1) * range.colCount)
+    }
+}
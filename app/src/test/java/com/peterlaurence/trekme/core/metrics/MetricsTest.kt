@@ -0,0 +1,61 @@
+package com.peterlaurence.trekme.core.metrics
+
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class MetricsTest {
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("metrics").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+        Metrics.reset()
+    }
+
+    @Test
+    fun histogramBuckets() {
+        val histogram = Metrics.histogram("test.histogram", longArrayOf(10, 100, 1000))
+        for (value in listOf(5L, 8L, 50L, 60L, 70L, 80L, 90L, 500L, 900L, 5000L)) {
+            histogram.record(value)
+        }
+
+        Assert.assertEquals(10, histogram.count)
+        Assert.assertEquals(676.3, histogram.mean, 0.01)
+        Assert.assertEquals(5000, histogram.max)
+        Assert.assertEquals(100, histogram.percentile(0.5))
+        Assert.assertEquals(1000, histogram.percentile(0.9))
+        Assert.assertEquals(Long.MAX_VALUE, histogram.percentile(0.99))
+    }
+
+    @Test
+    fun histogramOfCounts() {
+        val histogram = Metrics.histogram("test.queue", longArrayOf(1, 2, 4), false)
+        histogram.record(3)
+        Assert.assertTrue(Metrics.report().contains("test.queue: count=1 mean=3.00 p50<=4.00"))
+    }
+
+    @Test
+    fun resetAndDump() {
+        val counter = Metrics.counter("test.counter")
+        counter.add(3)
+        counter.increment()
+        Assert.assertEquals(4, counter.count)
+        Assert.assertTrue(Metrics.report().contains("test.counter: 4\n"))
+
+        val file = Metrics.dump(File(dir, "metrics"), "device: test\n")
+        Assert.assertTrue(file.readText().startsWith("device: test\n"))
+        Assert.assertTrue(file.readText().contains("test.counter: 4\n"))
+
+        Metrics.reset()
+        Assert.assertEquals(0, counter.count)
+    }
+}
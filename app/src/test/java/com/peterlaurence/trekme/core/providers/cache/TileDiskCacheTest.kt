@@ -0,0 +1,77 @@
+package com.peterlaurence.trekme.core.providers.cache
+
+import com.peterlaurence.trekme.core.mapsource.MapSource
+import org.junit.After
+import org.junit.Assert
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+
+class TileDiskCacheTest {
+    private lateinit var dir: File
+
+    @Before
+    fun setUp() {
+        dir = Files.createTempDirectory("tilediskcache").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        dir.deleteRecursively()
+    }
+
+    @Test
+    fun leastRecentlyUsedIsDeleted() {
+        val cache = TileDiskCache(dir, 100)
+        cache.put(MapSource.OPEN_STREET_MAP, "", 10, 1, 1, ByteArray(40))
+        cache.put(MapSource.OPEN_STREET_MAP, "", 10, 1, 2, ByteArray(40))
+
+        /* The first tile becomes the most recently used */
+        Assert.assertNotNull(cache.get(MapSource.OPEN_STREET_MAP, "", 10, 1, 1))
+        cache.put(MapSource.OPEN_STREET_MAP, "", 10, 1, 3, ByteArray(40))
+
+        Assert.assertNull(cache.get(MapSource.OPEN_STREET_MAP, "", 10, 1, 2))
+        Assert.assertFalse(File(dir, "OPEN_STREET_MAP/10/1/2").exists())
+        Assert.assertNotNull(cache.get(MapSource.OPEN_STREET_MAP, "", 10, 1, 1))
+        Assert.assertEquals(80, cache.size)
+    }
+
+    @Test
+    fun layersAreSeparated() {
+        val cache = TileDiskCache(dir, 100)
+        cache.put(MapSource.IGN, "GEOGRAPHICALGRIDSYSTEMS.MAPS", 10, 1, 1, "maps".toByteArray())
+
+        Assert.assertNull(cache.get(MapSource.IGN, "ORTHOIMAGERY.ORTHOPHOTOS", 10, 1, 1))
+        val tile = cache.get(MapSource.IGN, "GEOGRAPHICALGRIDSYSTEMS.MAPS", 10, 1, 1)
+        Assert.assertEquals("maps", tile?.file?.readText())
+    }
+
+    @Test
+    fun oldTilesAreStale() {
+        var now = System.currentTimeMillis()
+        val cache = TileDiskCache(dir, 100, 1000) { now }
+        cache.put(MapSource.USGS, "", 10, 1, 1, ByteArray(10))
+        Assert.assertFalse(cache.get(MapSource.USGS, "", 10, 1, 1)!!.isStale)
+
+        now += 2000
+        Assert.assertTrue(cache.get(MapSource.USGS, "", 10, 1, 1)!!.isStale)
+    }
+
+    @Test
+    fun indexIsReloadedFromDisk() {
+        TileDiskCache(dir, 100).apply {
+            put(MapSource.IGN_SPAIN, "", 10, 1, 1, ByteArray(30))
+            put(MapSource.IGN_SPAIN, "", 10, 1, 2, ByteArray(30))
+        }
+        File(dir, "IGN_SPAIN/10/1/3.1.tmp").writeBytes(ByteArray(30))
+
+        val cache = TileDiskCache(dir, 100)
+        Assert.assertNotNull(cache.get(MapSource.IGN_SPAIN, "", 10, 1, 2))
+        Assert.assertEquals(60, cache.size)
+        Assert.assertFalse(File(dir, "IGN_SPAIN/10/1/3.1.tmp").exists())
+
+        cache.trimToSize(30)
+        Assert.assertEquals(30, cache.size)
+    }
+}
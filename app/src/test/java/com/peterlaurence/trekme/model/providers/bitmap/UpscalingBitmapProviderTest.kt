@@ -0,0 +1,127 @@
+package com.peterlaurence.trekme.model.providers.bitmap
+
+import android.content.Context
+import android.graphics.Bitmap
+import com.peterlaurence.trekme.BuildConfig
+import com.peterlaurence.trekme.core.map.cache.TileBitmapCache
+import com.peterlaurence.trekme.core.map.cache.TileDecodeScheduler
+import com.qozix.tileview.detail.DetailLevel
+import com.qozix.tileview.detail.DetailLevelManager
+import com.qozix.tileview.tiles.Tile
+import org.junit.Assert
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+@Config(constants = BuildConfig::class)
+class UpscalingBitmapProviderTest {
+    private val provider = UpscalingBitmapProvider(object : PrefetchableBitmapProvider {
+        override fun getBitmap(tile: Tile, context: Context?): Bitmap? = null
+        override fun prefetch(level: Int, row: Int, col: Int) {}
+        override fun release() {}
+    }, 0, TileDecodeScheduler(1)).apply {
+        addDetailLevel(1f, 2, 256, 256)
+        addDetailLevel(0.25f, 0, 256, 256)
+        addDetailLevel(0.5f, 1, 256, 256)
+    }
+
+    @Test
+    fun cropOfTheParentTile() {
+        val crop = provider.computeCrop(2, 5, 2)
+        Assert.assertEquals(UpscalingBitmapProvider.Crop(1, 2, 1, 0f, 128f, 128f, 256f, 256, 256), crop)
+    }
+
+    @Test
+    fun noParentForTheFirstLevel() {
+        Assert.assertNull(provider.computeCrop(0, 0, 0))
+        Assert.assertNull(provider.computeCrop(3, 0, 0))
+    }
+
+    @Test
+    fun noCropAcrossParentTiles() {
+        val provider = UpscalingBitmapProvider(object : PrefetchableBitmapProvider {
+            override fun getBitmap(tile: Tile, context: Context?): Bitmap? = null
+            override fun prefetch(level: Int, row: Int, col: Int) {}
+            override fun release() {}
+        }, 0, TileDecodeScheduler(1)).apply {
+            addDetailLevel(0.5f, 0, 256, 256)
+            addDetailLevel(1f, 1, 384, 384)
+        }
+
+        /* The second tile spans columns 192..384 of the parent level */
+        Assert.assertNull(provider.computeCrop(1, 0, 1))
+        Assert.assertNotNull(provider.computeCrop(1, 0, 0))
+    }
+
+    @Test
+    fun overzoomCropOfTheDeepestTile() {
+        provider.addOverzoomLevel(2f, 3, 256, 256)
+        provider.addOverzoomLevel(4f, 4, 256, 256)
+
+        /* Two levels deeper, a tile is a quarter of a tile of the deepest level */
+        val crop = provider.computeCrop(4, 6, 1)
+        Assert.assertEquals(UpscalingBitmapProvider.Crop(2, 1, 0, 64f, 128f, 128f, 192f, 256, 256), crop)
+    }
+
+    @Test
+    fun placeholderReusedBeforeItsTileIsDecoded() {
+        val decodeStarted = CountDownLatch(1)
+        val decodeAllowed = CountDownLatch(1)
+        val secondDecodeDone = CountDownLatch(1)
+        val replacedCount = AtomicInteger()
+
+        /* The first tile is decoded once allowed to. The second one has no tile */
+        val scheduler = TileDecodeScheduler(1)
+        val provider = UpscalingBitmapProvider(object : PrefetchableBitmapProvider {
+            override fun getBitmap(tile: Tile, context: Context?): Bitmap? {
+                if (tile.column == 0) {
+                    decodeStarted.countDown()
+                    decodeAllowed.await()
+                    return Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565)
+                }
+                secondDecodeDone.countDown()
+                return null
+            }
+
+            override fun prefetch(level: Int, row: Int, col: Int) {}
+            override fun release() {}
+        }, MAP_ID, scheduler).apply {
+            addDetailLevel(0.5f, 0, 256, 256)
+            addDetailLevel(1f, 1, 256, 256)
+            onTileReplaced = Runnable { replacedCount.incrementAndGet() }
+        }
+
+        TileBitmapCache.evictAll()
+        TileBitmapCache.pool.clear()
+        TileBitmapCache.put(MAP_ID, 0, 0, 0, Bitmap.createBitmap(256, 256, Bitmap.Config.RGB_565), false)
+        val detailLevel = DetailLevel(DetailLevelManager(), 1f, 1, 256, 256)
+
+        try {
+            val first = provider.getBitmap(Tile(256, 256, 0, 0, 1, detailLevel), null)
+            Assert.assertTrue(decodeStarted.await(5, TimeUnit.SECONDS))
+
+            /* The placeholder is released while its tile is decoded, and given out for another tile */
+            TileBitmapCache.bitmapRecycler.recycleBitmap(first!!)
+            val second = provider.getBitmap(Tile(256, 256, 256, 0, 1, detailLevel), null)
+            Assert.assertSame(first, second)
+
+            /* The first tile mustn't be drawn over the placeholder of the second one */
+            decodeAllowed.countDown()
+            Assert.assertTrue(secondDecodeDone.await(5, TimeUnit.SECONDS))
+            Assert.assertEquals(0, replacedCount.get())
+            Assert.assertTrue(TileBitmapCache.isDisplayed(second!!))
+        } finally {
+            decodeAllowed.countDown()
+            scheduler.shutdown()
+        }
+    }
+
+    companion object {
+        private const val MAP_ID = 16
+    }
+}